@@ -0,0 +1,130 @@
+package io.prometheus.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bean names and attributes as exposed by Kafka, Cassandra and Tomcat, to feed the rules of the example configs with
+ * input that mostly matches, and partially does not, as in a real scrape.
+ */
+final class BenchmarkBeans {
+
+    /**
+     * One attribute of a bean, as passed to JmxScraper.MBeanReceiver.recordBean().
+     */
+    static final class Attribute {
+        final String domain;
+        final Map<String, String> beanProperties;
+        final LinkedList<String> attrKeys = new LinkedList<>();
+        final String attrName;
+        final String attrType;
+        final String attrDescription;
+        final Object value;
+
+        Attribute(ObjectName objectName, JmxMBeanPropertyCache propertyCache, String attrName, Object value) {
+            this.domain = objectName.getDomain();
+            this.beanProperties = propertyCache.getKeyPropertyList(objectName);
+            this.attrName = attrName;
+            this.attrType = value.getClass().getName();
+            this.attrDescription = attrName;
+            this.value = value;
+        }
+
+        void recordTo(JmxScraper.MBeanReceiver receiver) {
+            receiver.recordBean(domain, beanProperties, attrKeys, attrName, attrType, attrDescription, value);
+        }
+    }
+
+    private BenchmarkBeans() {
+    }
+
+    static JmxCollector collector(String exampleConfig) throws MalformedObjectNameException {
+        InputStream config = BenchmarkBeans.class.getResourceAsStream("/example_configs/" + exampleConfig);
+        if (config == null) {
+            throw new IllegalArgumentException("Unknown example config " + exampleConfig);
+        }
+        return new JmxCollector(config);
+    }
+
+    /**
+     * @return count bean names for the application the example config is for.
+     */
+    static List<ObjectName> objectNames(String exampleConfig, int count) throws MalformedObjectNameException {
+        List<ObjectName> objectNames = new ArrayList<>(count);
+        for (int i = 0; objectNames.size() < count; i++) {
+            for (String objectName : objectNamesOfApplication(exampleConfig, i)) {
+                objectNames.add(new ObjectName(objectName));
+            }
+        }
+        return objectNames.subList(0, count);
+    }
+
+    private static String[] objectNamesOfApplication(String exampleConfig, int i) {
+        if (exampleConfig.startsWith("kafka")) {
+            return new String[]{
+                    "kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec,topic=topic-" + i,
+                    "kafka.server:type=BrokerTopicMetrics,name=BytesOutPerSec,topic=topic-" + i,
+                    "kafka.log:type=Log,name=Size,topic=topic-" + i + ",partition=" + (i % 12),
+                    "kafka.network:type=RequestMetrics,name=RequestsPerSec,request=Produce,version=" + (i % 9),
+                    "kafka.server:type=FetcherLagMetrics,name=ConsumerLag,clientId=ReplicaFetcherThread-0-" + (i % 3)
+                            + ",topic=topic-" + i + ",partition=" + (i % 12),
+                    "kafka.server:type=app-info,id=" + i,
+            };
+        }
+        if (exampleConfig.startsWith("cassandra")) {
+            return new String[]{
+                    "org.apache.cassandra.metrics:type=Table,keyspace=ks" + (i % 5) + ",scope=table" + i
+                            + ",name=ReadLatency",
+                    "org.apache.cassandra.metrics:type=Table,keyspace=ks" + (i % 5) + ",scope=table" + i
+                            + ",name=LiveSSTableCount",
+                    "org.apache.cassandra.metrics:type=ThreadPools,path=request,scope=Stage" + i
+                            + ",name=ActiveTasks",
+                    "org.apache.cassandra.metrics:type=ClientRequest,scope=Read" + i + ",name=TotalLatency",
+                    "org.apache.cassandra.db:type=Tables,keyspace=ks" + (i % 5) + ",table=table" + i,
+            };
+        }
+        if (exampleConfig.startsWith("tomcat")) {
+            return new String[]{
+                    "Catalina:type=GlobalRequestProcessor,name=\"http-nio-" + (8080 + i) + "\"",
+                    "Catalina:j2eeType=Servlet,WebModule=//localhost/app" + i + ",name=servlet" + i
+                            + ",J2EEApplication=none,J2EEServer=none",
+                    "Catalina:type=ThreadPool,name=\"http-nio-" + (8080 + i) + "\"",
+                    "Catalina:type=Manager,host=localhost,context=/app" + i,
+                    "Catalina:type=Valve,host=localhost,context=/app" + i + ",name=StandardContextValve",
+            };
+        }
+        throw new IllegalArgumentException("No beans for example config " + exampleConfig);
+    }
+
+    /**
+     * @return the numeric and non-numeric attributes typical for the kind of bean.
+     */
+    static List<Attribute> attributes(List<ObjectName> objectNames, JmxMBeanPropertyCache propertyCache) {
+        List<Attribute> attributes = new ArrayList<>();
+        long value = 0;
+        for (ObjectName objectName : objectNames) {
+            String name = objectName.getKeyProperty("name");
+            String[] attrNames;
+            if (name != null && (name.endsWith("PerSec") || name.endsWith("Latency"))) {
+                attrNames = new String[]{"Count", "OneMinuteRate", "99thPercentile", "RateUnit"};
+            } else if ("GlobalRequestProcessor".equals(objectName.getKeyProperty("type"))) {
+                attrNames = new String[]{"requestCount", "errorCount", "bytesSent", "modelerType"};
+            } else if ("Servlet".equals(objectName.getKeyProperty("j2eeType"))) {
+                attrNames = new String[]{"requestCount", "maxTime", "processingTime", "servletClass"};
+            } else {
+                attrNames = new String[]{"Value", "currentThreadCount", "sessionCounter", "stateName"};
+            }
+            for (int i = 0; i < attrNames.length; i++) {
+                // The last attribute is a string, which is matched by the rules but not exported.
+                Object attributeValue = i == attrNames.length - 1 ? "STARTED" : (Object) Long.valueOf(value++);
+                attributes.add(new Attribute(objectName, propertyCache, attrNames[i], attributeValue));
+            }
+        }
+        return attributes;
+    }
+}
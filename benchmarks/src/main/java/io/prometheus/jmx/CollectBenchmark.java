@@ -0,0 +1,123 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full JmxCollector.collect() against synthetic beans registered in the platform MBean server, to see how a scrape
+ * scales with the number of beans.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class CollectBenchmark {
+
+    public interface SyntheticMBean {
+        long getCount();
+
+        double getOneMinuteRate();
+
+        double getValue();
+
+        String getStateName();
+    }
+
+    public static class Synthetic implements SyntheticMBean {
+        private final long count;
+
+        Synthetic(long count) {
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getOneMinuteRate() {
+            return count / 60.0;
+        }
+
+        public double getValue() {
+            return count * 0.5;
+        }
+
+        public String getStateName() {
+            return "STARTED";
+        }
+    }
+
+    private static final String WHITELIST = "whitelistObjectNames: [\"benchmark:*\"]\n";
+
+    @Param({"1000", "10000", "200000"})
+    public int beans;
+
+    /**
+     * default: the default format for all attributes. rules: rules with capture groups and labels. cachedRules: the
+     * same rules with the rules cache enabled.
+     */
+    @Param({"default", "rules", "cachedRules"})
+    public String config;
+
+    private final List<ObjectName> registered = new ArrayList<>();
+    private JmxCollector collector;
+
+    @Setup
+    public void setUp() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < beans; i++) {
+            ObjectName objectName = new ObjectName("benchmark:type=Type" + (i % 20) + ",name=Bean" + i);
+            server.registerMBean(new Synthetic(i), objectName);
+            registered.add(objectName);
+        }
+        String yaml = WHITELIST;
+        if (!config.equals("default")) {
+            yaml += "rules:\n"
+                    + "- pattern: 'benchmark<type=(\\w+), name=(\\w+)><>(Count|OneMinuteRate)'\n"
+                    + "  name: benchmark_$1_$3\n"
+                    + "  labels:\n"
+                    + "    name: $2\n"
+                    + "  cache: " + config.equals("cachedRules") + "\n"
+                    + "- pattern: 'benchmark<type=(\\w+), name=(\\w+)><>Value'\n"
+                    + "  name: benchmark_$1_value\n"
+                    + "  type: GAUGE\n"
+                    + "  labels:\n"
+                    + "    name: $2\n"
+                    + "  cache: " + config.equals("cachedRules") + "\n";
+        }
+        collector = new JmxCollector(yaml);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            server.unregisterMBean(objectName);
+        }
+        registered.clear();
+    }
+
+    @Benchmark
+    public Object collect() {
+        return collector.collect();
+    }
+}
@@ -0,0 +1,58 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.management.ObjectName;
+import java.util.List;
+
+/**
+ * Parsing the key properties of bean names, on the first scrape (miss) and from the cache (hit).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JmxMBeanPropertyCacheBenchmark {
+    private static final int BEANS = 1000;
+
+    @Param({"kafka-2_0_0.yml", "cassandra.yml", "tomcat.yml"})
+    public String exampleConfig;
+
+    private List<ObjectName> objectNames;
+    private JmxMBeanPropertyCache warmCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        objectNames = BenchmarkBeans.objectNames(exampleConfig, BEANS);
+        warmCache = new JmxMBeanPropertyCache();
+        for (ObjectName objectName : objectNames) {
+            warmCache.getKeyPropertyList(objectName);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BEANS)
+    public void hit(Blackhole blackhole) {
+        for (ObjectName objectName : objectNames) {
+            blackhole.consume(warmCache.getKeyPropertyList(objectName));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BEANS)
+    public void miss(Blackhole blackhole) {
+        JmxMBeanPropertyCache cache = new JmxMBeanPropertyCache();
+        for (ObjectName objectName : objectNames) {
+            blackhole.consume(cache.getKeyPropertyList(objectName));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lookups in the rules cache for beans that were seen before (hit) and new beans (miss), and adding entries.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MatchedRulesCacheBenchmark {
+    private static final int KEYS = 10000;
+
+    private final JmxCollector.Rule rule = new JmxCollector.Rule();
+    private final MatchedRule matchedRule = new MatchedRule("kafka_server_brokertopicmetrics_messagesin_total",
+            "", Collector.Type.COUNTER, "help", Collections.singletonList("topic"),
+            Collections.singletonList("topic-0"), null, 1.0);
+    private MatchedRulesCache cache;
+    private List<String> cachedKeys;
+    private List<String> newKeys;
+
+    @Setup
+    public void setUp() {
+        cache = new MatchedRulesCache(Collections.singletonList(rule));
+        cachedKeys = new ArrayList<>(KEYS);
+        newKeys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            String key = "kafka.server<type=BrokerTopicMetrics, name=MessagesInPerSec, topic=topic-" + i + "><>Count: <cache>";
+            cachedKeys.add(key);
+            newKeys.add(key.replace("topic-", "new-topic-"));
+            cache.put(rule, key, i % 2 == 0 ? matchedRule : MatchedRule.unmatched());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void hit(Blackhole blackhole) {
+        for (String key : cachedKeys) {
+            blackhole.consume(cache.get(rule, key));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void miss(Blackhole blackhole) {
+        for (String key : newKeys) {
+            blackhole.consume(cache.get(rule, key));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void putAndTrack() {
+        MatchedRulesCache.StalenessTracker tracker = new MatchedRulesCache.StalenessTracker();
+        for (String key : cachedKeys) {
+            cache.put(rule, key, matchedRule);
+            tracker.add(rule, key);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+
+/**
+ * Rule matching and sample creation in Receiver.recordBean(), with the rules of the example configs. Each invocation
+ * records the attributes of 1000 beans into a new receiver, like a scrape does.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RecordBeanBenchmark {
+    private static final int BEANS = 1000;
+    private static final int ATTRIBUTES = BEANS * 4;
+
+    @Param({"kafka-2_0_0.yml", "cassandra.yml", "tomcat.yml"})
+    public String exampleConfig;
+
+    private JmxCollector collector;
+    private List<BenchmarkBeans.Attribute> attributes;
+
+    @Setup
+    public void setUp() throws Exception {
+        collector = BenchmarkBeans.collector(exampleConfig);
+        attributes = BenchmarkBeans.attributes(BenchmarkBeans.objectNames(exampleConfig, BEANS),
+                new JmxMBeanPropertyCache());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ATTRIBUTES)
+    public Object recordBean() {
+        JmxCollector.Receiver receiver = collector.newReceiver();
+        for (BenchmarkBeans.Attribute attribute : attributes) {
+            attribute.recordTo(receiver);
+        }
+        return receiver.metricFamilySamplesMap;
+    }
+}
@@ -0,0 +1,69 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full JmxCollector.collect() against the beans of a dump captured with {@code JmxScraper --capture}, to benchmark
+ * rule changes against the beans of a production application.
+ * <p>
+ * Pass the dump and the config with {@code -p dump=... -p config=...}. Without a dump, the synthetic Kafka and Cassandra
+ * beans of {@link SyntheticBeanApplication} are captured and replayed with the rules of the example config for Kafka.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class ReplayBenchmark {
+
+    @Param("")
+    public String dump;
+
+    @Param("")
+    public String config;
+
+    private JmxCollector collector;
+
+    @Setup
+    public void setUp() throws Exception {
+        File dumpFile;
+        if (dump.isEmpty()) {
+            MBeanServer server = MBeanServerFactory.newMBeanServer();
+            SyntheticBeanApplication.register(server, 1000, 1000, 0);
+            dumpFile = File.createTempFile("replay-benchmark", ".dump");
+            dumpFile.deleteOnExit();
+            BeanDump.capture(server, dumpFile);
+        } else {
+            dumpFile = new File(dump);
+        }
+        try (InputStream in = config.isEmpty()
+                ? ReplayBenchmark.class.getResourceAsStream("/example_configs/kafka-2_0_0.yml")
+                : new FileInputStream(config)) {
+            collector = new JmxCollector(in).scrapeFrom(BeanDump.load(dumpFile));
+        }
+    }
+
+    @Benchmark
+    public List<?> collect() {
+        return collector.collect();
+    }
+}
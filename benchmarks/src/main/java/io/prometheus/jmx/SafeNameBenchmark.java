@@ -0,0 +1,54 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The name conversions applied to every exported sample.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SafeNameBenchmark {
+
+    private static final String[] NAMES = {
+            "kafka_server_BrokerTopicMetrics_MessagesInPerSec_total",
+            "org.apache.cassandra.metrics_Table_ReadLatency_99thPercentile",
+            "java.lang<type=Memory><HeapMemoryUsage>used",
+            "Catalina_GlobalRequestProcessor_requestCount",
+            "hadoop_DataNode__ReplaceBlockOpMinTime",
+            "99thPercentile",
+    };
+
+    private static final String[] ATTR_NAMES = {
+            "HeapMemoryUsage",
+            "OneMinuteRate",
+            "99thPercentile",
+            "requestCount",
+            "CollectionUsageThresholdExceeded",
+            "already_snake_case",
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void safeName(Blackhole blackhole) {
+        for (String name : NAMES) {
+            blackhole.consume(JmxCollector.safeName(name));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void toSnakeAndLowerCase(Blackhole blackhole) {
+        for (String attrName : ATTR_NAMES) {
+            blackhole.consume(JmxCollector.toSnakeAndLowerCase(attrName));
+        }
+    }
+}
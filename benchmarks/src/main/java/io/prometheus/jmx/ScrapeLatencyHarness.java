@@ -0,0 +1,166 @@
+package io.prometheus.jmx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrapes a {@link SyntheticBeanApplication} in another JVM through the standalone exporter, over RMI as in production,
+ * and reports the scrape durations and the heap used by the exporter.
+ * <p>
+ * Unlike the JMH benchmarks, this includes the cost of the remote calls, the serialization of CompositeData and
+ * TabularData values, and the rendering of the response.
+ */
+public class ScrapeLatencyHarness {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: ScrapeLatencyHarness <example config or 'default'> <kafka topics> "
+                    + "<cassandra tables> <attribute latency micros> <scrapes>");
+            System.exit(1);
+        }
+        String exampleConfig = args[0];
+        String topics = args[1];
+        String tables = args[2];
+        String attributeLatencyMicros = args[3];
+        int scrapes = Integer.parseInt(args[4]);
+
+        int jmxPort = freePort();
+        Process application = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                SyntheticBeanApplication.class.getName(),
+                String.valueOf(jmxPort), topics, tables, attributeLatencyMicros)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            // The application prints one line once its connector server is up.
+            BufferedReader output = new BufferedReader(
+                    new InputStreamReader(application.getInputStream(), StandardCharsets.UTF_8));
+            System.out.println(output.readLine());
+
+            int httpPort = freePort();
+            WebServer.main(new String[]{"localhost:" + httpPort, config(exampleConfig, jmxPort).getPath()});
+            URL url = new URL("http://localhost:" + httpPort + "/metrics");
+
+            Scrape warmUp = scrape(url);
+            System.out.printf("Warm-up scrape: %d ms, %d samples, %d bytes%n",
+                    TimeUnit.NANOSECONDS.toMillis(warmUp.durationNanos), warmUp.samples, warmUp.bytes);
+
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long[] durations = new long[scrapes];
+            for (int i = 0; i < scrapes; i++) {
+                durations[i] = scrape(url).durationNanos;
+            }
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.gc();
+            long retainedHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+            Arrays.sort(durations);
+            System.out.printf("Scrape duration over %d scrapes: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    scrapes, millis(durations, 0.5), millis(durations, 0.9), millis(durations, 0.99),
+                    millis(durations, 1.0));
+            System.out.printf("Exporter heap: %d MiB retained after scrapes, %d MiB peak during scrapes%n",
+                    retainedHeap >> 20, peakHeap >> 20);
+        } finally {
+            application.destroy();
+        }
+        // Stops the exporter's server threads.
+        System.exit(0);
+    }
+
+    private static final class Scrape {
+        long durationNanos;
+        long bytes;
+        long samples;
+    }
+
+    private static Scrape scrape(URL url) throws IOException {
+        Scrape scrape = new Scrape();
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("Scrape of " + url + " failed with " + connection.getResponseCode());
+        }
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                scrape.bytes += line.length() + 1;
+                if (!line.startsWith("#")) {
+                    scrape.samples++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        scrape.durationNanos = System.nanoTime() - start;
+        return scrape;
+    }
+
+    /**
+     * @return a config file with the rules of the example config, connecting to the application.
+     */
+    private static File config(String exampleConfig, int jmxPort) throws IOException {
+        File config = File.createTempFile("scrape-latency", ".yml");
+        config.deleteOnExit();
+        OutputStream out = Files.newOutputStream(config.toPath());
+        try {
+            out.write(("hostPort: localhost:" + jmxPort + "\n").getBytes(StandardCharsets.UTF_8));
+            if (!exampleConfig.equals("default")) {
+                InputStream in = ScrapeLatencyHarness.class.getResourceAsStream("/example_configs/" + exampleConfig);
+                if (in == null) {
+                    throw new IllegalArgumentException("Unknown example config " + exampleConfig);
+                }
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return config;
+    }
+
+    private static double millis(long[] sortedDurations, double quantile) {
+        int index = (int) Math.ceil(quantile * sortedDurations.length) - 1;
+        return sortedDurations[Math.max(0, index)] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
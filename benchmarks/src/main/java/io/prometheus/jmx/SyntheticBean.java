@@ -0,0 +1,174 @@
+package io.prometheus.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bean with the attributes of a Kafka or Cassandra metric. Reading an attribute optionally takes a fixed time, to
+ * simulate an application whose attribute getters are slow.
+ */
+public class SyntheticBean implements DynamicMBean {
+
+    enum Shape {
+        /** A Yammer meter, like kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec. */
+        METER("Count", "MeanRate", "OneMinuteRate", "FiveMinuteRate", "FifteenMinuteRate", "RateUnit", "EventType"),
+        /** A Yammer gauge, like kafka.log:type=Log,name=Size. */
+        GAUGE("Value"),
+        /** A Cassandra latency histogram, like org.apache.cassandra.metrics:type=Table,name=ReadLatency. */
+        HISTOGRAM("Count", "Min", "Max", "Mean", "StdDev", "50thPercentile", "75thPercentile", "95thPercentile",
+                "98thPercentile", "99thPercentile", "999thPercentile", "DurationUnit"),
+        /** A bean with a CompositeData attribute like java.lang:type=Memory, and a TabularData attribute. */
+        COMPOSITE("Usage", "PartitionOffsets", "Size");
+
+        final String[] attributes;
+        final MBeanInfo info;
+
+        Shape(String... attributes) {
+            this.attributes = attributes;
+            MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                attributeInfos[i] = new MBeanAttributeInfo(attributes[i], type(attributes[i]),
+                        "Synthetic " + attributes[i], true, false, false);
+            }
+            info = new MBeanInfo(SyntheticBean.class.getName(), "Synthetic " + name().toLowerCase(),
+                    attributeInfos, null, null, null);
+        }
+
+        private static String type(String attribute) {
+            if (attribute.equals("Usage")) {
+                return CompositeData.class.getName();
+            }
+            if (attribute.equals("PartitionOffsets")) {
+                return javax.management.openmbean.TabularData.class.getName();
+            }
+            if (attribute.endsWith("Unit") || attribute.equals("EventType")) {
+                return String.class.getName();
+            }
+            if (attribute.equals("Count") || attribute.equals("Value") || attribute.equals("Size")) {
+                return long.class.getName();
+            }
+            return double.class.getName();
+        }
+    }
+
+    private static final CompositeType USAGE_TYPE;
+    private static final CompositeType OFFSET_TYPE;
+    private static final TabularType OFFSETS_TYPE;
+
+    static {
+        try {
+            USAGE_TYPE = new CompositeType("Usage", "Usage", new String[]{"committed", "init", "max", "used"},
+                    new String[]{"committed", "init", "max", "used"},
+                    new OpenType<?>[]{SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG});
+            OFFSET_TYPE = new CompositeType("PartitionOffset", "PartitionOffset",
+                    new String[]{"partition", "offset"}, new String[]{"partition", "offset"},
+                    new OpenType<?>[]{SimpleType.INTEGER, SimpleType.LONG});
+            OFFSETS_TYPE = new TabularType("PartitionOffsets", "PartitionOffsets", OFFSET_TYPE,
+                    new String[]{"partition"});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Shape shape;
+    private final long attributeLatencyNanos;
+    private final AtomicLong reads = new AtomicLong();
+
+    SyntheticBean(Shape shape, long attributeLatencyMicros) {
+        this.shape = shape;
+        this.attributeLatencyNanos = TimeUnit.MICROSECONDS.toNanos(attributeLatencyMicros);
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (attributeLatencyNanos > 0) {
+            LockSupport.parkNanos(attributeLatencyNanos);
+        }
+        // The values change on every read, like those of a busy application.
+        long count = reads.incrementAndGet();
+        if (attribute.equals("Usage")) {
+            return usage(count);
+        }
+        if (attribute.equals("PartitionOffsets")) {
+            return partitionOffsets(count);
+        }
+        for (String name : shape.attributes) {
+            if (name.equals(attribute)) {
+                String type = Shape.type(attribute);
+                if (type.equals(String.class.getName())) {
+                    return attribute.equals("EventType") ? "messages" : "SECONDS";
+                }
+                if (type.equals(long.class.getName())) {
+                    return count;
+                }
+                return count / 60.0;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList(attributes.length);
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, like the platform MBean server does.
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        return shape.info;
+    }
+
+    private static CompositeData usage(long count) {
+        try {
+            return new CompositeDataSupport(USAGE_TYPE, new String[]{"committed", "init", "max", "used"},
+                    new Object[]{1L << 30, 1L << 28, 1L << 32, count});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static TabularDataSupport partitionOffsets(long count) {
+        TabularDataSupport offsets = new TabularDataSupport(OFFSETS_TYPE);
+        try {
+            for (int partition = 0; partition < 4; partition++) {
+                offsets.put(new CompositeDataSupport(OFFSET_TYPE, new String[]{"partition", "offset"},
+                        new Object[]{partition, count + partition}));
+            }
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,85 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+
+/**
+ * An application with Kafka and Cassandra shaped beans, exposed over RMI to be scraped by the standalone exporter.
+ */
+public class SyntheticBeanApplication {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: SyntheticBeanApplication <port> <kafka topics> <cassandra tables> [attribute latency micros]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        int topics = Integer.parseInt(args[1]);
+        int tables = Integer.parseInt(args[2]);
+        long attributeLatencyMicros = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+        int beans = register(ManagementFactory.getPlatformMBeanServer(), topics, tables, attributeLatencyMicros);
+
+        LocateRegistry.createRegistry(port);
+        JMXServiceURL url = new JMXServiceURL(serviceUrl(port));
+        JMXConnectorServer connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(url, null,
+                ManagementFactory.getPlatformMBeanServer());
+        connectorServer.start();
+        System.out.println("Registered " + beans + " beans, listening on " + url);
+
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    static String serviceUrl(int port) {
+        return "service:jmx:rmi://localhost:" + port + "/jndi/rmi://localhost:" + port + "/jmxrmi";
+    }
+
+    /**
+     * @return the number of beans registered.
+     */
+    static int register(MBeanServer server, int topics, int tables, long attributeLatencyMicros) throws Exception {
+        int beans = 0;
+        for (int topic = 0; topic < topics; topic++) {
+            String topicName = "topic-" + topic;
+            for (String meter : new String[]{"MessagesInPerSec", "BytesInPerSec", "BytesOutPerSec"}) {
+                beans += register(server, "kafka.server:type=BrokerTopicMetrics,name=" + meter + ",topic=" + topicName,
+                        SyntheticBean.Shape.METER, attributeLatencyMicros);
+            }
+            for (int partition = 0; partition < 4; partition++) {
+                String partitionName = "topic=" + topicName + ",partition=" + partition;
+                beans += register(server, "kafka.log:type=Log,name=Size," + partitionName,
+                        SyntheticBean.Shape.GAUGE, attributeLatencyMicros);
+                beans += register(server, "kafka.log:type=Log,name=LogEndOffset," + partitionName,
+                        SyntheticBean.Shape.GAUGE, attributeLatencyMicros);
+            }
+            beans += register(server, "kafka.log:type=LogManager,name=Offsets,topic=" + topicName,
+                    SyntheticBean.Shape.COMPOSITE, attributeLatencyMicros);
+        }
+        for (int table = 0; table < tables; table++) {
+            String tableName = "keyspace=ks" + (table % 5) + ",scope=table" + table;
+            for (String histogram : new String[]{"ReadLatency", "WriteLatency", "SSTablesPerReadHistogram"}) {
+                beans += register(server, "org.apache.cassandra.metrics:type=Table," + tableName + ",name=" + histogram,
+                        SyntheticBean.Shape.HISTOGRAM, attributeLatencyMicros);
+            }
+            for (String gauge : new String[]{"LiveSSTableCount", "TotalDiskSpaceUsed", "PendingCompactions"}) {
+                beans += register(server, "org.apache.cassandra.metrics:type=Table," + tableName + ",name=" + gauge,
+                        SyntheticBean.Shape.GAUGE, attributeLatencyMicros);
+            }
+            beans += register(server, "org.apache.cassandra.db:type=Tables," + tableName.replace("scope=", "table="),
+                    SyntheticBean.Shape.COMPOSITE, attributeLatencyMicros);
+        }
+        return beans;
+    }
+
+    private static int register(MBeanServer server, String objectName, SyntheticBean.Shape shape,
+                                long attributeLatencyMicros) throws Exception {
+        server.registerMBean(new SyntheticBean(shape, attributeLatencyMicros), new ObjectName(objectName));
+        return 1;
+    }
+}
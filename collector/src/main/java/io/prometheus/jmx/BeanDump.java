@@ -0,0 +1,249 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A dump of the beans of an MBean server: their names, the types and descriptions of their readable attributes, and
+ * the attribute values at the time of the capture.
+ * <p>
+ * A dump is replayed by registering its beans in a private MBean server, which the {@link JmxCollector} scrapes like a
+ * remote one. The whole scrape runs as against the captured application, including the whitelist, the attribute filter
+ * and the flattening of CompositeData and TabularData values, and every replay of a dump gives the same samples. This
+ * allows to tune and benchmark rules against the beans of a production application without access to it.
+ * <p>
+ * The file is a gzipped Java serialization stream, as CompositeData and TabularData values are serializable. The bean
+ * names, types and descriptions repeat a lot and compress well. Values the scraper does not export, like arrays, are
+ * recorded as null.
+ */
+class BeanDump {
+    private static final Logger LOGGER = Logger.getLogger(BeanDump.class.getName());
+
+    private static final int MAGIC = 0x4A4D5844; // "JMXD"
+    private static final int VERSION = 1;
+
+    private BeanDump() {
+    }
+
+    /**
+     * Write all beans of the connection to the file.
+     *
+     * @return the number of beans written.
+     */
+    static int capture(MBeanServerConnection beanConn, File file) throws IOException {
+        OptionalValueExtractor optionalValueExtractor = new OptionalValueExtractor();
+        // Sorted, so that dumps of the same beans can be compared.
+        TreeSet<ObjectName> names = new TreeSet<ObjectName>();
+        // See #89 for reasons queryMBeans() is used instead of queryNames()
+        for (ObjectInstance instance : beanConn.queryMBeans(null, null)) {
+            names.add(instance.getObjectName());
+        }
+        ObjectOutputStream out = new ObjectOutputStream(
+                new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+        int beans = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (ObjectName name : names) {
+                List<MBeanAttributeInfo> attrInfos = new ArrayList<MBeanAttributeInfo>();
+                AttributeList attributes;
+                try {
+                    for (MBeanAttributeInfo attrInfo : beanConn.getMBeanInfo(name).getAttributes()) {
+                        if (attrInfo.isReadable()) {
+                            attrInfos.add(attrInfo);
+                        }
+                    }
+                    String[] attrNames = new String[attrInfos.size()];
+                    for (int i = 0; i < attrNames.length; i++) {
+                        attrNames[i] = attrInfos.get(i).getName();
+                    }
+                    attributes = beanConn.getAttributes(name, attrNames);
+                } catch (JMException e) {
+                    LOGGER.warning("Failed to capture " + name + ": " + e);
+                    continue;
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to capture " + name + ": " + e);
+                    continue;
+                }
+                Map<String, Object> values = new HashMap<String, Object>();
+                for (Attribute attribute : attributes.asList()) {
+                    values.put(attribute.getName(), attribute.getValue());
+                }
+
+                out.writeBoolean(true);
+                // Not the canonical name, the rules see the key properties in their original order.
+                out.writeObject(name.toString());
+                out.writeInt(attrInfos.size());
+                for (MBeanAttributeInfo attrInfo : attrInfos) {
+                    out.writeObject(attrInfo.getName());
+                    out.writeObject(attrInfo.getType());
+                    out.writeObject(attrInfo.getDescription());
+                    // Attributes that could not be read are replayed as absent, as they are scraped.
+                    boolean present = values.containsKey(attrInfo.getName());
+                    out.writeBoolean(present);
+                    if (present) {
+                        out.writeObject(replayableValue(values.get(attrInfo.getName()), optionalValueExtractor));
+                    }
+                }
+                // The objects written so far are not referred to again.
+                out.reset();
+                beans++;
+            }
+            out.writeBoolean(false);
+        } finally {
+            out.close();
+        }
+        return beans;
+    }
+
+    /**
+     * @return the value, if it is of a type the scraper exports and can be read without the classes of the captured
+     * application, or what the scraper would make of it.
+     */
+    private static Object replayableValue(Object value, OptionalValueExtractor optionalValueExtractor) {
+        if (value != null && optionalValueExtractor.isOptional(value)) {
+            value = optionalValueExtractor.getOptionalValueOrNull(value);
+        }
+        if (value instanceof Number && !value.getClass().getName().startsWith("java.")) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Number || value instanceof String || value instanceof Boolean
+                || value instanceof java.util.Date || value instanceof CompositeData || value instanceof TabularData) {
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * @return a new MBean server with the beans of the file registered.
+     */
+    static MBeanServer load(File file) throws IOException {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectInputStream in = new ObjectInputStream(
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a bean dump of version " + VERSION);
+            }
+            while (in.readBoolean()) {
+                ObjectName name = new ObjectName((String) in.readObject());
+                int attributeCount = in.readInt();
+                MBeanAttributeInfo[] attrInfos = new MBeanAttributeInfo[attributeCount];
+                Map<String, Object> values = new HashMap<String, Object>();
+                for (int i = 0; i < attributeCount; i++) {
+                    String attrName = (String) in.readObject();
+                    attrInfos[i] = new MBeanAttributeInfo(attrName, (String) in.readObject(),
+                            (String) in.readObject(), true, false, false);
+                    if (in.readBoolean()) {
+                        values.put(attrName, in.readObject());
+                    }
+                }
+                // Every server has its own delegate bean.
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new ReplayedBean(attrInfos, values), name);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to read " + file + ": " + e);
+        } catch (JMException e) {
+            throw new IOException("Failed to replay " + file + ": " + e);
+        } finally {
+            in.close();
+        }
+        return server;
+    }
+
+    /**
+     * A bean with the attributes and values of a dump.
+     */
+    private static class ReplayedBean implements DynamicMBean {
+        private final MBeanInfo info;
+        private final Map<String, Object> values;
+
+        ReplayedBean(MBeanAttributeInfo[] attrInfos, Map<String, Object> values) {
+            this.info = new MBeanInfo(ReplayedBean.class.getName(), null, attrInfos, null, null, null);
+            this.values = values;
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (!values.containsKey(attribute)) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return values.get(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+
+    /**
+     * Print the metrics the rules of a config file produce for the beans of a dump.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BeanDump <dump file> <yaml configuration file>");
+            System.exit(1);
+        }
+        JmxCollector collector = new JmxCollector(new File(args[1])).scrapeFrom(load(new File(args[0])));
+        Writer writer = new OutputStreamWriter(System.out, "UTF-8");
+        TextFormat.write004(writer, Collections.enumeration(collector.collect()));
+        writer.flush();
+    }
+}
@@ -0,0 +1,439 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the rules of a config against the beans of a dump or of the configured target.
+ * <p>
+ * The rules are tried in order for every value and the first match wins, so a value costs one evaluation for each rule
+ * before the one that matches it. This records the names the rules see for all values of one scrape and reports:
+ * <ul>
+ * <li>rules that match no value, and rules that only match values an earlier rule already matches (shadowed),</li>
+ * <li>patterns prone to catastrophic backtracking, and patterns that are much slower than the others,</li>
+ * <li>an order of the rules with a lower evaluation cost, in which every value is matched by the same rule as before.
+ * </li>
+ * </ul>
+ * The new order only moves a rule ahead of another if no observed value matches both, so the first match of all
+ * observed values is the same; this is checked for each value. Beans that were not in the dump may match differently.
+ */
+class ConfigAnalyzer implements JmxScraper.MBeanReceiver {
+    // Unbounded wildcards of a pattern, in addition to the .* the pattern is wrapped in, above which it is reported.
+    private static final int MAX_WILDCARDS = 3;
+    // A pattern is slow if an evaluation takes this many times the median of the rules and more than SLOW_NANOS.
+    private static final int SLOW_FACTOR = 10;
+    private static final long SLOW_NANOS = 2000;
+    private static final int WARM_UP_EVALUATIONS = 20000;
+
+    private final List<JmxCollector.Rule> rules;
+    private final List<String> beanNames = new ArrayList<String>();
+    private final List<String> attrNames = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
+
+    ConfigAnalyzer(List<JmxCollector.Rule> rules) {
+        this.rules = rules;
+    }
+
+    public void recordBean(String domain, Map<String, String> beanProperties, LinkedList<String> attrKeys,
+                           String attrName, String attrType, String attrDescription, Object value) {
+        beanNames.add(JmxCollector.beanName(domain, beanProperties, attrKeys));
+        attrNames.add(attrName);
+        values.add(String.valueOf(value));
+    }
+
+    /**
+     * The result of an analysis.
+     */
+    static class Report {
+        int values;
+        // Per rule, in the order of the config.
+        int[] matches;
+        int[] firstMatches;
+        // The earlier rules matching the values of a shadowed rule.
+        List<Set<Integer>> shadowedBy = new ArrayList<Set<Integer>>();
+        double[] nanosPerEvaluation;
+        // Patterns prone to backtracking, found by looking at them.
+        String[] problems;
+        // Patterns much slower than the others, as measured. Timings vary, so these are not failures.
+        String[] slow;
+        // The proposed order, as indexes of the rules of the config.
+        int[] order;
+        long evaluationsBefore;
+        long evaluationsAfter;
+        double nanosBefore;
+        double nanosAfter;
+
+        boolean hasProblems() {
+            for (int i = 0; i < matches.length; i++) {
+                if (problems[i] != null || (matches[i] > 0 && firstMatches[i] == 0)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    Report analyze() {
+        int ruleCount = rules.size();
+        int valueCount = values.size();
+        Report report = new Report();
+        report.values = valueCount;
+        report.matches = new int[ruleCount];
+        report.firstMatches = new int[ruleCount];
+        report.nanosPerEvaluation = new double[ruleCount];
+        report.problems = new String[ruleCount];
+        report.slow = new String[ruleCount];
+
+        // The rules that match each value.
+        BitSet[] matching = new BitSet[valueCount];
+        for (int v = 0; v < valueCount; v++) {
+            matching[v] = new BitSet(ruleCount);
+        }
+        String[][] names = new String[4][];
+        for (int r = 0; r < ruleCount; r++) {
+            JmxCollector.Rule rule = rules.get(r);
+            if (rule.pattern == null) {
+                for (int v = 0; v < valueCount; v++) {
+                    matching[v].set(r);
+                }
+                continue;
+            }
+            String[] ruleNames = names(names, rule);
+            // The last pass is timed, the ones before warm up the pattern.
+            int passes = 1 + Math.max(1, WARM_UP_EVALUATIONS / Math.max(valueCount, 1));
+            for (int pass = 0; pass < passes; pass++) {
+                long start = System.nanoTime();
+                for (int v = 0; v < valueCount; v++) {
+                    if (rule.pattern.matcher(ruleNames[v]).matches()) {
+                        matching[v].set(r);
+                    }
+                }
+                report.nanosPerEvaluation[r] = valueCount == 0 ? 0 : (System.nanoTime() - start) / (double) valueCount;
+            }
+            report.problems[r] = backtrackingProblem(rule.patternString);
+        }
+        reportSlowPatterns(report);
+
+        int[] first = new int[valueCount];
+        // A rule must stay after the rules that match values before it does.
+        BitSet[] predecessors = new BitSet[ruleCount];
+        for (int r = 0; r < ruleCount; r++) {
+            predecessors[r] = new BitSet(ruleCount);
+            report.shadowedBy.add(new LinkedHashSet<Integer>());
+        }
+        for (int v = 0; v < valueCount; v++) {
+            first[v] = matching[v].nextSetBit(0);
+            if (first[v] >= 0) {
+                report.firstMatches[first[v]]++;
+            }
+            for (int r = matching[v].nextSetBit(0); r >= 0; r = matching[v].nextSetBit(r + 1)) {
+                report.matches[r]++;
+                if (r != first[v]) {
+                    predecessors[r].set(first[v]);
+                    report.shadowedBy.get(r).add(first[v]);
+                }
+            }
+        }
+
+        report.order = order(report.firstMatches, report.nanosPerEvaluation, predecessors);
+
+        int[] position = new int[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            position[report.order[i]] = i;
+        }
+        for (int v = 0; v < valueCount; v++) {
+            int firstAfter = -1;
+            for (int r = matching[v].nextSetBit(0); r >= 0; r = matching[v].nextSetBit(r + 1)) {
+                if (firstAfter < 0 || position[r] < position[firstAfter]) {
+                    firstAfter = r;
+                }
+            }
+            if (firstAfter != first[v]) {
+                throw new IllegalStateException("The proposed order matches " + beanNames.get(v) + attrNames.get(v)
+                        + " with rule " + firstAfter + " rather than " + first[v]);
+            }
+            report.evaluationsBefore += first[v] < 0 ? ruleCount : first[v] + 1;
+            report.evaluationsAfter += first[v] < 0 ? ruleCount : position[first[v]] + 1;
+            for (int i = 0; i < ruleCount; i++) {
+                if (first[v] < 0 || i <= first[v]) {
+                    report.nanosBefore += report.nanosPerEvaluation[i];
+                }
+                if (first[v] < 0 || i <= position[first[v]]) {
+                    report.nanosAfter += report.nanosPerEvaluation[report.order[i]];
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @return the names the rule matches against, one per value. Rules with the same attrNameSnakeCase and cache
+     * settings see the same names, so they are built once per combination.
+     */
+    private String[] names(String[][] names, JmxCollector.Rule rule) {
+        int variant = (rule.attrNameSnakeCase ? 1 : 0) + (rule.cache ? 2 : 0);
+        if (names[variant] == null) {
+            names[variant] = new String[values.size()];
+            for (int v = 0; v < values.size(); v++) {
+                String attrName = rule.attrNameSnakeCase
+                        ? JmxCollector.toSnakeAndLowerCase(attrNames.get(v)) : attrNames.get(v);
+                // The same as JmxCollector.Receiver, which matches cached rules without the value.
+                names[variant][v] = beanNames.get(v) + attrName + ": " + (rule.cache ? "<cache>" : values.get(v));
+            }
+        }
+        return names[variant];
+    }
+
+    /**
+     * Order the rules so that the total cost of the evaluations is low: the rules which are the first match of many
+     * values and are cheap to evaluate go first, as long as every rule stays after its predecessors.
+     * <p>
+     * This is scheduling with precedence constraints to minimize the weighted completion time, where the weight of a
+     * rule is the number of values it matches first and its processing time is its cost per evaluation. The greedy
+     * choice by Smith's ratio is not always optimal with constraints, but is never worse than keeping the order.
+     */
+    static int[] order(int[] firstMatches, double[] nanosPerEvaluation, BitSet[] predecessors) {
+        int ruleCount = firstMatches.length;
+        int[] order = new int[ruleCount];
+        BitSet placed = new BitSet(ruleCount);
+        for (int i = 0; i < ruleCount; i++) {
+            int best = -1;
+            double bestRatio = -1;
+            for (int r = placed.nextClearBit(0); r < ruleCount; r = placed.nextClearBit(r + 1)) {
+                BitSet waiting = (BitSet) predecessors[r].clone();
+                waiting.andNot(placed);
+                if (!waiting.isEmpty()) {
+                    continue;
+                }
+                // Ties keep the order of the config.
+                double ratio = firstMatches[r] / Math.max(nanosPerEvaluation[r], 1.0);
+                if (ratio > bestRatio) {
+                    best = r;
+                    bestRatio = ratio;
+                }
+            }
+            order[i] = best;
+            placed.set(best);
+        }
+        if (cost(order, firstMatches, nanosPerEvaluation) > cost(identity(ruleCount), firstMatches, nanosPerEvaluation)) {
+            return identity(ruleCount);
+        }
+        return order;
+    }
+
+    private static double cost(int[] order, int[] firstMatches, double[] nanosPerEvaluation) {
+        double cost = 0;
+        double elapsed = 0;
+        for (int r : order) {
+            elapsed += Math.max(nanosPerEvaluation[r], 1.0);
+            cost += firstMatches[r] * elapsed;
+        }
+        return cost;
+    }
+
+    private static int[] identity(int length) {
+        int[] identity = new int[length];
+        for (int i = 0; i < length; i++) {
+            identity[i] = i;
+        }
+        return identity;
+    }
+
+    private static void reportSlowPatterns(Report report) {
+        double[] sorted = report.nanosPerEvaluation.clone();
+        Arrays.sort(sorted);
+        if (sorted.length == 0) {
+            return;
+        }
+        double median = sorted[sorted.length / 2];
+        for (int r = 0; r < sorted.length; r++) {
+            double nanos = report.nanosPerEvaluation[r];
+            if (nanos > SLOW_NANOS && nanos > SLOW_FACTOR * median) {
+                report.slow[r] = String.format(Locale.ROOT,
+                        "%.0f ns per evaluation, %.0f times the median of the rules", nanos, nanos / median);
+            }
+        }
+    }
+
+    /**
+     * Look for the usual causes of catastrophic backtracking: a quantified group which contains an unbounded
+     * quantifier itself, like {@code (\w+)*}, and many unbounded wildcards, like {@code .*a.*b.*c.*}. Patterns are
+     * wrapped in {@code ^.*(?:...).*$}, so every wildcard of a pattern adds to the two of the wrapping.
+     *
+     * @return the problem of the pattern, or null if none is found.
+     */
+    static String backtrackingProblem(String pattern) {
+        if (pattern == null) {
+            return null;
+        }
+        // For each open group, whether it contains an unbounded quantifier.
+        LinkedList<Boolean> groups = new LinkedList<Boolean>();
+        boolean lastAtomGroup = false;
+        boolean lastGroupUnbounded = false;
+        boolean lastAtomDot = false;
+        int wildcards = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            boolean unbounded = c == '*' || c == '+' || (c == '{' && isUnboundedRepetition(pattern, i));
+            if (unbounded || c == '?' || c == '{') {
+                if (unbounded) {
+                    if (lastAtomGroup && lastGroupUnbounded) {
+                        return "nested quantifier at offset " + i + ", which can backtrack exponentially";
+                    }
+                    if (lastAtomDot) {
+                        wildcards++;
+                    }
+                    if (!groups.isEmpty()) {
+                        groups.set(0, true);
+                    }
+                }
+                if (c == '{') {
+                    i = pattern.indexOf('}', i) < 0 ? pattern.length() : pattern.indexOf('}', i);
+                }
+                // A lazy or possessive quantifier.
+                if (i + 1 < pattern.length() && (pattern.charAt(i + 1) == '?' || pattern.charAt(i + 1) == '+')) {
+                    i++;
+                }
+                lastAtomGroup = false;
+                lastAtomDot = false;
+                continue;
+            }
+            lastAtomGroup = false;
+            lastAtomDot = false;
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                i = endOfCharacterClass(pattern, i);
+            } else if (c == '(') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '?') {
+                    // Skip the construct, like (?: or (?<name>. Inline flags like (?i) are not a group.
+                    int end = i + 2;
+                    while (end < pattern.length() && ":=!>)".indexOf(pattern.charAt(end)) < 0) {
+                        end++;
+                    }
+                    if (end < pattern.length() && pattern.charAt(end) == ')') {
+                        i = end;
+                        continue;
+                    }
+                    // Lookbehinds, (?<= and (?<!, end at the = or !.
+                    i = end;
+                }
+                groups.addFirst(false);
+            } else if (c == ')' && !groups.isEmpty()) {
+                lastGroupUnbounded = groups.removeFirst();
+                lastAtomGroup = true;
+                if (lastGroupUnbounded && !groups.isEmpty()) {
+                    groups.set(0, true);
+                }
+            } else if (c == '.') {
+                lastAtomDot = true;
+            }
+        }
+        if (wildcards > MAX_WILDCARDS) {
+            return wildcards + " unbounded wildcards, each multiplies the backtracking of the others on a mismatch";
+        }
+        return null;
+    }
+
+    private static boolean isUnboundedRepetition(String pattern, int open) {
+        int close = pattern.indexOf('}', open);
+        return close > open && pattern.substring(open + 1, close).matches("\\d+,");
+    }
+
+    private static int endOfCharacterClass(String pattern, int open) {
+        int i = open + 1;
+        if (i < pattern.length() && pattern.charAt(i) == '^') {
+            i++;
+        }
+        // A ] right after the opening bracket is a literal.
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                i = endOfCharacterClass(pattern, i);
+            } else if (c == ']') {
+                return i;
+            }
+        }
+        return pattern.length();
+    }
+
+    String render(Report report) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(report.values).append(" values checked against ").append(rules.size()).append(" rules.\n\n");
+        sb.append("Rules:\n");
+        for (int r = 0; r < rules.size(); r++) {
+            sb.append(String.format(Locale.ROOT, "%4d  %8d matches %8d first %10.0f ns/evaluation  %s%n",
+                    r, report.matches[r], report.firstMatches[r], report.nanosPerEvaluation[r],
+                    describe(rules.get(r))));
+            if (report.matches[r] == 0) {
+                sb.append("      unmatched: no value matches this rule\n");
+            } else if (report.firstMatches[r] == 0) {
+                sb.append("      shadowed: all values of this rule match earlier rules ")
+                        .append(report.shadowedBy.get(r)).append('\n');
+            }
+            if (report.problems[r] != null) {
+                sb.append("      pattern: ").append(report.problems[r]).append('\n');
+            }
+            if (report.slow[r] != null) {
+                sb.append("      slow: ").append(report.slow[r]).append('\n');
+            }
+        }
+        sb.append("\nProposed order (rules of the config by index):\n");
+        boolean changed = false;
+        for (int i = 0; i < report.order.length; i++) {
+            changed |= report.order[i] != i;
+            sb.append(String.format(Locale.ROOT, "%4d  %s%n", report.order[i], describe(rules.get(report.order[i]))));
+        }
+        if (!changed) {
+            sb.append("The order of the config is kept.\n");
+        }
+        sb.append(String.format(Locale.ROOT, "%nEvaluations per scrape: %d before, %d after%n",
+                report.evaluationsBefore, report.evaluationsAfter));
+        sb.append(String.format(Locale.ROOT, "Pattern time per scrape: %.3f ms before, %.3f ms after%n",
+                report.nanosBefore / 1e6, report.nanosAfter / 1e6));
+        sb.append("Every observed value is matched by the same rule in both orders. Values not in the input may not be.\n");
+        return sb.toString();
+    }
+
+    private static String describe(JmxCollector.Rule rule) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(rule.patternString == null ? "<any>" : rule.patternString);
+        if (rule.name != null) {
+            sb.append(" -> ").append(rule.name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Analyze the rules of a config file against the beans of a dump, or of the target of the config. Exits with 1 if
+     * a rule is shadowed or has a problematic pattern, so that it can run as a check.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ConfigAnalyzer <yaml configuration file> [<bean dump>]");
+            System.exit(2);
+        }
+        JmxCollector collector = new JmxCollector(new File(args[0]));
+        if (args.length > 1) {
+            collector.scrapeFrom(BeanDump.load(new File(args[1])));
+        }
+        ConfigAnalyzer analyzer = new ConfigAnalyzer(collector.rules());
+        collector.scrape(analyzer);
+        Report report = analyzer.analyze();
+        System.out.print(analyzer.render(report));
+        System.exit(report.hasProblems() ? 1 : 0);
+    }
+}
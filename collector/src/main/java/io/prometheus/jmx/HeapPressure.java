@@ -0,0 +1,192 @@
+package io.prometheus.jmx;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Tells whether the heap of the JVM is under pressure, so that scrapes can shed load rather than add to it.
+ * <p>
+ * The heap is under pressure once the old generation is still above a fraction of its maximum after a collection: the
+ * collection usage threshold of the pool is set to that fraction, and the JVM notifies when it is exceeded. Unlike the
+ * usage, which is above any threshold shortly before every collection, the usage after a collection is what the
+ * application really keeps. The pressure ends when a later collection brings the old generation back below the
+ * fraction, which is checked when asked rather than notified, as the JVM does not notify that.
+ * <p>
+ * As the thresholds are JVM-wide, so is the instance: the collectors of one JVM share it, and it is closed, restoring
+ * the thresholds the pools had before, once the last of them releases it. A collector asking for another fraction
+ * while it is in use gets none.
+ */
+class HeapPressure implements NotificationListener {
+    private static final Logger LOGGER = Logger.getLogger(HeapPressure.class.getName());
+
+    // The instance of the JVM, and the number of collectors using it.
+    private static HeapPressure shared;
+    private static int references;
+
+    private final double fraction;
+    // The old generation, the heap pools with both a usage and a collection usage threshold.
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    // The collection usage threshold of each pool before it was set.
+    private final List<Long> previousThresholds = new ArrayList<Long>();
+    private final List<GarbageCollectorMXBean> collectors = new ArrayList<GarbageCollectorMXBean>();
+    private volatile boolean underPressure;
+    // The collections when the pressure started, it only ends after another one.
+    private volatile long collectionsAtPressure;
+
+    /**
+     * @param fraction the fraction of the maximum of the old generation above which the heap is under pressure.
+     * @return the instance of the JVM, to {@link #release()} when no longer used, or null if it is in use with
+     * another fraction.
+     */
+    static synchronized HeapPressure acquire(double fraction) {
+        if (shared != null && shared.fraction != fraction) {
+            LOGGER.warning("Heap pressure is already detected above " + Math.round(shared.fraction * 100)
+                    + "% of the old generation in this JVM, not detecting it above " + Math.round(fraction * 100)
+                    + "% as well.");
+            return null;
+        }
+        if (shared == null) {
+            shared = new HeapPressure(fraction);
+        }
+        references++;
+        return shared;
+    }
+
+    /**
+     * Release an instance of {@link #acquire(double)}, closing it if it was the last use.
+     */
+    void release() {
+        synchronized (HeapPressure.class) {
+            if (shared != this || --references > 0) {
+                return;
+            }
+            shared = null;
+        }
+        close();
+    }
+
+    private HeapPressure(double fraction) {
+        this.fraction = fraction;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()
+                    || !pool.isCollectionUsageThresholdSupported() || pool.getUsage().getMax() <= 0) {
+                continue;
+            }
+            long previousThreshold = pool.getCollectionUsageThreshold();
+            if (previousThreshold > 0) {
+                LOGGER.warning("Overriding the collection usage threshold " + previousThreshold + " of the pool "
+                        + pool.getName() + " with " + threshold(pool) + " to detect heap pressure, until "
+                        + "heapPressureThreshold is removed.");
+            }
+            pools.add(pool);
+            previousThresholds.add(previousThreshold);
+            pool.setCollectionUsageThreshold(threshold(pool));
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            for (MemoryPoolMXBean pool : pools) {
+                if (Arrays.asList(collector.getMemoryPoolNames()).contains(pool.getName())) {
+                    collectors.add(collector);
+                    break;
+                }
+            }
+        }
+        if (pools.isEmpty()) {
+            LOGGER.warning("No heap pool supports collection usage thresholds, heap pressure is not detected.");
+            return;
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            underPressure();
+        }
+    }
+
+    /**
+     * Start the pressure, as when the old generation is above the fraction after a collection.
+     */
+    void underPressure() {
+        collectionsAtPressure = collections();
+        if (!underPressure) {
+            underPressure = true;
+            LOGGER.warning("The heap is over " + Math.round(fraction * 100)
+                    + "% of its maximum after a collection, scrapes are degraded until it is below.");
+        }
+    }
+
+    /**
+     * End the pressure, as when a collection brings the old generation back below the fraction.
+     */
+    void pressureRelieved() {
+        if (underPressure) {
+            underPressure = false;
+            LOGGER.info("The heap is back under " + Math.round(fraction * 100) + "% of its maximum after a collection.");
+        }
+    }
+
+    /**
+     * @return true if the heap is under pressure.
+     */
+    boolean isUnderPressure() {
+        if (underPressure && collections() > collectionsAtPressure && !aboveThreshold()) {
+            pressureRelieved();
+        }
+        return underPressure;
+    }
+
+    double fraction() {
+        return fraction;
+    }
+
+    /**
+     * Stop listening to the notifications of the JVM, and restore the previous collection usage thresholds.
+     */
+    private void close() {
+        if (pools.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < pools.size(); i++) {
+            pools.get(i).setCollectionUsageThreshold(previousThresholds.get(i));
+        }
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            // Already removed.
+        }
+    }
+
+    private boolean aboveThreshold() {
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getUsed() >= threshold(pool)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long threshold(MemoryPoolMXBean pool) {
+        return (long) (pool.getUsage().getMax() * fraction);
+    }
+
+    private long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            count += Math.max(collector.getCollectionCount(), 0);
+        }
+        return count;
+    }
+}
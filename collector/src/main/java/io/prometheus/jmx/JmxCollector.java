@@ -5,6 +5,7 @@ import io.prometheus.client.Counter;
 import org.yaml.snakeyaml.Yaml;
 
 import javax.management.MalformedObjectNameException;
+import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileReader;
@@ -13,14 +14,20 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,12 +50,14 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
     static class Rule {
       Pattern pattern;
+      String patternString;
       String name;
       String value;
       Double valueFactor = 1.0;
       String help;
       boolean attrNameSnakeCase;
       boolean cache = false;
+      boolean lowPriority;
       Type type = Type.UNKNOWN;
       ArrayList<String> labelNames;
       ArrayList<String> labelValues;
@@ -64,38 +73,259 @@ public class JmxCollector extends Collector implements Collector.Describable {
       boolean lowercaseOutputLabelNames;
       List<ObjectName> whitelistObjectNames = new ArrayList<ObjectName>();
       List<ObjectName> blacklistObjectNames = new ArrayList<ObjectName>();
+      ObjectNameAttributeFilter objectNameAttributeFilter;
       List<Rule> rules = new ArrayList<Rule>();
       long lastUpdate = 0L;
 
       MatchedRulesCache rulesCache;
+      File rulesCacheFile;
+      int rulesCacheSaveIntervalSeconds = 0;
+      String rulesHash;
+      RuleStats ruleStats;
+      boolean ruleMetrics;
+      int maxSeriesPerFamily;
+      int maxSeries;
+      long scrapeCpuBudgetMillis;
+      long scrapeAllocationBudgetBytes;
+      boolean lowPriorityScraping;
+      double scrapeCpuShare = 1.0;
+      long scrapeDeadlineSeconds;
+      double heapPressureThreshold;
+      List<ObjectName> lowPriorityObjectNames = new ArrayList<ObjectName>();
     }
 
-    private Config config;
+    private volatile Config config;
     private File configFile;
     private long createTimeNanoSecs = System.nanoTime();
+    // Scrapes wait for the warm-up to finish, at most this long after startDelaySeconds.
+    private static final long MAX_WARM_UP_SECONDS = 60;
+    // Set once the warm-up scrape is over, or if there is none.
+    private volatile boolean warmedUp;
 
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+    private volatile MBeanServerConnection beanConnection;
+
+    // At most this many scrapes shed load, after a scrape over the budgets.
+    private static final int MAX_SKIPPED_SCRAPES = 10;
+    private static final String DEGRADED_HELP =
+        "1 if this scrape shed load as the heap was under pressure or an earlier scrape was over the budgets.";
+    private final Object budgetLock = new Object();
+    // The samples of the last scrape if it was over the budgets and nothing is low priority, to answer the next ones.
+    private List<MetricFamilySamples> lastSamples;
+    private int scrapesToSkip;
+    // Created on the first scrape with lowPriorityScraping.
+    private ExecutorService scraperExecutor;
+    // Created on the first scrape with heapPressureThreshold.
+    private HeapPressure heapPressure;
+    // The stats of the scrapes served, not of the warm-up.
+    private final ScrapeStats.Totals scrapeTotals = new ScrapeStats.Totals();
+    private double refusedHeapPressureThreshold;
+    // The threads started for this collector, stopped by close().
+    private Thread warmUpThread;
+    private Thread rulesCacheSaver;
+    private Thread rulesCacheShutdownHook;
+    private boolean closed;
 
     public JmxCollector(File in) throws IOException, MalformedObjectNameException {
         this(in, false);
     }
 
     public JmxCollector(File in, boolean jmxUrlRequired) throws IOException, MalformedObjectNameException {
+        this(in, loadYaml(in), jmxUrlRequired);
+    }
+
+    /**
+     * @param yamlConfig the config file as parsed by {@link #loadYaml}, which the other sections are read from too.
+     */
+    public JmxCollector(File in, Map<String, Object> yamlConfig, boolean jmxUrlRequired)
+            throws MalformedObjectNameException {
         configFile = in;
         this.jmxUrlRequired = jmxUrlRequired;
-        config = loadConfig((Map<String, Object>)new Yaml().load(new FileReader(in)));
+        config = loadConfig(yamlConfig);
         config.lastUpdate = configFile.lastModified();
         exitIfJmxUrlMissing();
+        scheduleWarmUp();
+        scheduleRulesCacheSaving();
     }
 
     public JmxCollector(String yamlConfig) throws MalformedObjectNameException {
         config = loadConfig((Map<String, Object>)new Yaml().load(yamlConfig));
         jmxUrlRequired = false;
+        scheduleWarmUp();
+        scheduleRulesCacheSaving();
     }
 
     public JmxCollector(InputStream inputStream) throws MalformedObjectNameException {
         config = loadConfig((Map<String, Object>)new Yaml().load(inputStream));
         jmxUrlRequired = false;
+        scheduleWarmUp();
+        scheduleRulesCacheSaving();
+    }
+
+    /**
+     * Parse the config file, once for all its sections: the JmxCollector config and the sections of the HTTP server,
+     * remote write and the shared snapshot.
+     *
+     * @return the config, empty if the file is.
+     */
+    public static Map<String, Object> loadYaml(File configFile) throws IOException {
+        FileReader reader = new FileReader(configFile);
+        try {
+            Map<String, Object> yamlConfig = (Map<String, Object>) new Yaml().load(reader);
+            return yamlConfig != null ? yamlConfig : new HashMap<String, Object>();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Scrape the beans of the connection rather than those of the configured jmxUrl, for example the beans replayed
+     * from a {@link BeanDump}.
+     */
+    JmxCollector scrapeFrom(MBeanServerConnection beanConnection) {
+        this.beanConnection = beanConnection;
+        return this;
+    }
+
+    /**
+     * If startDelaySeconds is configured, run a scrape at the end of the delay and discard its output.
+     * This fills the rule and property caches and warms up the matching code, so that the first scrape
+     * served to Prometheus is not a cold one: scrapes get no samples until the warm-up is over, rather than running
+     * next to it on the same cold caches.
+     */
+    private void scheduleWarmUp() {
+        final long delayMillis = config.startDelaySeconds * 1000L;
+        if (delayMillis <= 0) {
+            warmedUp = true;
+            return;
+        }
+        Thread warmUp = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                    long start = System.nanoTime();
+                    ThreadCost cost = ThreadCost.start();
+                    try {
+                        scrape(getLatestConfig(), null, true);
+                    } finally {
+                        cost.record("warmup");
+                    }
+                    LOGGER.fine("Warm-up scrape took " + (System.nanoTime() - start) / 1000000L + " ms");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    LOGGER.warning("Warm-up scrape failed: " + e);
+                } finally {
+                    warmedUp = true;
+                }
+            }
+        }, "jmx_exporter-warmup");
+        warmUp.setDaemon(true);
+        warmUpThread = warmUp;
+        warmUp.start();
+    }
+
+    boolean warmedUp() {
+        return warmedUp;
+    }
+
+    /**
+     * If rulesCacheFile is configured, save the rules cache on shutdown and every rulesCacheSaveIntervalSeconds.
+     */
+    private void scheduleRulesCacheSaving() {
+        if (config.rulesCacheFile == null) {
+            return;
+        }
+        rulesCacheShutdownHook = new Thread(new Runnable() {
+            public void run() {
+                saveRulesCache();
+            }
+        }, "jmx_exporter-rules-cache-shutdown");
+        Runtime.getRuntime().addShutdownHook(rulesCacheShutdownHook);
+
+        final long intervalMillis = config.rulesCacheSaveIntervalSeconds * 1000L;
+        if (intervalMillis <= 0) {
+            return;
+        }
+        Thread saver = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalMillis);
+                        saveRulesCache();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "jmx_exporter-rules-cache-saver");
+        saver.setDaemon(true);
+        rulesCacheSaver = saver;
+        saver.start();
+    }
+
+    /**
+     * Stop the threads of this collector and the heap pressure listener, for a collector that is no longer used,
+     * such as the one of a local JVM which is gone. The rules cache is saved one last time.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (warmUpThread != null) {
+            warmUpThread.interrupt();
+        }
+        if (stopRulesCacheSaving()) {
+            saveRulesCache(config);
+        }
+        if (scraperExecutor != null) {
+            scraperExecutor.shutdownNow();
+            scraperExecutor = null;
+        }
+        if (heapPressure != null) {
+            heapPressure.release();
+            heapPressure = null;
+        }
+    }
+
+    /**
+     * Stop saving the rules cache periodically and on shutdown.
+     *
+     * @return false if the JVM is shutting down, so that the shutdown hook saves it.
+     */
+    private boolean stopRulesCacheSaving() {
+        if (rulesCacheSaver != null) {
+            rulesCacheSaver.interrupt();
+            rulesCacheSaver = null;
+        }
+        if (rulesCacheShutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(rulesCacheShutdownHook);
+            } catch (IllegalStateException e) {
+                return false;
+            }
+            rulesCacheShutdownHook = null;
+        }
+        return true;
+    }
+
+    /**
+     * Save the rules cache of the current config to the rulesCacheFile, if configured.
+     */
+    void saveRulesCache() {
+        saveRulesCache(config);
+    }
+
+    private static void saveRulesCache(Config cfg) {
+        if (cfg.rulesCacheFile == null) {
+            return;
+        }
+        try {
+            MatchedRulesCacheFile.save(cfg.rulesCacheFile, cfg.rules, cfg.rulesHash, cfg.rulesCache);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to save rules cache to " + cfg.rulesCacheFile + ": " + e);
+        }
     }
 
     private void exitIfJmxUrlMissing() {
@@ -117,8 +347,17 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
         try {
           Map<String, Object> newYamlConfig = (Map<String, Object>)new Yaml().load(fr);
+          Config oldConfig = config;
           config = loadConfig(newYamlConfig);
           config.lastUpdate = configFile.lastModified();
+          if (!closed && ((oldConfig.rulesCacheFile == null) != (config.rulesCacheFile == null)
+              || oldConfig.rulesCacheSaveIntervalSeconds != config.rulesCacheSaveIntervalSeconds)) {
+            // The saver and the shutdown hook save the current config, they only change with these settings.
+            if (stopRulesCacheSaving()) {
+              saveRulesCache(oldConfig);
+              scheduleRulesCacheSaving();
+            }
+          }
           configReloadSuccess.inc();
         } catch (Exception e) {
           LOGGER.severe("Configuration reload failed: " + e.toString());
@@ -193,8 +432,6 @@ public class JmxCollector extends Collector implements Collector.Describable {
           for(Object name : names) {
             cfg.whitelistObjectNames.add(new ObjectName((String)name));
           }
-        } else {
-          cfg.whitelistObjectNames.add(null);
         }
 
         if (yamlConfig.containsKey("blacklistObjectNames")) {
@@ -204,6 +441,61 @@ public class JmxCollector extends Collector implements Collector.Describable {
           }
         }
 
+        if (yamlConfig.containsKey("lowPriorityObjectNames")) {
+          List<Object> names = (List<Object>) yamlConfig.get("lowPriorityObjectNames");
+          for (Object name : names) {
+            cfg.lowPriorityObjectNames.add(new ObjectName((String)name));
+          }
+        }
+
+        cfg.objectNameAttributeFilter = ObjectNameAttributeFilter.create(yamlConfig);
+
+        if (yamlConfig.containsKey("rulesCacheFile")) {
+          cfg.rulesCacheFile = new File((String)yamlConfig.get("rulesCacheFile"));
+        }
+
+        cfg.maxSeriesPerFamily = getNonNegativeInt(yamlConfig, "maxSeriesPerFamily");
+        cfg.maxSeries = getNonNegativeInt(yamlConfig, "maxSeries");
+        cfg.scrapeCpuBudgetMillis = getNonNegativeLong(yamlConfig, "scrapeCpuBudgetMillis");
+        cfg.scrapeAllocationBudgetBytes = getNonNegativeLong(yamlConfig, "scrapeAllocationBudgetBytes");
+
+        if (yamlConfig.containsKey("lowPriorityScraping")) {
+          cfg.lowPriorityScraping = (Boolean)yamlConfig.get("lowPriorityScraping");
+        }
+        if (yamlConfig.containsKey("scrapeCpuShare")) {
+          try {
+            cfg.scrapeCpuShare = ((Number) yamlConfig.get("scrapeCpuShare")).doubleValue();
+          } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid number provided for scrapeCpuShare", e);
+          }
+          if (!(cfg.scrapeCpuShare > 0 && cfg.scrapeCpuShare <= 1)) {
+            throw new IllegalArgumentException("scrapeCpuShare must be above 0 and at most 1: " + cfg.scrapeCpuShare);
+          }
+        }
+        cfg.scrapeDeadlineSeconds = getNonNegativeLong(yamlConfig, "scrapeDeadlineSeconds");
+        if (yamlConfig.containsKey("heapPressureThreshold")) {
+          try {
+            cfg.heapPressureThreshold = ((Number) yamlConfig.get("heapPressureThreshold")).doubleValue();
+          } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid number provided for heapPressureThreshold", e);
+          }
+          if (!(cfg.heapPressureThreshold > 0 && cfg.heapPressureThreshold < 1)) {
+            throw new IllegalArgumentException("heapPressureThreshold must be above 0 and below 1: " + cfg.heapPressureThreshold);
+          }
+        }
+
+        if (yamlConfig.containsKey("ruleMetrics")) {
+          cfg.ruleMetrics = (Boolean)yamlConfig.get("ruleMetrics");
+        }
+
+        if (yamlConfig.containsKey("rulesCacheSaveIntervalSeconds")) {
+          try {
+            cfg.rulesCacheSaveIntervalSeconds = (Integer) yamlConfig.get("rulesCacheSaveIntervalSeconds");
+          } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid number provided for rulesCacheSaveIntervalSeconds", e);
+          }
+        }
+
       if (yamlConfig.containsKey("rules")) {
           List<Map<String,Object>> configRules = (List<Map<String,Object>>) yamlConfig.get("rules");
           for (Map<String, Object> ruleObject : configRules) {
@@ -211,7 +503,8 @@ public class JmxCollector extends Collector implements Collector.Describable {
             Rule rule = new Rule();
             cfg.rules.add(rule);
             if (yamlRule.containsKey("pattern")) {
-              rule.pattern = Pattern.compile("^.*(?:" + (String)yamlRule.get("pattern") + ").*$");
+              rule.patternString = (String)yamlRule.get("pattern");
+              rule.pattern = Pattern.compile("^.*(?:" + rule.patternString + ").*$");
             }
             if (yamlRule.containsKey("name")) {
               rule.name = (String)yamlRule.get("name");
@@ -233,6 +526,9 @@ public class JmxCollector extends Collector implements Collector.Describable {
             if (yamlRule.containsKey("cache")) {
               rule.cache = (Boolean)yamlRule.get("cache");
             }
+            if (yamlRule.containsKey("lowPriority")) {
+              rule.lowPriority = (Boolean)yamlRule.get("lowPriority");
+            }
             if (yamlRule.containsKey("type")) {
               String t = (String)yamlRule.get("type");
               // Gracefully handle switch to OM data model.
@@ -267,23 +563,85 @@ public class JmxCollector extends Collector implements Collector.Describable {
           cfg.rules.add(new Rule());
         }
 
+        if (!yamlConfig.containsKey("whitelistObjectNames")) {
+          // Only query the beans that can be matched by at least one rule.
+          cfg.whitelistObjectNames.addAll(ObjectNameQueries.fromRules(cfg.rules));
+        }
+
         cfg.rulesCache = new MatchedRulesCache(cfg.rules);
+        cfg.ruleStats = new RuleStats(cfg.rules.size());
+        if (cfg.rulesCacheFile != null) {
+          // Entries of beans which no longer exist are evicted by the first scrape.
+          cfg.rulesHash = MatchedRulesCacheFile.hash(cfg.rules, cfg.lowercaseOutputName, cfg.lowercaseOutputLabelNames);
+          MatchedRulesCacheFile.load(cfg.rulesCacheFile, cfg.rules, cfg.rulesHash, cfg.rulesCache);
+        }
 
         return cfg;
 
     }
 
+    private static int getNonNegativeInt(Map<String, Object> yamlConfig, String key) {
+      if (!yamlConfig.containsKey(key)) {
+        return 0;
+      }
+      int value;
+      try {
+        value = (Integer) yamlConfig.get(key);
+      } catch (ClassCastException e) {
+        throw new IllegalArgumentException("Invalid number provided for " + key, e);
+      }
+      if (value < 0) {
+        throw new IllegalArgumentException(key + " must not be negative: " + value);
+      }
+      return value;
+    }
+
+    private static long getNonNegativeLong(Map<String, Object> yamlConfig, String key) {
+      if (!yamlConfig.containsKey(key)) {
+        return 0;
+      }
+      long value;
+      try {
+        value = ((Number) yamlConfig.get(key)).longValue();
+      } catch (ClassCastException e) {
+        throw new IllegalArgumentException("Invalid number provided for " + key, e);
+      }
+      if (value < 0) {
+        throw new IllegalArgumentException(key + " must not be negative: " + value);
+      }
+      return value;
+    }
+
+    // The names of metrics and labels, and attribute names converted to snake case, of all scrapes.
+    private static final int NAME_CACHE_SIZE = 10000;
+    static final NameCache SAFE_NAMES = new NameCache(NAME_CACHE_SIZE) {
+      String transform(String name) {
+        return safeName(name, false);
+      }
+    };
+    static final NameCache LOWERCASE_SAFE_NAMES = new NameCache(NAME_CACHE_SIZE) {
+      String transform(String name) {
+        return safeName(name, true);
+      }
+    };
+    static final NameCache SNAKE_CASE_NAMES = new NameCache(NAME_CACHE_SIZE) {
+      String transform(String name) {
+        return toSnakeAndLowerCase(name);
+      }
+    };
+
     static String toSnakeAndLowerCase(String attrName) {
       if (attrName == null || attrName.isEmpty()) {
         return attrName;
       }
-      char firstChar = attrName.subSequence(0, 1).charAt(0);
+      char firstChar = attrName.charAt(0);
       boolean prevCharIsUpperCaseOrUnderscore = Character.isUpperCase(firstChar) || firstChar == '_';
-      StringBuilder resultBuilder = new StringBuilder(attrName.length()).append(Character.toLowerCase(firstChar));
-      for (char attrChar : attrName.substring(1).toCharArray()) {
+      StringBuilder resultBuilder = new StringBuilder(attrName.length() + 8).append(Character.toLowerCase(firstChar));
+      for (int i = 1; i < attrName.length(); i++) {
+        char attrChar = attrName.charAt(i);
         boolean charIsUpperCase = Character.isUpperCase(attrChar);
         if (!prevCharIsUpperCaseOrUnderscore && charIsUpperCase) {
-          resultBuilder.append("_");
+          resultBuilder.append('_');
         }
         resultBuilder.append(Character.toLowerCase(attrChar));
         prevCharIsUpperCaseOrUnderscore = charIsUpperCase || attrChar == '_';
@@ -297,31 +655,52 @@ public class JmxCollector extends Collector implements Collector.Describable {
    * @return
    */
   static String safeName(String name) {
+      return safeName(name, false);
+  }
+
+  /**
+   * Change invalid chars to underscore, merge underscores, and optionally lowercase, in one pass. The name is returned
+   * as it is if nothing needs to change.
+   */
+  static String safeName(String name, boolean lowercase) {
       if (name == null) {
         return null;
       }
-      boolean prevCharIsUnderscore = false;
-      StringBuilder safeNameBuilder = new StringBuilder(name.length());
-      if (!name.isEmpty() && Character.isDigit(name.charAt(0))) {
+      int length = name.length();
+      boolean numericPrefix = length > 0 && Character.isDigit(name.charAt(0));
+      boolean changed = numericPrefix;
+      char prevChar = 0;
+      for (int i = 0; i < length && !changed; i++) {
+        char nameChar = name.charAt(i);
+        changed = !isLegalCharacter(nameChar) || (nameChar == '_' && prevChar == '_')
+            || (lowercase && nameChar >= 'A' && nameChar <= 'Z');
+        prevChar = nameChar;
+      }
+      if (!changed) {
+        return name;
+      }
+
+      char[] safeChars = new char[length + 1];
+      int safeLength = 0;
+      if (numericPrefix) {
         // prevent a numeric prefix.
-        safeNameBuilder.append("_");
-      }
-      for (char nameChar : name.toCharArray()) {
-        boolean isUnsafeChar = !JmxCollector.isLegalCharacter(nameChar);
-        if ((isUnsafeChar || nameChar == '_')) {
-          if (prevCharIsUnderscore) {
-            continue;
-          } else {
-            safeNameBuilder.append("_");
+        safeChars[safeLength++] = '_';
+      }
+      boolean prevCharIsUnderscore = false;
+      for (int i = 0; i < length; i++) {
+        char nameChar = name.charAt(i);
+        if (nameChar == '_' || !isLegalCharacter(nameChar)) {
+          if (!prevCharIsUnderscore) {
+            safeChars[safeLength++] = '_';
             prevCharIsUnderscore = true;
           }
         } else {
-          safeNameBuilder.append(nameChar);
+          // Only ASCII letters are left, so lowercasing does not depend on the locale.
+          safeChars[safeLength++] = lowercase && nameChar >= 'A' && nameChar <= 'Z' ? (char) (nameChar + ('a' - 'A')) : nameChar;
           prevCharIsUnderscore = false;
         }
       }
-
-      return safeNameBuilder.toString();
+      return new String(safeChars, 0, safeLength);
     }
 
   private static boolean isLegalCharacter(char input) {
@@ -332,26 +711,66 @@ public class JmxCollector extends Collector implements Collector.Describable {
             (input >= '0' && input <= '9'));
   }
 
+    // [] and () are special in regexes, so swtich to <>.
+    private static String angleBrackets(String s) {
+      return "<" + s.substring(1, s.length() - 1) + ">";
+    }
+
+    /**
+     * @return the start of the names the rule patterns are matched against, up to the attribute name.
+     */
+    static String beanName(String domain, Map<String, String> beanProperties, LinkedList<String> attrKeys) {
+      return domain + angleBrackets(beanProperties.toString()) + angleBrackets(attrKeys.toString());
+    }
+
     class Receiver implements JmxScraper.MBeanReceiver {
       Map<String, MetricFamilySamples> metricFamilySamplesMap =
         new HashMap<String, MetricFamilySamples>();
 
       Config config;
       MatchedRulesCache.StalenessTracker stalenessTracker;
+      MetricNameFilter metricNameFilter;
+      ScrapeStats stats;
+      RuleStats ruleStats;
+      // Null if the number of series is not limited.
+      SeriesLimiter seriesLimiter;
+      // Under heap pressure, values of low priority rules are dropped and no rules are cached.
+      boolean degraded;
+      // After a scrape over the budgets, values of low priority rules are dropped.
+      boolean shedLowPriority;
+
+      // Without ruleMetrics, the match time is measured for one value in this many, and scaled up.
+      private static final int MATCH_TIMING_SAMPLE = 64;
+      // What the time of each pattern of the current value counts for, 0 if it is not measured.
+      private int matchTimingWeight;
 
       private static final char SEP = '_';
 
       Receiver(Config config, MatchedRulesCache.StalenessTracker stalenessTracker) {
-        this.config = config;
-        this.stalenessTracker = stalenessTracker;
+        this(config, stalenessTracker, null);
+      }
+
+      Receiver(Config config, MatchedRulesCache.StalenessTracker stalenessTracker, MetricNameFilter metricNameFilter) {
+        this(config, stalenessTracker, metricNameFilter, new ScrapeStats());
       }
 
-      // [] and () are special in regexes, so swtich to <>.
-      private String angleBrackets(String s) {
-        return "<" + s.substring(1, s.length() - 1) + ">";
+      Receiver(Config config, MatchedRulesCache.StalenessTracker stalenessTracker, MetricNameFilter metricNameFilter,
+               ScrapeStats stats) {
+        this.config = config;
+        this.stalenessTracker = stalenessTracker;
+        this.metricNameFilter = metricNameFilter;
+        this.stats = stats;
+        this.ruleStats = new RuleStats(config.rules.size());
+        if (config.maxSeriesPerFamily > 0 || config.maxSeries > 0) {
+          this.seriesLimiter = new SeriesLimiter(config.maxSeriesPerFamily, config.maxSeries);
+        }
       }
 
       void addSample(MetricFamilySamples.Sample sample, Type type, String help) {
+        if (metricNameFilter != null && !metricNameFilter.includes(sample.name)) {
+          return;
+        }
+        stats.samples++;
         MetricFamilySamples mfs = metricFamilySamplesMap.get(sample.name);
         if (mfs == null) {
           // JmxScraper.MBeanReceiver is only called from one thread,
@@ -359,13 +778,28 @@ public class JmxCollector extends Collector implements Collector.Describable {
           mfs = new MetricFamilySamples(sample.name, type, help, new ArrayList<MetricFamilySamples.Sample>());
           metricFamilySamplesMap.put(sample.name, mfs);
         }
-        mfs.samples.add(sample);
+        if (seriesLimiter != null) {
+          // Added to the family once all samples are known.
+          seriesLimiter.add(sample);
+        } else {
+          mfs.samples.add(sample);
+        }
+      }
+
+      /**
+       * @return the samples of the scrape, once all beans are recorded.
+       */
+      Map<String, MetricFamilySamples> metricFamilySamples() {
+        if (seriesLimiter != null) {
+          seriesLimiter.apply(metricFamilySamplesMap);
+        }
+        return metricFamilySamplesMap;
       }
 
       // Add the matched rule to the cached rules and tag it as not stale
       // if the rule is configured to be cached
       private void addToCache(final Rule rule, final String cacheKey, final MatchedRule matchedRule) {
-        if (rule.cache) {
+        if (rule.cache && !degraded) {
           config.rulesCache.put(rule, cacheKey, matchedRule);
           stalenessTracker.add(rule, cacheKey);
         }
@@ -374,7 +808,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
       private MatchedRule defaultExport(
           String matchName,
           String domain,
-          LinkedHashMap<String, String> beanProperties,
+          Map<String, String> beanProperties,
           LinkedList<String> attrKeys,
           String attrName,
           String help,
@@ -393,11 +827,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
         }
         name.append(SEP);
         name.append(attrName);
-        String fullname = safeName(name.toString());
-
-        if (config.lowercaseOutputName) {
-          fullname = fullname.toLowerCase();
-        }
+        String fullname = (config.lowercaseOutputName ? LOWERCASE_SAFE_NAMES : SAFE_NAMES).get(name.toString());
 
         List<String> labelNames = new ArrayList<String>();
         List<String> labelValues = new ArrayList<String>();
@@ -407,11 +837,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
             iter.next();
             while (iter.hasNext()) {
               Map.Entry<String, String> entry = iter.next();
-              String labelName = safeName(entry.getKey());
-              if (config.lowercaseOutputLabelNames) {
-                labelName = labelName.toLowerCase();
-              }
-              labelNames.add(labelName);
+              labelNames.add((config.lowercaseOutputLabelNames ? LOWERCASE_SAFE_NAMES : SAFE_NAMES).get(entry.getKey()));
               labelValues.add(entry.getValue());
             }
         }
@@ -421,24 +847,57 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
       public void recordBean(
           String domain,
-          LinkedHashMap<String, String> beanProperties,
+          Map<String, String> beanProperties,
           LinkedList<String> attrKeys,
           String attrName,
           String attrType,
           String attrDescription,
           Object beanValue) {
+        stats.values++;
+        if (config.ruleMetrics) {
+          matchTimingWeight = 1;
+        } else {
+          matchTimingWeight = stats.values % MATCH_TIMING_SAMPLE == 1 ? MATCH_TIMING_SAMPLE : 0;
+        }
+        if (matchTimingWeight == 0) {
+          matchBean(domain, beanProperties, attrKeys, attrName, attrDescription, beanValue);
+          return;
+        }
+        long start = System.nanoTime();
+        try {
+          matchBean(domain, beanProperties, attrKeys, attrName, attrDescription, beanValue);
+        } finally {
+          stats.matchNanos += (System.nanoTime() - start) * matchTimingWeight;
+        }
+      }
 
-        String beanName = domain + angleBrackets(beanProperties.toString()) + angleBrackets(attrKeys.toString());
+      private void matchBean(
+          String domain,
+          Map<String, String> beanProperties,
+          LinkedList<String> attrKeys,
+          String attrName,
+          String attrDescription,
+          Object beanValue) {
+        String beanName = beanName(domain, beanProperties, attrKeys);
         // attrDescription tends not to be useful, so give the fully qualified name too.
         String help = attrDescription + " (" + beanName + attrName + ")";
-        String attrNameSnakeCase = toSnakeAndLowerCase(attrName);
+        // Only converted if a rule asks for it.
+        String attrNameSnakeCase = null;
 
         MatchedRule matchedRule = MatchedRule.unmatched();
+        boolean lowPriority = false;
 
-        for (Rule rule : config.rules) {
+        int ruleCount = metricNameFilter != null ? metricNameFilter.ruleCount() : config.rules.size();
+        for (int ruleIndex = 0; ruleIndex < ruleCount; ruleIndex++) {
+          Rule rule = config.rules.get(ruleIndex);
+          stats.evaluations++;
+          ruleStats.evaluations[ruleIndex]++;
           // Rules with bean values cannot be properly cached (only the value from the first scrape will be cached).
           // If caching for the rule is enabled, replace the value with a dummy <cache> to avoid caching different values at different times.
           Object matchBeanValue = rule.cache ? "<cache>" : beanValue;
+          if (rule.attrNameSnakeCase && attrNameSnakeCase == null) {
+            attrNameSnakeCase = SNAKE_CASE_NAMES.get(attrName);
+          }
 
           String matchName = beanName + (rule.attrNameSnakeCase ? attrNameSnakeCase : attrName) + ": " + matchBeanValue;
 
@@ -446,8 +905,11 @@ public class JmxCollector extends Collector implements Collector.Describable {
             MatchedRule cachedRule = config.rulesCache.get(rule, matchName);
             if (cachedRule != null) {
               stalenessTracker.add(rule, matchName);
+              ruleStats.cacheHits[ruleIndex]++;
               if (cachedRule.isMatched()) {
+                ruleStats.matches[ruleIndex]++;
                 matchedRule = cachedRule;
+                lowPriority = rule.lowPriority;
                 break;
               }
 
@@ -460,11 +922,21 @@ public class JmxCollector extends Collector implements Collector.Describable {
           Matcher matcher = null;
           if (rule.pattern != null) {
             matcher = rule.pattern.matcher(matchName);
-            if (!matcher.matches()) {
+            stats.regexes++;
+            boolean matches;
+            if (matchTimingWeight == 0) {
+              matches = matcher.matches();
+            } else {
+              long matchStart = System.nanoTime();
+              matches = matcher.matches();
+              ruleStats.matchNanos[ruleIndex] += (System.nanoTime() - matchStart) * matchTimingWeight;
+            }
+            if (!matches) {
               addToCache(rule, matchName, MatchedRule.unmatched());
               continue;
             }
           }
+          ruleStats.matches[ruleIndex]++;
 
           Double value = null;
           if (rule.value != null && !rule.value.isEmpty()) {
@@ -481,17 +953,15 @@ public class JmxCollector extends Collector implements Collector.Describable {
           if (rule.name == null) {
             matchedRule = defaultExport(matchName, domain, beanProperties, attrKeys, rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, help, value, rule.valueFactor, rule.type);
             addToCache(rule, matchName, matchedRule);
+            lowPriority = rule.lowPriority;
             break;
           }
 
           // Matcher is set below here due to validation in the constructor.
-          String name = safeName(matcher.replaceAll(rule.name));
+          String name = (config.lowercaseOutputName ? LOWERCASE_SAFE_NAMES : SAFE_NAMES).get(matcher.replaceAll(rule.name));
           if (name.isEmpty()) {
             return;
           }
-          if (config.lowercaseOutputName) {
-            name = name.toLowerCase();
-          }
 
           // Set the help.
           if (rule.help != null) {
@@ -506,11 +976,9 @@ public class JmxCollector extends Collector implements Collector.Describable {
               final String unsafeLabelName = rule.labelNames.get(i);
               final String labelValReplacement = rule.labelValues.get(i);
               try {
-                String labelName = safeName(matcher.replaceAll(unsafeLabelName));
+                String labelName = (config.lowercaseOutputLabelNames ? LOWERCASE_SAFE_NAMES : SAFE_NAMES)
+                    .get(matcher.replaceAll(unsafeLabelName));
                 String labelValue = matcher.replaceAll(labelValReplacement);
-                if (config.lowercaseOutputLabelNames) {
-                  labelName = labelName.toLowerCase();
-                }
                 if (!labelName.isEmpty() && !labelValue.isEmpty()) {
                   labelNames.add(labelName);
                   labelValues.add(labelValue);
@@ -524,12 +992,17 @@ public class JmxCollector extends Collector implements Collector.Describable {
 
           matchedRule = new MatchedRule(name, matchName, rule.type, help, labelNames, labelValues, value, rule.valueFactor);
           addToCache(rule, matchName, matchedRule);
+          lowPriority = rule.lowPriority;
           break;
         }
 
         if (matchedRule.isUnmatched()) {
           return;
         }
+        if ((degraded || shedLowPriority) && lowPriority) {
+          // Still matched against the rules, so that the value is not exported by a later rule instead.
+          return;
+        }
 
         Number value;
         if (matchedRule.value != null) {
@@ -553,20 +1026,167 @@ public class JmxCollector extends Collector implements Collector.Describable {
     }
 
   public List<MetricFamilySamples> collect() {
+      return collect(null);
+  }
+
+  /**
+   * Collect only the samples with the given names, like CollectorRegistry.filteredMetricFamilySamples() does. Unlike
+   * filtering the output of collect(), this skips the beans and rules that cannot produce any of the names.
+   *
+   * @param names the sample names to collect, or null or empty to collect all samples.
+   */
+  public List<MetricFamilySamples> collect(Set<String> names) {
       // Take a reference to the current config and collect with this one
       // (to avoid race conditions in case another thread reloads the config in the meantime)
       Config config = getLatestConfig();
 
+      long elapsedSeconds = (System.nanoTime() - createTimeNanoSecs) / 1000000000L;
+      if ((config.startDelaySeconds > 0) && (elapsedSeconds < config.startDelaySeconds
+          || (!warmedUp && elapsedSeconds < config.startDelaySeconds + MAX_WARM_UP_SECONDS))) {
+        LOGGER.fine("JMXCollector waiting for startDelaySeconds and the warm-up, returning no metrics");
+        return new ArrayList<MetricFamilySamples>();
+      }
+      if (names == null || names.isEmpty()) {
+        return scrape(config);
+      }
+      List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+      for (MetricFamilySamples mfs : scrape(config, new MetricNameFilter(config.rules, config.lowercaseOutputName, names), false)) {
+        // The samples from beans are already filtered, this leaves the jmx_scrape_* and jmx_rule_* samples.
+        if (names.contains(mfs.name) || names.contains(mfs.name + "_total") || names.contains(mfs.name + "_count")
+            || names.contains(mfs.name + "_sum") || names.contains(mfs.name + "_bucket")
+            || !(mfs.name.startsWith("jmx_scrape_") || mfs.name.startsWith("jmx_rule_"))) {
+          mfsList.add(mfs);
+        }
+      }
+      return mfsList;
+    }
+
+    private List<MetricFamilySamples> scrape(Config config) {
+      return scrape(config, null, false);
+    }
+
+    /**
+     * Scrape the beans of the current config into the receiver, rather than matching them against the rules.
+     */
+    void scrape(JmxScraper.MBeanReceiver receiver) throws Exception {
+      Config config = getLatestConfig();
+      new JmxScraper(config.jmxUrl, config.username, config.password, config.ssl,
+              config.whitelistObjectNames, config.blacklistObjectNames, config.objectNameAttributeFilter,
+              receiver, new JmxMBeanPropertyCache(), null, beanConnection, new ScrapeStats()).doScrape();
+    }
+
+    /**
+     * @return the rules of the current config.
+     */
+    List<Rule> rules() {
+      return getLatestConfig().rules;
+    }
+
+    /**
+     * @return a receiver for the beans of one scrape with the current config, to feed beans to it directly.
+     */
+    Receiver newReceiver() {
+      return new Receiver(getLatestConfig(), new MatchedRulesCache.StalenessTracker());
+    }
+
+    /**
+     * Scrape on the current thread, or on the scraper thread with lowPriorityScraping.
+     *
+     * @param warmUp true for the warm-up scrape, which is not held to the budgets: it is the most expensive scrape,
+     * and the scrapes after it should not shed load for it.
+     */
+    private List<MetricFamilySamples> scrape(final Config config, final MetricNameFilter metricNameFilter,
+                                             final boolean warmUp) {
+      if (!config.lowPriorityScraping) {
+        return scrapeOnThisThread(config, metricNameFilter, warmUp);
+      }
+      Future<List<MetricFamilySamples>> future = scraperExecutor().submit(new Callable<List<MetricFamilySamples>>() {
+        public List<MetricFamilySamples> call() {
+          ThreadCost cost = ThreadCost.start();
+          try {
+            return scrapeOnThisThread(config, metricNameFilter, warmUp);
+          } finally {
+            cost.record("scraper");
+          }
+        }
+      });
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        future.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the scrape", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    /**
+     * @return the executor of the scraper thread, which runs at the lowest priority so that the threads of the
+     * application go first.
+     */
+    private synchronized ExecutorService scraperExecutor() {
+      if (scraperExecutor == null) {
+        scraperExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "jmx_exporter-scraper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        });
+      }
+      return scraperExecutor;
+    }
+
+    private List<MetricFamilySamples> scrapeOnThisThread(Config config, MetricNameFilter metricNameFilter,
+                                                         boolean warmUp) {
+      boolean budgeted = !warmUp && metricNameFilter == null
+          && (config.scrapeCpuBudgetMillis > 0 || config.scrapeAllocationBudgetBytes > 0);
+      boolean shedLowPriority = false;
+      if (budgeted) {
+        synchronized (budgetLock) {
+          if (scrapesToSkip > 0) {
+            scrapesToSkip--;
+            if (lastSamples != null) {
+              List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(lastSamples);
+              if (scrapesToSkip == 0) {
+                lastSamples = null;
+              }
+              mfsList.add(budgetSkipped(1));
+              return mfsList;
+            }
+            shedLowPriority = true;
+          }
+        }
+      }
+      ThreadCost cost = ThreadCost.start();
+      HeapPressure heapPressure = heapPressure(config);
+      boolean degraded = heapPressure != null && heapPressure.isUnderPressure();
       MatchedRulesCache.StalenessTracker stalenessTracker = new MatchedRulesCache.StalenessTracker();
-      Receiver receiver = new Receiver(config, stalenessTracker);
+      ScrapeStats stats = new ScrapeStats();
+      Receiver receiver = new Receiver(config, stalenessTracker, metricNameFilter, stats);
+      receiver.degraded = degraded;
+      receiver.shedLowPriority = shedLowPriority;
       JmxScraper scraper = new JmxScraper(config.jmxUrl, config.username, config.password, config.ssl,
-              config.whitelistObjectNames, config.blacklistObjectNames, receiver, jmxMBeanPropertyCache);
+              config.whitelistObjectNames, config.blacklistObjectNames, config.objectNameAttributeFilter,
+              receiver, jmxMBeanPropertyCache, metricNameFilter, beanConnection, stats);
+      if (degraded || shedLowPriority) {
+        scraper.skipping(config.lowPriorityObjectNames);
+      }
+      ScrapePacer pacer = null;
+      if (config.scrapeCpuShare < 1) {
+        pacer = new ScrapePacer(config.scrapeCpuShare, config.scrapeDeadlineSeconds * 1000000000L);
+        scraper.pacedBy(pacer);
+      }
       long start = System.nanoTime();
       double error = 0;
-      if ((config.startDelaySeconds > 0) &&
-        ((start - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds)) {
-        throw new IllegalStateException("JMXCollector waiting for startDelaySeconds");
-      }
       try {
         scraper.doScrape();
       } catch (Exception e) {
@@ -575,14 +1195,30 @@ public class JmxCollector extends Collector implements Collector.Describable {
         e.printStackTrace(new PrintWriter(sw));
         LOGGER.severe("JMX scrape failed: " + sw.toString());
       }
-      config.rulesCache.evictStaleEntries(stalenessTracker);
+      if (metricNameFilter == null) {
+        // A filtered scrape does not see all beans, so it cannot tell which entries are stale.
+        long evictStart = System.nanoTime();
+        config.rulesCache.evictStaleEntries(stalenessTracker);
+        stats.evictNanos += System.nanoTime() - evictStart;
+      }
+      if (degraded) {
+        shedCaches(config);
+      }
+      if (pacer != null) {
+        stats.pacingNanos = pacer.sleptNanos();
+      }
+      if (!warmUp) {
+        stats.observe(scrapeTotals);
+      }
+      config.ruleStats.add(receiver.ruleStats);
 
       List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
-      mfsList.addAll(receiver.metricFamilySamplesMap.values());
+      mfsList.addAll(receiver.metricFamilySamples().values());
       List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "jmx_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
       mfsList.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", samples));
+      mfsList.addAll(scrapeTotals.metricFamilySamples());
 
       samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
@@ -592,17 +1228,173 @@ public class JmxCollector extends Collector implements Collector.Describable {
       samples.add(new MetricFamilySamples.Sample(
               "jmx_scrape_cached_beans", new ArrayList<String>(), new ArrayList<String>(), stalenessTracker.cachedCount()));
       mfsList.add(new MetricFamilySamples("jmx_scrape_cached_beans", Type.GAUGE, "Number of beans with their matching rule cached", samples));
+      if (receiver.seriesLimiter != null) {
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        for (Map.Entry<String, Integer> dropped : receiver.seriesLimiter.dropped().entrySet()) {
+          samples.add(new MetricFamilySamples.Sample("jmx_scrape_series_dropped", Collections.singletonList("family"),
+              Collections.singletonList(dropped.getKey()), dropped.getValue()));
+        }
+        mfsList.add(new MetricFamilySamples("jmx_scrape_series_dropped", Type.GAUGE,
+            "Number of series dropped by this scrape, as their family or the scrape had too many.", samples));
+      }
+      if (config.ruleMetrics) {
+        mfsList.addAll(config.ruleStats.metricFamilySamples(config.rules));
+      }
+      if (heapPressure != null || budgeted) {
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+            "jmx_scrape_degraded", new ArrayList<String>(), new ArrayList<String>(), degraded || shedLowPriority ? 1 : 0));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_degraded", Type.GAUGE, DEGRADED_HELP, samples));
+      }
+
+      long cpuNanos = cost.cpuNanos();
+      long allocatedBytes = cost.allocatedBytes();
+      if (cpuNanos >= 0) {
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+            "jmx_scrape_cpu_seconds", new ArrayList<String>(), new ArrayList<String>(), cpuNanos / 1.0E9));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_cpu_seconds", Type.GAUGE, "CPU time this JMX scrape took, in seconds.", samples));
+      }
+      if (allocatedBytes >= 0) {
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+            "jmx_scrape_allocated_bytes", new ArrayList<String>(), new ArrayList<String>(), allocatedBytes));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_allocated_bytes", Type.GAUGE, "Bytes this JMX scrape allocated.", samples));
+      }
+      if (budgeted) {
+        enforceBudgets(config, cpuNanos, allocatedBytes, mfsList);
+        mfsList.add(budgetSkipped(0));
+      }
       return mfsList;
     }
 
+    /**
+     * @return the heap pressure of the current config, or null if heapPressureThreshold is not configured.
+     */
+    HeapPressure heapPressure() {
+      return heapPressure(getLatestConfig());
+    }
+
+    private synchronized HeapPressure heapPressure(Config config) {
+      if (heapPressure != null && heapPressure.fraction() != config.heapPressureThreshold) {
+        heapPressure.release();
+        heapPressure = null;
+      }
+      if (heapPressure == null && config.heapPressureThreshold > 0 && !closed
+          && config.heapPressureThreshold != refusedHeapPressureThreshold) {
+        heapPressure = HeapPressure.acquire(config.heapPressureThreshold);
+        if (heapPressure == null) {
+          // Another collector of the JVM uses another threshold, do not ask on every scrape.
+          refusedHeapPressureThreshold = config.heapPressureThreshold;
+        }
+      }
+      return heapPressure;
+    }
+
+    /**
+     * Free the memory of the caches, which the next scrapes fill again once the heap is no longer under pressure.
+     */
+    private void shedCaches(Config config) {
+      config.rulesCache.clear();
+      jmxMBeanPropertyCache.clear();
+      SAFE_NAMES.clear();
+      LOWERCASE_SAFE_NAMES.clear();
+      SNAKE_CASE_NAMES.clear();
+    }
+
+    /**
+     * If the scrape used more than the budgets, the next scrapes shed the low priority rules and beans, like under heap
+     * pressure, so that the average cost of a scrape stays within the budgets. If nothing is low priority, the next
+     * scrapes are answered with the samples of this one instead, with the time of this one.
+     */
+    private void enforceBudgets(Config config, long cpuNanos, long allocatedBytes, List<MetricFamilySamples> mfsList) {
+      double overBudget = 0;
+      if (config.scrapeCpuBudgetMillis > 0 && cpuNanos >= 0) {
+        overBudget = cpuNanos / (config.scrapeCpuBudgetMillis * 1.0E6);
+      }
+      if (config.scrapeAllocationBudgetBytes > 0 && allocatedBytes >= 0) {
+        overBudget = Math.max(overBudget, allocatedBytes / (double) config.scrapeAllocationBudgetBytes);
+      }
+      int skip = overBudget > 1 ? (int) Math.min(Math.ceil(overBudget) - 1, MAX_SKIPPED_SCRAPES) : 0;
+      boolean shedding = hasLowPriority(config);
+      if (skip > 0) {
+        LOGGER.warning("JMX scrape used " + cpuNanos / 1000000L + " ms of CPU and allocated " + allocatedBytes
+            + " bytes, over the budget of " + config.scrapeCpuBudgetMillis + " ms and "
+            + config.scrapeAllocationBudgetBytes + " bytes. "
+            + (shedding ? "Shedding the low priority rules and beans in the next " + skip + " scrapes."
+                : "Answering the next " + skip + " scrapes with its samples."));
+      }
+      synchronized (budgetLock) {
+        lastSamples = skip > 0 && !shedding ? timestamped(mfsList) : null;
+        scrapesToSkip = skip;
+      }
+    }
+
+    private static boolean hasLowPriority(Config config) {
+      if (!config.lowPriorityObjectNames.isEmpty()) {
+        return true;
+      }
+      for (Rule rule : config.rules) {
+        if (rule.lowPriority) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the samples with the current time as their timestamp, so that they are not taken for newer ones when
+     * they are served again.
+     */
+    private static List<MetricFamilySamples> timestamped(List<MetricFamilySamples> mfsList) {
+      Long now = System.currentTimeMillis();
+      List<MetricFamilySamples> timestamped = new ArrayList<MetricFamilySamples>(mfsList.size());
+      for (MetricFamilySamples mfs : mfsList) {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(mfs.samples.size());
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+          samples.add(new MetricFamilySamples.Sample(sample.name, sample.labelNames, sample.labelValues, sample.value,
+              sample.timestampMs != null ? sample.timestampMs : now));
+        }
+        timestamped.add(new MetricFamilySamples(mfs.name, mfs.type, mfs.help, samples));
+      }
+      return timestamped;
+    }
+
+    private static MetricFamilySamples budgetSkipped(double skipped) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "jmx_scrape_budget_skipped", new ArrayList<String>(), new ArrayList<String>(), skipped));
+      return new MetricFamilySamples("jmx_scrape_budget_skipped", Type.GAUGE,
+          "1 if this scrape was skipped and the samples are from an earlier scrape, as that was over the budgets.", samples);
+    }
+
     public List<MetricFamilySamples> describe() {
       List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.addAll(scrapeTotals.metricFamilySamples());
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_cached_beans", Type.GAUGE, "Number of beans with their matching rule cached", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_series_dropped", Type.GAUGE, "Number of series dropped by this scrape, as their family or the scrape had too many.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_cpu_seconds", Type.GAUGE, "CPU time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_allocated_bytes", Type.GAUGE, "Bytes this JMX scrape allocated.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_degraded", Type.GAUGE, DEGRADED_HELP, new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_budget_skipped", Type.GAUGE, "1 if this scrape was skipped and the samples are from an earlier scrape, as that was over the budgets.", new ArrayList<MetricFamilySamples.Sample>()));
+      if (config.ruleMetrics) {
+        for (String name : RuleStats.metricFamilyNames()) {
+          sampleFamilies.add(new MetricFamilySamples(name, Type.COUNTER, "", new ArrayList<MetricFamilySamples.Sample>()));
+        }
+      }
       return sampleFamilies;
     }
 
+    /**
+     * @return the evaluations, matches, cache hits and match time of each rule of the current config, as a table.
+     */
+    public String ruleStats() {
+      Config config = getLatestConfig();
+      return config.ruleStats.render(config.rules);
+    }
+
     /**
      * Convenience function to run standalone.
      */
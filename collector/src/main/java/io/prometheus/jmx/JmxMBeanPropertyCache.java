@@ -1,71 +1,218 @@
 package io.prometheus.jmx;
 
 import javax.management.ObjectName;
-import java.util.LinkedHashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This object stores a mapping of mBean objectNames to mBean key property lists. The main purpose of it is to reduce
- * the frequency with which we invoke PROPERTY_PATTERN when discovering mBeans.
+ * the frequency with which we parse the key property list when discovering mBeans.
+ * <p>
+ * Entries are evicted by generation: every lookup marks the bean as seen in the current generation, and
+ * {@link #evictUnseenMBeans()} at the end of a full scrape removes the beans not seen since the previous call. As long
+ * as no bean disappears, which is the common case, this does not have to look at the cached beans at all.
  */
 class JmxMBeanPropertyCache {
-    private static final Pattern PROPERTY_PATTERN = Pattern.compile(
-            "([^,=:\\*\\?]+)" + // Name - non-empty, anything but comma, equals, colon, star, or question mark
-                    "=" +  // Equals
-                    "(" + // Either
-                    "\"" + // Quoted
-                    "(?:" + // A possibly empty sequence of
-                    "[^\\\\\"]*" + // Greedily match anything but backslash or quote
-                    "(?:\\\\.)?" + // Greedily see if we can match an escaped sequence
-                    ")*" +
-                    "\"" +
-                    "|" + // Or
-                    "[^,=:\"]*" + // Unquoted - can be empty, anything but comma, equals, colon, or quote
-                    ")");
-
     // Implement a version of ObjectName.getKeyPropertyList that returns the
     // properties in the ordered they were added (the ObjectName stores them
     // in the order they were added).
-    private final Map<ObjectName, LinkedHashMap<String, String>> keyPropertiesPerBean;
+    private final ConcurrentMap<ObjectName, KeyProperties> keyPropertiesPerBean =
+            new ConcurrentHashMap<ObjectName, KeyProperties>();
+    // Property keys repeat across beans, like type and name, so each is stored once.
+    private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
+    private volatile int generation;
+    private final AtomicInteger seenInGeneration = new AtomicInteger();
 
     public JmxMBeanPropertyCache() {
-        this.keyPropertiesPerBean = new ConcurrentHashMap<ObjectName, LinkedHashMap<String, String>>();
     }
 
-    Map<ObjectName, LinkedHashMap<String, String>> getKeyPropertiesPerBean() {
+    Map<ObjectName, ? extends Map<String, String>> getKeyPropertiesPerBean() {
         return keyPropertiesPerBean;
     }
 
-    public LinkedHashMap<String, String> getKeyPropertyList(ObjectName mbeanName) {
-        LinkedHashMap<String, String> keyProperties = keyPropertiesPerBean.get(mbeanName);
+    public Map<String, String> getKeyPropertyList(ObjectName mbeanName) {
+        KeyProperties keyProperties = keyPropertiesPerBean.get(mbeanName);
         if (keyProperties == null) {
-            keyProperties = new LinkedHashMap<String, String>();
-            String properties = mbeanName.getKeyPropertyListString();
-            Matcher match = PROPERTY_PATTERN.matcher(properties);
-            while (match.lookingAt()) {
-                keyProperties.put(match.group(1), match.group(2));
-                properties = properties.substring(match.end());
-                if (properties.startsWith(",")) {
-                    properties = properties.substring(1);
-                }
-                match.reset(properties);
+            keyProperties = new KeyProperties(parse(mbeanName.getKeyPropertyListString()));
+            KeyProperties previous = keyPropertiesPerBean.putIfAbsent(mbeanName, keyProperties);
+            if (previous != null) {
+                keyProperties = previous;
             }
-            keyPropertiesPerBean.put(mbeanName, keyProperties);
+        }
+        int current = generation;
+        if (keyProperties.generation != current) {
+            keyProperties.generation = current;
+            seenInGeneration.incrementAndGet();
         }
         return keyProperties;
     }
 
-    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
-        for (ObjectName prevName : keyPropertiesPerBean.keySet()) {
-            if (!latestBeans.contains(prevName)) {
-                keyPropertiesPerBean.remove(prevName);
+    /**
+     * Remove the beans that were not looked up since the last call, and start a new generation.
+     */
+    public void evictUnseenMBeans() {
+        int current = generation;
+        if (seenInGeneration.get() < keyPropertiesPerBean.size()) {
+            for (Iterator<KeyProperties> it = keyPropertiesPerBean.values().iterator(); it.hasNext(); ) {
+                if (it.next().generation != current) {
+                    it.remove();
+                }
+            }
+        }
+        seenInGeneration.set(0);
+        generation = current + 1;
+    }
+
+    /**
+     * Remove all beans, to free their memory.
+     */
+    void clear() {
+        keyPropertiesPerBean.clear();
+        keys.clear();
+        seenInGeneration.set(0);
+    }
+
+    /**
+     * Split a key property list like {@code type=Foo,name="a,b"} into alternating keys and values, in one pass.
+     * Quoted values are kept with their quotes and escapes, as in the ObjectName.
+     */
+    private String[] parse(String properties) {
+        String[] keysAndValues = new String[8];
+        int length = 0;
+        int start = 0;
+        while (start < properties.length()) {
+            int equals = properties.indexOf('=', start);
+            if (equals <= start) {
+                break;
             }
+            int end = equals + 1;
+            if (end < properties.length() && properties.charAt(end) == '"') {
+                // Up to the closing quote, skipping escaped characters.
+                for (end++; end < properties.length(); end++) {
+                    char c = properties.charAt(end);
+                    if (c == '\\') {
+                        end++;
+                    } else if (c == '"') {
+                        end++;
+                        break;
+                    }
+                }
+            } else {
+                end = properties.indexOf(',', end);
+                if (end < 0) {
+                    end = properties.length();
+                }
+            }
+            if (length == keysAndValues.length) {
+                keysAndValues = copyOf(keysAndValues, length * 2);
+            }
+            keysAndValues[length++] = key(properties.substring(start, equals));
+            keysAndValues[length++] = properties.substring(equals + 1, end);
+            start = end + 1;
         }
+        return length == keysAndValues.length ? keysAndValues : copyOf(keysAndValues, length);
+    }
+
+    private static String[] copyOf(String[] array, int length) {
+        String[] copy = new String[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    private String key(String key) {
+        String existing = keys.putIfAbsent(key, key);
+        return existing == null ? key : existing;
     }
 
+    /**
+     * The key properties of a bean in their original order, stored as one array of alternating keys and values. Beans
+     * have few properties, so lookups by key scan the array.
+     */
+    static final class KeyProperties extends AbstractMap<String, String> {
+        private final String[] keysAndValues;
+        // The generation in which the bean was last looked up, none yet.
+        volatile int generation = -1;
+
+        KeyProperties(String[] keysAndValues) {
+            this.keysAndValues = keysAndValues;
+        }
+
+        @Override
+        public int size() {
+            return keysAndValues.length / 2;
+        }
+
+        @Override
+        public String get(Object key) {
+            for (int i = 0; i < keysAndValues.length; i += 2) {
+                if (keysAndValues[i].equals(key)) {
+                    return keysAndValues[i + 1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int next;
+
+                        public boolean hasNext() {
+                            return next < keysAndValues.length;
+                        }
 
+                        public Entry<String, String> next() {
+                            if (next >= keysAndValues.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<String, String>(
+                                    keysAndValues[next], keysAndValues[next + 1]);
+                            next += 2;
+                            return entry;
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keysAndValues.length / 2;
+                }
+            };
+        }
+
+        /**
+         * The same as for a LinkedHashMap, {@code {key=value, key2=value2}}, as the rules are matched against it.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(16 * keysAndValues.length);
+            sb.append('{');
+            for (int i = 0; i < keysAndValues.length; i += 2) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(keysAndValues[i]).append('=').append(keysAndValues[i + 1]);
+            }
+            return sb.append('}').toString();
+        }
+    }
 }
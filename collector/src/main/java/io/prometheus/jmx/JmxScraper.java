@@ -18,10 +18,14 @@ import javax.management.remote.JMXServiceURL;
 import javax.management.remote.rmi.RMIConnectorServer;
 import javax.naming.Context;
 import javax.rmi.ssl.SslRMIClientSocketFactory;
+import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,7 +43,7 @@ class JmxScraper {
     public static interface MBeanReceiver {
         void recordBean(
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -53,12 +57,33 @@ class JmxScraper {
     private final String password;
     private final boolean ssl;
     private final List<ObjectName> whitelistObjectNames, blacklistObjectNames;
+    private final ObjectNameAttributeFilter objectNameAttributeFilter;
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache;
     private final OptionalValueExtractor optionalValueExtractor = new OptionalValueExtractor();
+    private final MetricNameFilter metricNameFilter;
+    private final MBeanServerConnection beanConnection;
+    private final ScrapeStats stats;
+    private ScrapePacer pacer;
+    private List<ObjectName> skippedObjectNames = Collections.emptyList();
 
     public JmxScraper(String jmxUrl, String username, String password, boolean ssl,
                       List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+                      ObjectNameAttributeFilter objectNameAttributeFilter,
                       MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache) {
+        this(jmxUrl, username, password, ssl, whitelistObjectNames, blacklistObjectNames, objectNameAttributeFilter,
+                receiver, jmxMBeanPropertyCache, null, null, new ScrapeStats());
+    }
+
+    /**
+     * @param metricNameFilter if not null, only the beans it includes are scraped.
+     * @param beanConnection if not null, the beans are scraped from it rather than from jmxUrl.
+     * @param stats the durations of the phases of the scrape and the number of beans and attributes are added to it.
+     */
+    JmxScraper(String jmxUrl, String username, String password, boolean ssl,
+               List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+               ObjectNameAttributeFilter objectNameAttributeFilter,
+               MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache,
+               MetricNameFilter metricNameFilter, MBeanServerConnection beanConnection, ScrapeStats stats) {
         this.jmxUrl = jmxUrl;
         this.receiver = receiver;
         this.username = username;
@@ -66,7 +91,27 @@ class JmxScraper {
         this.ssl = ssl;
         this.whitelistObjectNames = whitelistObjectNames;
         this.blacklistObjectNames = blacklistObjectNames;
+        this.objectNameAttributeFilter = objectNameAttributeFilter;
         this.jmxMBeanPropertyCache = jmxMBeanPropertyCache;
+        this.metricNameFilter = metricNameFilter;
+        this.beanConnection = beanConnection;
+        this.stats = stats;
+    }
+
+    /**
+     * Pace the scrape of the beans to a share of the CPU.
+     */
+    JmxScraper pacedBy(ScrapePacer pacer) {
+        this.pacer = pacer;
+        return this;
+    }
+
+    /**
+     * Skip the beans of these names, like blacklistObjectNames.
+     */
+    JmxScraper skipping(List<ObjectName> skippedObjectNames) {
+        this.skippedObjectNames = skippedObjectNames;
+        return this;
     }
 
     /**
@@ -77,25 +122,18 @@ class JmxScraper {
     public void doScrape() throws Exception {
         MBeanServerConnection beanConn;
         JMXConnector jmxc = null;
-        if (jmxUrl.isEmpty()) {
+        if (beanConnection != null) {
+          beanConn = beanConnection;
+        } else if (jmxUrl.isEmpty()) {
           beanConn = ManagementFactory.getPlatformMBeanServer();
         } else {
-          Map<String, Object> environment = new HashMap<String, Object>();
-          if (username != null && username.length() != 0 && password != null && password.length() != 0) {
-            String[] credent = new String[] {username, password};
-            environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
-          }
-          if (ssl) {
-              environment.put(Context.SECURITY_PROTOCOL, "ssl");
-              SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
-              environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
-              environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
-          }
-
-          jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
+          long start = System.nanoTime();
+          jmxc = connect(jmxUrl, username, password, ssl);
           beanConn = jmxc.getMBeanServerConnection();
+          stats.connectNanos += System.nanoTime() - start;
         }
         try {
+            long queryStart = System.nanoTime();
             // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
             Set<ObjectName> mBeanNames = new HashSet<ObjectName>();
             for (ObjectName name : whitelistObjectNames) {
@@ -110,23 +148,66 @@ class JmxScraper {
                 }
             }
 
-            // Now that we have *only* the whitelisted mBeans, remove any old ones from the cache:
-            jmxMBeanPropertyCache.onlyKeepMBeans(mBeanNames);
+            for (ObjectName name : skippedObjectNames) {
+                for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
+                    mBeanNames.remove(instance.getObjectName());
+                }
+            }
+
+            if (metricNameFilter != null) {
+                for (Iterator<ObjectName> it = mBeanNames.iterator(); it.hasNext(); ) {
+                    if (!metricNameFilter.includesBean(it.next())) {
+                        it.remove();
+                    }
+                }
+            }
+            stats.queryNanos += System.nanoTime() - queryStart;
+            stats.beans += mBeanNames.size();
 
+            int done = 0;
             for (ObjectName objectName : mBeanNames) {
                 long start = System.nanoTime();
                 scrapeBean(beanConn, objectName);
                 logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + objectName.toString());
+                if (pacer != null) {
+                    pacer.pace(++done, mBeanNames.size());
+                }
+            }
+
+            if (metricNameFilter == null) {
+                // Remove the beans which are gone from the cache. Only a part of the beans is scraped with a filter,
+                // so the cache is left to the next full scrape.
+                long start = System.nanoTime();
+                jmxMBeanPropertyCache.evictUnseenMBeans();
+                stats.evictNanos += System.nanoTime() - start;
             }
         } finally {
           if (jmxc != null) {
+            long start = System.nanoTime();
             jmxc.close();
+            stats.connectNanos += System.nanoTime() - start;
           }
         }
     }
 
+    static JMXConnector connect(String jmxUrl, String username, String password, boolean ssl) throws IOException {
+        Map<String, Object> environment = new HashMap<String, Object>();
+        if (username != null && username.length() != 0 && password != null && password.length() != 0) {
+          String[] credent = new String[] {username, password};
+          environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
+        }
+        if (ssl) {
+            environment.put(Context.SECURITY_PROTOCOL, "ssl");
+            SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
+            environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
+            environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
+        }
+        return JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
+    }
+
     private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName) {
         MBeanInfo info;
+        long start = System.nanoTime();
         try {
           info = beanConn.getMBeanInfo(mbeanName);
         } catch (IOException e) {
@@ -135,9 +216,18 @@ class JmxScraper {
         } catch (JMException e) {
           logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
           return;
+        } finally {
+          stats.mbeanInfoNanos += System.nanoTime() - start;
         }
         MBeanAttributeInfo[] attrInfos = info.getAttributes();
 
+        Set<String> includedAttributes = null;
+        Set<String> excludedAttributes = Collections.emptySet();
+        if (!objectNameAttributeFilter.isEmpty()) {
+            includedAttributes = objectNameAttributeFilter.includedAttributes(mbeanName);
+            excludedAttributes = objectNameAttributeFilter.excludedAttributes(mbeanName);
+        }
+
         Map<String, MBeanAttributeInfo> name2AttrInfo = new LinkedHashMap<String, MBeanAttributeInfo>();
         for (int idx = 0; idx < attrInfos.length; ++idx) {
             MBeanAttributeInfo attr = attrInfos[idx];
@@ -145,9 +235,18 @@ class JmxScraper {
                 logScrape(mbeanName, attr, "not readable");
                 continue;
             }
+            if ((includedAttributes != null && !includedAttributes.contains(attr.getName()))
+                    || excludedAttributes.contains(attr.getName())) {
+                logScrape(mbeanName, attr, "excluded");
+                continue;
+            }
             name2AttrInfo.put(attr.getName(), attr);
         }
+        if (name2AttrInfo.isEmpty()) {
+            return;
+        }
         final AttributeList attributes;
+        start = System.nanoTime();
         try {
             attributes = beanConn.getAttributes(mbeanName, name2AttrInfo.keySet().toArray(new String[0]));
             if (attributes == null) {
@@ -157,7 +256,12 @@ class JmxScraper {
         } catch (Exception e) {
             logScrape(mbeanName, name2AttrInfo.keySet(), "Fail: " + e);
             return;
+        } finally {
+            stats.getAttributesNanos += System.nanoTime() - start;
         }
+        stats.attributes += attributes.size();
+        start = System.nanoTime();
+        Map<String, String> beanProperties = jmxMBeanPropertyCache.getKeyPropertyList(mbeanName);
         for (Object attributeObj : attributes.asList()) {
             if (Attribute.class.isInstance(attributeObj)) {
                 Attribute attribute = (Attribute)(attributeObj);
@@ -165,7 +269,7 @@ class JmxScraper {
                 logScrape(mbeanName, attr, "process");
                 processBeanValue(
                         mbeanName.getDomain(),
-                        jmxMBeanPropertyCache.getKeyPropertyList(mbeanName),
+                        beanProperties,
                         new LinkedList<String>(),
                         attr.getName(),
                         attr.getType(),
@@ -174,6 +278,7 @@ class JmxScraper {
                 );
             }
         }
+        stats.processNanos += System.nanoTime() - start;
     }
 
 
@@ -186,7 +291,7 @@ class JmxScraper {
      */
     private void processBeanValue(
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -314,7 +419,7 @@ class JmxScraper {
     private static class StdoutWriter implements MBeanReceiver {
         public void recordBean(
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -330,21 +435,43 @@ class JmxScraper {
 
     /**
      * Convenience function to run standalone.
+     * <p>
+     * With {@code --capture <file>} as the first arguments, the beans are written to a dump file instead, see
+     * {@link BeanDump}.
      */
     public static void main(String[] args) throws Exception {
+      if (args.length >= 2 && args[0].equals("--capture")) {
+          File file = new File(args[1]);
+          args = Arrays.copyOfRange(args, 2, args.length);
+          JMXConnector jmxc = null;
+          MBeanServerConnection beanConn = ManagementFactory.getPlatformMBeanServer();
+          if (args.length > 0) {
+              jmxc = connect(args[0], args.length >= 3 ? args[1] : "", args.length >= 3 ? args[2] : "", false);
+              beanConn = jmxc.getMBeanServerConnection();
+          }
+          try {
+              int beans = BeanDump.capture(beanConn, file);
+              System.out.println("Captured " + beans + " beans to " + file);
+          } finally {
+              if (jmxc != null) {
+                  jmxc.close();
+              }
+          }
+          return;
+      }
       List<ObjectName> objectNames = new LinkedList<ObjectName>();
       objectNames.add(null);
       if (args.length >= 3){
             new JmxScraper(args[0], args[1], args[2], false, objectNames, new LinkedList<ObjectName>(),
-                    new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+                    new ObjectNameAttributeFilter(), new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
         }
       else if (args.length > 0){
           new JmxScraper(args[0], "", "", false, objectNames, new LinkedList<ObjectName>(),
-                  new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+                  new ObjectNameAttributeFilter(), new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
       }
       else {
           new JmxScraper("", "", "", false, objectNames, new LinkedList<ObjectName>(),
-                  new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+                  new ObjectNameAttributeFilter(), new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
       }
     }
 }
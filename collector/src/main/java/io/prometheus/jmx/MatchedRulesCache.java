@@ -31,6 +31,16 @@ public class MatchedRulesCache {
         return cachedRules.get(rule).get(cacheKey);
     }
 
+    Map<String, MatchedRule> entriesFor(final JmxCollector.Rule rule) {
+        return cachedRules.get(rule);
+    }
+
+    void clear() {
+        for (Map<String, MatchedRule> cachedRulesForRule : cachedRules.values()) {
+            cachedRulesForRule.clear();
+        }
+    }
+
     // Remove stale rules (in the cache but not collected in the last run of the collector)
     public void evictStaleEntries(final StalenessTracker stalenessTracker) {
         for (Map.Entry<JmxCollector.Rule, Map<String, MatchedRule>> entry : cachedRules.entrySet()) {
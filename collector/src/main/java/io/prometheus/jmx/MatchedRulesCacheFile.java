@@ -0,0 +1,233 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.Type;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Persists the {@link MatchedRulesCache} to a local file, so that the first scrape after a restart does not have to
+ * match every attribute against every rule again.
+ * <p>
+ * The file is keyed by a hash of the rules (and the other settings that influence a {@link MatchedRule}). A file
+ * written for a different set of rules is ignored on load.
+ */
+class MatchedRulesCacheFile {
+    private static final Logger LOGGER = Logger.getLogger(MatchedRulesCacheFile.class.getName());
+
+    private static final int MAGIC = 0x4A4D5852; // "JMXR"
+    private static final int VERSION = 1;
+
+    private MatchedRulesCacheFile() {
+    }
+
+    /**
+     * @return a hash of everything in the rules that determines the outcome of matching a bean against them.
+     */
+    static String hash(List<JmxCollector.Rule> rules, boolean lowercaseOutputName, boolean lowercaseOutputLabelNames) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeBoolean(lowercaseOutputName);
+            out.writeBoolean(lowercaseOutputLabelNames);
+            out.writeInt(rules.size());
+            for (JmxCollector.Rule rule : rules) {
+                writeString(out, rule.patternString);
+                writeString(out, rule.name);
+                writeString(out, rule.value);
+                out.writeDouble(rule.valueFactor);
+                writeString(out, rule.help);
+                out.writeBoolean(rule.attrNameSnakeCase);
+                out.writeBoolean(rule.cache);
+                writeString(out, rule.type.name());
+                writeStrings(out, rule.labelNames);
+                writeStrings(out, rule.labelValues);
+            }
+            out.flush();
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write the cached entries of all rules to the file. The file is replaced atomically where the platform allows.
+     */
+    static void save(File file, List<JmxCollector.Rule> rules, String rulesHash, MatchedRulesCache cache)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        long entries = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, rulesHash);
+            out.writeInt(rules.size());
+            for (JmxCollector.Rule rule : rules) {
+                // Take a snapshot, the cache may be modified by a concurrent scrape.
+                List<Map.Entry<String, MatchedRule>> ruleEntries =
+                        new ArrayList<Map.Entry<String, MatchedRule>>(cache.entriesFor(rule).entrySet());
+                out.writeInt(ruleEntries.size());
+                for (Map.Entry<String, MatchedRule> entry : ruleEntries) {
+                    writeString(out, entry.getKey());
+                    writeMatchedRule(out, entry.getValue());
+                }
+                entries += ruleEntries.size();
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // On some platforms renameTo() does not replace an existing file.
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmp + " to " + file);
+            }
+        }
+        LOGGER.fine("Saved " + entries + " rule cache entries to " + file);
+    }
+
+    /**
+     * Load the entries from the file into the cache, if the file was written for the same rules.
+     *
+     * @return the number of entries loaded.
+     */
+    static long load(File file, List<JmxCollector.Rule> rules, String rulesHash, MatchedRulesCache cache) {
+        if (!file.exists()) {
+            return 0;
+        }
+        long entries = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOGGER.info("Ignoring rule cache file " + file + ": unknown format");
+                    return 0;
+                }
+                if (!rulesHash.equals(readString(in)) || in.readInt() != rules.size()) {
+                    LOGGER.info("Ignoring rule cache file " + file + ": it was written for different rules");
+                    return 0;
+                }
+                for (JmxCollector.Rule rule : rules) {
+                    int ruleEntries = in.readInt();
+                    for (int i = 0; i < ruleEntries; i++) {
+                        String cacheKey = readString(in);
+                        MatchedRule matchedRule = readMatchedRule(in);
+                        if (rule.cache) {
+                            cache.put(rule, cacheKey, matchedRule);
+                            entries++;
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to load rule cache file " + file + ": " + e);
+            cache.clear();
+            return 0;
+        } catch (RuntimeException e) {
+            LOGGER.warning("Failed to load rule cache file " + file + ": " + e);
+            cache.clear();
+            return 0;
+        }
+        LOGGER.fine("Loaded " + entries + " rule cache entries from " + file);
+        return entries;
+    }
+
+    private static void writeMatchedRule(DataOutputStream out, MatchedRule matchedRule) throws IOException {
+        out.writeBoolean(matchedRule.isMatched());
+        if (matchedRule.isUnmatched()) {
+            return;
+        }
+        writeString(out, matchedRule.name);
+        writeString(out, matchedRule.matchName);
+        writeString(out, matchedRule.type.name());
+        writeString(out, matchedRule.help);
+        writeStrings(out, matchedRule.labelNames);
+        writeStrings(out, matchedRule.labelValues);
+        out.writeBoolean(matchedRule.value != null);
+        if (matchedRule.value != null) {
+            out.writeDouble(matchedRule.value);
+        }
+        out.writeDouble(matchedRule.valueFactor);
+    }
+
+    private static MatchedRule readMatchedRule(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return MatchedRule.unmatched();
+        }
+        String name = readString(in);
+        String matchName = readString(in);
+        Type type = Type.valueOf(readString(in));
+        String help = readString(in);
+        List<String> labelNames = readStrings(in);
+        List<String> labelValues = readStrings(in);
+        Double value = in.readBoolean() ? in.readDouble() : null;
+        double valueFactor = in.readDouble();
+        return new MatchedRule(name, matchName, type, help, labelNames, labelValues, value, valueFactor);
+    }
+
+    // Strings are written as length-prefixed UTF-8, as DataOutput.writeUTF() is limited to 64KB.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,135 @@
+package io.prometheus.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restricts a scrape to the requested metric names, as given by name[] query parameters.
+ * <p>
+ * Only the rules that can produce a requested name are relevant: a rule with a name given as literal produces just that
+ * name, a rule with a name template only names starting with the literal part before the first capture group
+ * reference, and the default export only names starting with the domain of the bean. The beans that cannot be matched
+ * by any relevant rule are not scraped, and rules after the last relevant one are not evaluated. Earlier rules are
+ * still evaluated, as they may match the bean first.
+ */
+class MetricNameFilter {
+    private final Set<String> names;
+    private final boolean lowercaseOutputName;
+    private final List<JmxCollector.Rule> rules = new ArrayList<JmxCollector.Rule>();
+    // The ObjectName query of each relevant rule, null if it can match any bean.
+    private final List<ObjectName> queries = new ArrayList<ObjectName>();
+    private final Map<String, Boolean> domains = new HashMap<String, Boolean>();
+    private int ruleCount;
+
+    MetricNameFilter(List<JmxCollector.Rule> allRules, boolean lowercaseOutputName, Set<String> names) {
+        this.names = names;
+        this.lowercaseOutputName = lowercaseOutputName;
+        for (int i = 0; i < allRules.size(); i++) {
+            JmxCollector.Rule rule = allRules.get(i);
+            ObjectName query = query(rule);
+            if (!canProduce(rule, query)) {
+                continue;
+            }
+            rules.add(rule);
+            queries.add(query);
+            ruleCount = i + 1;
+        }
+    }
+
+    /**
+     * @return the number of leading rules to evaluate, as the rules after these cannot produce a requested name.
+     */
+    int ruleCount() {
+        return ruleCount;
+    }
+
+    boolean includes(String sampleName) {
+        return names.contains(sampleName);
+    }
+
+    /**
+     * @return false if no relevant rule can match the attributes of the bean.
+     */
+    boolean includesBean(ObjectName mbeanName) {
+        for (int i = 0; i < rules.size(); i++) {
+            ObjectName query = queries.get(i);
+            if (query != null && !query.apply(mbeanName)) {
+                continue;
+            }
+            if (rules.get(i).name != null || includesDomain(mbeanName.getDomain())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean canProduce(JmxCollector.Rule rule, ObjectName query) {
+        if (rule.name == null) {
+            // Depends on the domain of the bean, unless the pattern has a literal one.
+            return query == null || query.isDomainPattern() || includesDomain(query.getDomain());
+        }
+        // Both are special in the replacement of Matcher.replaceAll().
+        int end = rule.name.length();
+        int dollar = rule.name.indexOf('$');
+        int backslash = rule.name.indexOf('\\');
+        if (dollar >= 0) {
+            end = dollar;
+        }
+        if (backslash >= 0 && backslash < end) {
+            end = backslash;
+        }
+        String literal = outputName(rule.name.substring(0, end));
+        if (end == rule.name.length()) {
+            return names.contains(literal);
+        }
+        return anyStartsWith(literal);
+    }
+
+    /**
+     * The default export names metrics {@code domain_...}, so the requested names must start with the domain.
+     */
+    private boolean includesDomain(String domain) {
+        Boolean included = domains.get(domain);
+        if (included == null) {
+            included = anyStartsWith(outputName(domain));
+            domains.put(domain, included);
+        }
+        return included;
+    }
+
+    /**
+     * As the name is made safe character by character, the safe name of a prefix is a prefix of the safe name.
+     */
+    private String outputName(String name) {
+        return JmxCollector.safeName(name, lowercaseOutputName);
+    }
+
+    private boolean anyStartsWith(String prefix) {
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ObjectName query(JmxCollector.Rule rule) {
+        if (rule.patternString == null) {
+            return null;
+        }
+        String query = ObjectNameQueries.fromPattern(rule.patternString);
+        if (query == null) {
+            return null;
+        }
+        try {
+            return new ObjectName(query);
+        } catch (MalformedObjectNameException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of a registry, like the simpleclient HTTPServer does. The exposition format is negotiated with
+ * the Accept header: the 0.0.4 text format, OpenMetrics text, or the Prometheus protobuf format.
+ * <p>
+ * If snapshotMaxAgeMillis is not negative, the output of a collection is rendered once and shared: requests which
+ * arrive while a collection is in progress wait for it instead of starting another one, and a completed collection is
+ * served to all requests within snapshotMaxAgeMillis. Each format and encoding is rendered only once per collection
+ * and written to the response as is. Requests with name[] parameters are always collected and rendered on their own.
+ * <p>
+ * With snapshotOffHeap, the snapshots are rendered into direct buffers which are reused between snapshots, see
+ * {@link SnapshotBuffers}.
+ */
+public class MetricsHandler implements HttpHandler {
+    static final String SNAPSHOT_MAX_AGE_MILLIS = "snapshotMaxAgeMillis";
+    static final String SNAPSHOT_OFF_HEAP = "snapshotOffHeap";
+
+    static final String HEALTHY_PATH = "/-/healthy";
+    private static final String HEALTHY_RESPONSE = "Exporter is Healthy.";
+    static final String RULES_PATH = "/debug/rules";
+
+    private final CollectorRegistry registry;
+    private final JmxCollector jmxCollector;
+    private final long snapshotMaxAgeNanos;
+    private final Object collectLock = new Object();
+    private MetricsSnapshot snapshot;
+    // Null to render snapshots on the heap.
+    private SnapshotBuffers snapshotBuffers;
+
+    public MetricsHandler(CollectorRegistry registry, long snapshotMaxAgeMillis) {
+        this(registry, null, snapshotMaxAgeMillis);
+    }
+
+    /**
+     * @param jmxCollector the JmxCollector registered in the registry. Requests with name[] parameters scrape it for
+     *                     just the requested names, rather than not at all.
+     */
+    public MetricsHandler(CollectorRegistry registry, JmxCollector jmxCollector, long snapshotMaxAgeMillis) {
+        this.registry = registry;
+        this.jmxCollector = jmxCollector;
+        this.snapshotMaxAgeNanos = snapshotMaxAgeMillis < 0 ? -1 : snapshotMaxAgeMillis * 1000000L;
+    }
+
+    /**
+     * Render the snapshots into direct buffers rather than on the heap.
+     */
+    MetricsHandler snapshotsOffHeap(boolean offHeap) {
+        this.snapshotBuffers = offHeap ? new SnapshotBuffers() : null;
+        return this;
+    }
+
+    /**
+     * @param yamlConfig the config file, see {@link JmxCollector#loadYaml}.
+     * @return the snapshotMaxAgeMillis setting of the config, or -1 if it is not set.
+     */
+    public static long snapshotMaxAgeMillis(Map<String, Object> yamlConfig) {
+        Object value = yamlConfig.get(SNAPSHOT_MAX_AGE_MILLIS);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ((Number) value).longValue();
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid number provided for " + SNAPSHOT_MAX_AGE_MILLIS, e);
+        }
+    }
+
+    /**
+     * @return the snapshotOffHeap setting of the config, false if it is not set.
+     */
+    public static boolean snapshotOffHeap(Map<String, Object> yamlConfig) {
+        Object value = yamlConfig.get(SNAPSHOT_OFF_HEAP);
+        if (value == null) {
+            return false;
+        }
+        try {
+            return (Boolean) value;
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid boolean provided for " + SNAPSHOT_OFF_HEAP, e);
+        }
+    }
+
+    /**
+     * Start an HTTP server serving the handler on /, /metrics, /-/healthy and /debug/rules.
+     */
+    public static HttpServer startServer(InetSocketAddress socket, HttpHandler handler, final boolean daemon)
+            throws IOException {
+        HttpServer server = HttpServer.create(socket, 3);
+        server.createContext("/", handler);
+        server.createContext("/metrics", handler);
+        server.createContext(HEALTHY_PATH, handler);
+        server.createContext(RULES_PATH, handler);
+        server.setExecutor(Executors.newFixedThreadPool(5, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jmx_exporter-http-" + threadNumber.getAndIncrement());
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        }));
+        server.start();
+        return server;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        long requestNanos = System.nanoTime();
+        ThreadCost cost = ThreadCost.start();
+        Response response = null;
+        try {
+            response = handle(requestNanos, exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery(),
+                    exchange.getRequestHeaders().getFirst("Accept"),
+                    join(exchange.getRequestHeaders().get("Accept-Encoding")));
+            exchange.getResponseHeaders().set("Content-Type", response.contentType);
+            if (response.gzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            long contentLength = response.contentLength();
+            // For sendResponseHeaders(), 0 means chunked and -1 means no body.
+            exchange.sendResponseHeaders(response.status, contentLength < 0 ? 0 : contentLength == 0 ? -1 : contentLength);
+            OutputStream os = exchange.getResponseBody();
+            response.writeBody(os);
+            os.flush();
+        } finally {
+            exchange.close();
+            if (response != null) {
+                response.close();
+            }
+            cost.record("http");
+        }
+    }
+
+    /**
+     * Handle a request independently of the HTTP server implementation. The response must be closed once written.
+     */
+    Response handle(long requestNanos, String path, String rawQuery, String accept, String acceptEncoding)
+            throws IOException {
+        if (HEALTHY_PATH.equals(path)) {
+            return new Response(200, "text/plain; charset=utf-8", false, HEALTHY_RESPONSE.getBytes("UTF-8"), null);
+        }
+        if (RULES_PATH.equals(path)) {
+            if (jmxCollector == null) {
+                return new Response(404, "text/plain; charset=utf-8", false,
+                        "No JmxCollector to show the rules of.\n".getBytes("UTF-8"), null);
+            }
+            return new Response(200, "text/plain; charset=utf-8", false, jmxCollector.ruleStats().getBytes("UTF-8"),
+                    null);
+        }
+
+        String contentType = chooseContentType(accept);
+        boolean gzip = acceptsGzip(acceptEncoding);
+        Set<String> names = parseQuery(rawQuery);
+        if (snapshotMaxAgeNanos < 0 || !names.isEmpty()) {
+            // Rendered while writing the response.
+            return new Response(200, contentType, gzip, null, collect(names));
+        }
+        MetricsSnapshot snapshot = snapshot(requestNanos);
+        boolean rendered = false;
+        try {
+            Response response = new Response(200, contentType, gzip, snapshot.get(contentType, gzip), snapshot);
+            rendered = true;
+            return response;
+        } finally {
+            if (!rendered) {
+                snapshot.release();
+            }
+        }
+    }
+
+    /**
+     * A response to a metrics request. The body is either already rendered, or rendered from the samples while it is
+     * written.
+     */
+    static class Response {
+        final int status;
+        final String contentType;
+        final boolean gzip;
+        private final ByteBuffer body;
+        private final List<MetricFamilySamples> metricFamilySamples;
+        // The snapshot of the body, released when the response is closed.
+        private MetricsSnapshot snapshot;
+
+        Response(int status, String contentType, boolean gzip, byte[] body,
+                 List<MetricFamilySamples> metricFamilySamples) {
+            this.status = status;
+            this.contentType = contentType;
+            this.gzip = gzip;
+            this.body = body != null ? ByteBuffer.wrap(body) : null;
+            this.metricFamilySamples = metricFamilySamples;
+        }
+
+        /**
+         * A response with a body rendered by the snapshot, which must be retained for the response.
+         */
+        Response(int status, String contentType, boolean gzip, ByteBuffer body, MetricsSnapshot snapshot) {
+            this.status = status;
+            this.contentType = contentType;
+            this.gzip = gzip;
+            this.body = body;
+            this.metricFamilySamples = null;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return the length of the body, or -1 if it is not known before writing it.
+         */
+        long contentLength() {
+            return body != null ? body.remaining() : -1;
+        }
+
+        /**
+         * @return the rendered body, to write it to a channel without copying it, or null if it is rendered while
+         * writing it. It is valid until the response is closed.
+         */
+        ByteBuffer body() {
+            return body != null ? body.duplicate() : null;
+        }
+
+        void writeBody(OutputStream os) throws IOException {
+            if (body != null) {
+                if (body.hasArray()) {
+                    os.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+                    return;
+                }
+                ByteBuffer remaining = body.duplicate();
+                byte[] chunk = new byte[8192];
+                while (remaining.hasRemaining()) {
+                    int length = Math.min(chunk.length, remaining.remaining());
+                    remaining.get(chunk, 0, length);
+                    os.write(chunk, 0, length);
+                }
+                return;
+            }
+            GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(os, 8192) : null;
+            if (ProtobufFormat.CONTENT_TYPE.equals(contentType)) {
+                ProtobufFormat.write(gzip ? gzipStream : os, metricFamilySamples);
+            } else {
+                Writer writer = new OutputStreamWriter(gzip ? gzipStream : os, "UTF-8");
+                TextFormat.writeFormat(contentType, writer, Collections.enumeration(metricFamilySamples));
+                writer.flush();
+            }
+            if (gzipStream != null) {
+                gzipStream.finish();
+            }
+        }
+
+        /**
+         * Release the snapshot of the body. The body must no longer be used.
+         */
+        synchronized void close() {
+            if (snapshot != null) {
+                snapshot.release();
+                snapshot = null;
+            }
+        }
+    }
+
+    /**
+     * @return all samples if names is empty, or the samples with the given names.
+     */
+    private List<MetricFamilySamples> collect(Set<String> names) {
+        if (names.isEmpty() || jmxCollector == null) {
+            return Collections.list(registry.filteredMetricFamilySamples(names));
+        }
+        // The registry only knows the jmx_scrape_* names of the JmxCollector, so it is collected separately to not
+        // scrape it twice.
+        Set<String> registryNames = new HashSet<String>(names);
+        for (MetricFamilySamples mfs : jmxCollector.describe()) {
+            registryNames.remove(mfs.name);
+        }
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+        if (!registryNames.isEmpty()) {
+            mfsList.addAll(Collections.list(registry.filteredMetricFamilySamples(registryNames)));
+        }
+        mfsList.addAll(jmxCollector.collect(names));
+        return mfsList;
+    }
+
+    /**
+     * @return a snapshot which was either completed after the request arrived (that is, the request waited for a
+     * collection in progress), or completed at most snapshotMaxAgeMillis ago. It is retained for the caller, who must
+     * release it.
+     */
+    MetricsSnapshot snapshot(long requestNanos) {
+        synchronized (collectLock) {
+            MetricsSnapshot current = snapshot;
+            if (current == null || (current.endNanos - requestNanos < 0
+                    && System.nanoTime() - current.endNanos > snapshotMaxAgeNanos)) {
+                long startNanos = System.nanoTime();
+                MetricsSnapshot previous = current;
+                current = new MetricsSnapshot(Collections.list(registry.metricFamilySamples()), startNanos,
+                        System.nanoTime(), snapshotBuffers);
+                snapshot = current;
+                if (previous != null) {
+                    previous.release();
+                }
+            }
+            current.retain();
+            return current;
+        }
+    }
+
+    static void respond(HttpExchange exchange, int status, String contentType, byte[] body, boolean gzip)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.flush();
+    }
+
+    private static String join(List<String> headers) {
+        if (headers == null) {
+            return null;
+        }
+        StringBuilder joined = new StringBuilder();
+        for (String header : headers) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(header);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Choose the exposition format from an Accept header: the Prometheus protobuf format, OpenMetrics text or the
+     * 0.0.4 text format. The media type with the highest q value wins, and the first one listed on a tie. The 0.0.4
+     * text format is the default.
+     */
+    static String chooseContentType(String accept) {
+        String chosen = TextFormat.CONTENT_TYPE_004;
+        if (accept == null) {
+            return chosen;
+        }
+        double chosenQuality = 0;
+        for (String mediaRange : accept.split(",")) {
+            String[] parts = mediaRange.split(";");
+            String type = parts[0].trim().toLowerCase();
+            double quality = 1;
+            String proto = null;
+            String encoding = null;
+            for (int i = 1; i < parts.length; i++) {
+                int idx = parts[i].indexOf('=');
+                if (idx == -1) {
+                    continue;
+                }
+                String name = parts[i].substring(0, idx).trim().toLowerCase();
+                String value = parts[i].substring(idx + 1).trim();
+                if (name.equals("q")) {
+                    try {
+                        quality = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                } else if (name.equals("proto")) {
+                    proto = value;
+                } else if (name.equals("encoding")) {
+                    encoding = value;
+                }
+            }
+            String contentType;
+            if (type.equals("application/vnd.google.protobuf")) {
+                if (!"io.prometheus.client.MetricFamily".equals(proto) || !"delimited".equals(encoding)) {
+                    continue;
+                }
+                contentType = ProtobufFormat.CONTENT_TYPE;
+            } else if (type.equals("application/openmetrics-text")) {
+                contentType = TextFormat.CONTENT_TYPE_OPENMETRICS_100;
+            } else if (type.equals("text/plain") || type.equals("text/*") || type.equals("*/*")) {
+                contentType = TextFormat.CONTENT_TYPE_004;
+            } else {
+                continue;
+            }
+            if (quality > chosenQuality) {
+                chosen = contentType;
+                chosenQuality = quality;
+            }
+        }
+        return chosen;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            if (encoding.trim().equalsIgnoreCase("gzip")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the values of the name[] query parameters.
+     */
+    static Set<String> parseQuery(String query) throws UnsupportedEncodingException {
+        Set<String> names = new HashSet<String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int idx = pair.indexOf('=');
+                if (idx != -1 && URLDecoder.decode(pair.substring(0, idx), "UTF-8").equals("name[]")) {
+                    names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,156 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The output of one collection of a registry. Each exposition format is rendered (and gzipped) at most once, on the
+ * first request for it, and then served from the same immutable buffer to every request that shares the snapshot.
+ * <p>
+ * With {@link SnapshotBuffers}, the renderings are kept in direct buffers of the pool, which are returned to it once
+ * the snapshot is released by the handler and by every response that is writing it.
+ */
+class MetricsSnapshot {
+    // Indexed by format (text, OpenMetrics, protobuf) * 2 + gzip.
+    static final int RENDERINGS = 6;
+
+    final long startNanos;
+    final long endNanos;
+
+    private final List<MetricFamilySamples> metricFamilySamples;
+    private final SnapshotBuffers buffers;
+    private final ByteBuffer[] rendered = new ByteBuffer[RENDERINGS];
+    // The handler holds one reference while this is its current snapshot, and each response one.
+    private int references = 1;
+
+    MetricsSnapshot(List<MetricFamilySamples> metricFamilySamples, long startNanos, long endNanos) {
+        this(metricFamilySamples, startNanos, endNanos, null);
+    }
+
+    /**
+     * @param buffers the pool to render into, or null to render on the heap.
+     */
+    MetricsSnapshot(List<MetricFamilySamples> metricFamilySamples, long startNanos, long endNanos,
+                    SnapshotBuffers buffers) {
+        this.metricFamilySamples = metricFamilySamples;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.buffers = buffers;
+    }
+
+    /**
+     * @return the rendered snapshot, from its position to its limit. It is valid until the snapshot is released.
+     */
+    synchronized ByteBuffer get(String contentType, boolean gzip) throws IOException {
+        if (references == 0) {
+            throw new IllegalStateException("The snapshot was released");
+        }
+        int format = TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType) ? 1
+                : ProtobufFormat.CONTENT_TYPE.equals(contentType) ? 2 : 0;
+        int index = format * 2 + (gzip ? 1 : 0);
+        if (rendered[index] == null) {
+            if (buffers == null) {
+                rendered[index] = ByteBuffer.wrap(gzip ? gzip(render(contentType, metricFamilySamples))
+                        : render(contentType, metricFamilySamples));
+            } else {
+                rendered[index] = gzip ? gzip(get(contentType, false), buffers.output(index))
+                        : render(contentType, metricFamilySamples, buffers.output(index));
+            }
+        }
+        return rendered[index].asReadOnlyBuffer();
+    }
+
+    /**
+     * Take a reference to the snapshot, for a response.
+     */
+    synchronized void retain() {
+        if (references == 0) {
+            throw new IllegalStateException("The snapshot was released");
+        }
+        references++;
+    }
+
+    /**
+     * Drop a reference to the snapshot. The last one returns the buffers to the pool.
+     */
+    synchronized void release() {
+        if (--references > 0 || buffers == null) {
+            return;
+        }
+        for (int i = 0; i < rendered.length; i++) {
+            if (rendered[i] != null) {
+                buffers.release(rendered[i]);
+                rendered[i] = null;
+            }
+        }
+    }
+
+    static byte[] render(String contentType, List<MetricFamilySamples> metricFamilySamples) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream(1 << 16);
+        write(contentType, metricFamilySamples, response);
+        return response.toByteArray();
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream os = new GZIPOutputStream(compressed);
+        os.write(bytes);
+        os.close();
+        return compressed.toByteArray();
+    }
+
+    private static ByteBuffer render(String contentType, List<MetricFamilySamples> metricFamilySamples,
+                                     SnapshotBuffers.Output output) throws IOException {
+        boolean done = false;
+        try {
+            write(contentType, metricFamilySamples, output);
+            done = true;
+            return output.finish();
+        } finally {
+            if (!done) {
+                output.discard();
+            }
+        }
+    }
+
+    private static ByteBuffer gzip(ByteBuffer bytes, SnapshotBuffers.Output output) throws IOException {
+        boolean done = false;
+        try {
+            GZIPOutputStream os = new GZIPOutputStream(output, 8192);
+            byte[] chunk = new byte[8192];
+            while (bytes.hasRemaining()) {
+                int length = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, length);
+                os.write(chunk, 0, length);
+            }
+            os.finish();
+            done = true;
+            return output.finish();
+        } finally {
+            if (!done) {
+                output.discard();
+            }
+        }
+    }
+
+    private static void write(String contentType, List<MetricFamilySamples> metricFamilySamples, OutputStream os)
+            throws IOException {
+        if (ProtobufFormat.CONTENT_TYPE.equals(contentType)) {
+            ProtobufFormat.write(os, metricFamilySamples);
+            return;
+        }
+        Writer writer = new OutputStreamWriter(os, "UTF-8");
+        TextFormat.writeFormat(contentType, writer, Collections.enumeration(metricFamilySamples));
+        writer.flush();
+    }
+}
@@ -0,0 +1,50 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memoizes a transform of names, like the conversion of attribute names and label names to safe metric names. These
+ * names repeat on every scrape, so after the first scrape the transform is a map lookup.
+ * <p>
+ * The cache is bounded, as names produced by rules may contain values of the beans. It is cleared when it is full,
+ * which keeps the names of the current beans without tracking when each name was used last.
+ */
+abstract class NameCache {
+    private final int maxSize;
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+    // Approximate, only to bound the size.
+    private final AtomicInteger size = new AtomicInteger();
+
+    NameCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    abstract String transform(String name);
+
+    String get(String name) {
+        if (name == null) {
+            return null;
+        }
+        String transformed = names.get(name);
+        if (transformed == null) {
+            transformed = transform(name);
+            if (size.incrementAndGet() > maxSize) {
+                names.clear();
+                // The name put below.
+                size.set(1);
+            }
+            names.put(name, transformed);
+        }
+        return transformed;
+    }
+
+    void clear() {
+        names.clear();
+        size.set(0);
+    }
+
+    int size() {
+        return names.size();
+    }
+}
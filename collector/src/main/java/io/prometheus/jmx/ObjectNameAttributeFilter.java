@@ -0,0 +1,92 @@
+package io.prometheus.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects the attributes to fetch from an mBean, based on the includeObjectNameAttributes and
+ * excludeObjectNameAttributes configuration. Both map an ObjectName (or ObjectName pattern) to a list of attribute
+ * names. The filter is applied before calling getAttributes(), so that attributes which are not needed are neither
+ * computed by the mBean nor transferred over the connection.
+ */
+class ObjectNameAttributeFilter {
+    private final Map<ObjectName, Set<String>> includedAttributes = new LinkedHashMap<ObjectName, Set<String>>();
+    private final Map<ObjectName, Set<String>> excludedAttributes = new LinkedHashMap<ObjectName, Set<String>>();
+
+    /**
+     * Parse the includeObjectNameAttributes and excludeObjectNameAttributes sections of the configuration.
+     */
+    static ObjectNameAttributeFilter create(Map<String, Object> yamlConfig) throws MalformedObjectNameException {
+        ObjectNameAttributeFilter filter = new ObjectNameAttributeFilter();
+        if (yamlConfig.containsKey("includeObjectNameAttributes")) {
+            parse("includeObjectNameAttributes", yamlConfig.get("includeObjectNameAttributes"), filter.includedAttributes);
+        }
+        if (yamlConfig.containsKey("excludeObjectNameAttributes")) {
+            parse("excludeObjectNameAttributes", yamlConfig.get("excludeObjectNameAttributes"), filter.excludedAttributes);
+        }
+        return filter;
+    }
+
+    private static void parse(String key, Object section, Map<ObjectName, Set<String>> target)
+            throws MalformedObjectNameException {
+        if (!(section instanceof Map)) {
+            throw new IllegalArgumentException(key + " must be a map of ObjectName to a list of attribute names");
+        }
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) section).entrySet()) {
+            if (!(entry.getValue() instanceof List)) {
+                throw new IllegalArgumentException(key + " must list the attribute names for " + entry.getKey());
+            }
+            ObjectName objectName = new ObjectName(entry.getKey());
+            Set<String> attributeNames = target.get(objectName);
+            if (attributeNames == null) {
+                attributeNames = new HashSet<String>();
+                target.put(objectName, attributeNames);
+            }
+            for (Object attributeName : (List<Object>) entry.getValue()) {
+                attributeNames.add(String.valueOf(attributeName));
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return includedAttributes.isEmpty() && excludedAttributes.isEmpty();
+    }
+
+    /**
+     * @return the names of the attributes to fetch, or null if all attributes of the mBean should be fetched
+     * (subject to {@link #excludedAttributes(ObjectName)}).
+     */
+    Set<String> includedAttributes(ObjectName mbeanName) {
+        return attributesFor(mbeanName, includedAttributes, null);
+    }
+
+    /**
+     * @return the names of the attributes not to fetch, never null.
+     */
+    Set<String> excludedAttributes(ObjectName mbeanName) {
+        return attributesFor(mbeanName, excludedAttributes, Collections.<String>emptySet());
+    }
+
+    private static Set<String> attributesFor(ObjectName mbeanName, Map<ObjectName, Set<String>> attributes,
+                                             Set<String> noMatch) {
+        Set<String> result = noMatch;
+        for (Map.Entry<ObjectName, Set<String>> entry : attributes.entrySet()) {
+            if (entry.getKey().apply(mbeanName)) {
+                if (result == noMatch) {
+                    result = entry.getValue();
+                } else {
+                    // Several patterns match this mBean, merge their attribute names.
+                    result = new HashSet<String>(result);
+                    result.addAll(entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,269 @@
+package io.prometheus.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Derives ObjectName query patterns from the rule patterns of a configuration.
+ * <p>
+ * Rules are matched against strings of the form {@code domain<key1=value1, key2=value2, ...><...>attrName: value}.
+ * If every rule starts with a (partially) literal domain, the beans that can possibly match any rule are limited to
+ * those domains, and in many cases to a literal leading key property. Querying only these ObjectNames avoids
+ * fetching the attributes of beans that would be dropped by the rules anyway.
+ * <p>
+ * The derived queries over-approximate what the rules can match, under the assumption that a literal {@code '<'}
+ * in a pattern matches the {@code '<'} terminating the domain, i.e. that ObjectNames do not contain {@code '<'}.
+ * If any rule cannot be restricted, a single {@code null} query is returned, which matches all beans.
+ */
+class ObjectNameQueries {
+
+    private static final List<ObjectName> ALL = Collections.singletonList(null);
+
+    private ObjectNameQueries() {
+    }
+
+    /**
+     * @param rules the configured rules, in order
+     * @return the ObjectName patterns to query, or a list containing only {@code null} to query all beans.
+     */
+    static List<ObjectName> fromRules(List<JmxCollector.Rule> rules) {
+        Set<String> queries = new LinkedHashSet<String>();
+        for (JmxCollector.Rule rule : rules) {
+            if (rule.patternString == null) {
+                return ALL;
+            }
+            String query = fromPattern(rule.patternString);
+            if (query == null) {
+                return ALL;
+            }
+            queries.add(query);
+        }
+        if (queries.isEmpty()) {
+            return ALL;
+        }
+        List<ObjectName> objectNames = new ArrayList<ObjectName>(queries.size());
+        for (String query : queries) {
+            // A domain-wide query subsumes the queries for specific key properties in the same domain.
+            int colon = query.indexOf(':');
+            if (!query.endsWith(":*") && queries.contains(query.substring(0, colon) + ":*")) {
+                continue;
+            }
+            try {
+                objectNames.add(new ObjectName(query));
+            } catch (MalformedObjectNameException e) {
+                return ALL;
+            }
+        }
+        return objectNames;
+    }
+
+    /**
+     * Translate a single rule pattern to an ObjectName pattern.
+     *
+     * @param pattern the rule pattern as given in the configuration
+     * @return the ObjectName pattern as string, or null if the rule can match beans in any domain.
+     */
+    static String fromPattern(String pattern) {
+        if (hasTopLevelAlternation(pattern)) {
+            return null;
+        }
+        int pos = 0;
+        boolean anchored = pattern.startsWith("^");
+        if (anchored) {
+            pos++;
+        }
+
+        StringBuilder domain = new StringBuilder();
+        if (!anchored) {
+            // The pattern is not anchored, so the domain can have any prefix.
+            domain.append('*');
+        }
+        boolean domainComplete = false;
+        int firstWildcardDot = -1;
+        while (pos < pattern.length()) {
+            char c = pattern.charAt(pos);
+            int next = pos + 1;
+            char literal;
+            if (c == '\\') {
+                if (next >= pattern.length() || Character.isLetterOrDigit(pattern.charAt(next))) {
+                    // Character class such as \w or \d, or a back reference.
+                    break;
+                }
+                literal = pattern.charAt(next);
+                next++;
+            } else if (c == '.') {
+                literal = '?';
+                if (firstWildcardDot < 0) {
+                    firstWildcardDot = domain.length();
+                }
+            } else if ("^$()[]{}|*+?".indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+            }
+            if (isQuantified(pattern, next)) {
+                break;
+            }
+            pos = next;
+            if (c == '<') {
+                domainComplete = true;
+                break;
+            }
+            if (literal == ':' || literal == '\n') {
+                // Cannot be part of a domain.
+                return null;
+            }
+            if (!anchored && ">=, ".indexOf(literal) >= 0) {
+                // Only found after the domain, so the '<' ahead is not the one ending the domain but one of the
+                // attribute keys, and the prefix is in the key properties rather than in the domain.
+                return null;
+            }
+            // Wildcard characters cannot be escaped in a domain pattern, so let them match any character.
+            domain.append(literal == '*' ? '?' : literal);
+        }
+
+        if (!domainComplete) {
+            if (!hasMandatoryAngleBracket(pattern, pos)) {
+                if (!anchored) {
+                    // The literal prefix may just as well match the key properties or the attribute.
+                    return null;
+                }
+                if (firstWildcardDot >= 0) {
+                    // Without the end of the domain, a '.' could also match the '<' after a shorter domain.
+                    domain.setLength(firstWildcardDot);
+                }
+            }
+            domain.append('*');
+        }
+        if (isWildcardOnly(domain)) {
+            return null;
+        }
+
+        StringBuilder query = new StringBuilder(domain).append(':');
+        if (domainComplete) {
+            appendLiteralProperties(pattern, pos, query);
+        }
+        return query.append('*').toString();
+    }
+
+    /**
+     * Append the leading key properties of the pattern that are given completely as literals, each followed by a
+     * comma. Parsing stops at the first property that is not entirely literal.
+     */
+    private static void appendLiteralProperties(String pattern, int pos, StringBuilder query) {
+        while (true) {
+            int keyEnd = scanLiteral(pattern, pos);
+            if (keyEnd == pos || keyEnd >= pattern.length() || pattern.charAt(keyEnd) != '=') {
+                return;
+            }
+            int valueStart = keyEnd + 1;
+            int valueEnd = scanLiteral(pattern, valueStart);
+            if (valueEnd == valueStart || valueEnd >= pattern.length()) {
+                return;
+            }
+            char terminator = pattern.charAt(valueEnd);
+            if ((terminator != ',' && terminator != '>') || isQuantified(pattern, valueEnd + 1)) {
+                return;
+            }
+            query.append(pattern, pos, keyEnd).append('=').append(pattern, valueStart, valueEnd).append(',');
+            if (terminator == '>' || !pattern.startsWith(", ", valueEnd)) {
+                return;
+            }
+            pos = valueEnd + 2;
+        }
+    }
+
+    /**
+     * @return the end of the run of plain characters starting at pos that are literal both in a regex and in
+     * an ObjectName key property.
+     */
+    private static int scanLiteral(String pattern, int pos) {
+        while (pos < pattern.length()) {
+            char c = pattern.charAt(pos);
+            boolean plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-';
+            if (!plain || isQuantified(pattern, pos + 1)) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isQuantified(String pattern, int pos) {
+        if (pos >= pattern.length()) {
+            return false;
+        }
+        char c = pattern.charAt(pos);
+        return c == '*' || c == '+' || c == '?' || c == '{';
+    }
+
+    private static boolean isWildcardOnly(CharSequence domain) {
+        for (int i = 0; i < domain.length(); i++) {
+            if (domain.charAt(i) != '*') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the pattern contains a '<' from pos onwards that is outside of any group or character class,
+     * and is not quantified.
+     */
+    private static boolean hasMandatoryAngleBracket(String pattern, int pos) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = pos; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '<' && depth == 0 && !isQuantified(pattern, i + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the pattern contains a '|' outside of any group or character class.
+     */
+    private static boolean hasTopLevelAlternation(String pattern) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+package io.prometheus.jmx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Helpers to write the protobuf wire format, for the few fixed messages the exporter produces.
+ */
+class Protobuf {
+    private static final int WIRE_TYPE_VARINT = 0;
+    private static final int WIRE_TYPE_FIXED64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+
+    private Protobuf() {
+    }
+
+    static void writeVarintField(ByteArrayOutputStream out, int fieldNumber, long value) {
+        writeTag(out, fieldNumber, WIRE_TYPE_VARINT);
+        writeVarint(out, value);
+    }
+
+    static void writeDoubleField(ByteArrayOutputStream out, int fieldNumber, double value) {
+        writeTag(out, fieldNumber, WIRE_TYPE_FIXED64);
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (bits >>> (8 * i)));
+        }
+    }
+
+    static void writeStringField(ByteArrayOutputStream out, int fieldNumber, String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        writeBytesField(out, fieldNumber, bytes, bytes.length);
+    }
+
+    /**
+     * Write an embedded message, which was written to its own buffer.
+     */
+    static void writeMessageField(ByteArrayOutputStream out, int fieldNumber, ByteArrayOutputStream message) {
+        writeBytesField(out, fieldNumber, message.toByteArray(), message.size());
+    }
+
+    static void writeBytesField(ByteArrayOutputStream out, int fieldNumber, byte[] bytes, int length) {
+        writeTag(out, fieldNumber, WIRE_TYPE_LENGTH_DELIMITED);
+        writeVarint(out, length);
+        out.write(bytes, 0, length);
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int fieldNumber, int wireType) {
+        writeVarint(out, fieldNumber << 3 | wireType);
+    }
+}
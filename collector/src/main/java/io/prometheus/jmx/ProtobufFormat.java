@@ -0,0 +1,245 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the Prometheus protobuf exposition format: length delimited io.prometheus.client.MetricFamily messages, see
+ * https://github.com/prometheus/client_model/blob/master/io/prometheus/client/metrics.proto.
+ * <p>
+ * The families are named and typed like TextFormat.write004() does: counters get a _total suffix, info metrics an
+ * _info suffix, and _created samples are written as separate gauge families at the end.
+ */
+class ProtobufFormat {
+    static final String CONTENT_TYPE =
+            "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    // MetricType enum values.
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int SUMMARY = 2;
+    private static final int UNTYPED = 3;
+    private static final int HISTOGRAM = 4;
+    private static final int GAUGE_HISTOGRAM = 5;
+
+    private ProtobufFormat() {
+    }
+
+    static void write(OutputStream os, List<MetricFamilySamples> metricFamilySamples) throws IOException {
+        ByteArrayOutputStream family = new ByteArrayOutputStream(4096);
+        ByteArrayOutputStream length = new ByteArrayOutputStream(8);
+        List<MetricFamilySamples> createdFamilies = new ArrayList<MetricFamilySamples>();
+        for (MetricFamilySamples mfs : metricFamilySamples) {
+            List<MetricFamilySamples.Sample> created = new ArrayList<MetricFamilySamples.Sample>();
+            family.reset();
+            encodeFamily(family, mfs, created);
+            writeDelimited(os, family, length);
+            if (!created.isEmpty()) {
+                createdFamilies.add(new MetricFamilySamples(mfs.name + "_created", Collector.Type.GAUGE, mfs.help,
+                        created));
+            }
+        }
+        for (MetricFamilySamples mfs : createdFamilies) {
+            family.reset();
+            encodeFamily(family, mfs, null);
+            writeDelimited(os, family, length);
+        }
+    }
+
+    private static void writeDelimited(OutputStream os, ByteArrayOutputStream message, ByteArrayOutputStream length)
+            throws IOException {
+        length.reset();
+        Protobuf.writeVarint(length, message.size());
+        length.writeTo(os);
+        message.writeTo(os);
+    }
+
+    /**
+     * Encode a MetricFamily message. The _created samples are added to created instead.
+     */
+    private static void encodeFamily(ByteArrayOutputStream out, MetricFamilySamples mfs,
+                                     List<MetricFamilySamples.Sample> created) {
+        String name = mfs.name;
+        int type;
+        switch (mfs.type) {
+            case COUNTER:
+                name = name + "_total";
+                type = COUNTER;
+                break;
+            case GAUGE:
+            case STATE_SET:
+                type = GAUGE;
+                break;
+            case INFO:
+                name = name + "_info";
+                type = GAUGE;
+                break;
+            case SUMMARY:
+                type = SUMMARY;
+                break;
+            case HISTOGRAM:
+                type = HISTOGRAM;
+                break;
+            case GAUGE_HISTOGRAM:
+                type = GAUGE_HISTOGRAM;
+                break;
+            default:
+                type = UNTYPED;
+        }
+        Protobuf.writeStringField(out, 1, name);
+        Protobuf.writeStringField(out, 2, mfs.help);
+        Protobuf.writeVarintField(out, 3, type);
+
+        ByteArrayOutputStream metric = new ByteArrayOutputStream(128);
+        ByteArrayOutputStream field = new ByteArrayOutputStream(64);
+        if (type == SUMMARY || type == HISTOGRAM || type == GAUGE_HISTOGRAM) {
+            for (Group group : group(mfs, created).values()) {
+                metric.reset();
+                encodeLabels(metric, field, group.labelNames, group.labelValues);
+                field.reset();
+                group.encode(field);
+                Protobuf.writeMessageField(metric, type == SUMMARY ? 4 : 7, field);
+                if (group.timestampMs != null) {
+                    Protobuf.writeVarintField(metric, 6, group.timestampMs);
+                }
+                Protobuf.writeMessageField(out, 4, metric);
+            }
+            return;
+        }
+
+        String createdName = mfs.name + "_created";
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+            if (created != null && sample.name.equals(createdName)) {
+                created.add(sample);
+                continue;
+            }
+            metric.reset();
+            encodeLabels(metric, field, sample.labelNames, sample.labelValues);
+            field.reset();
+            Protobuf.writeDoubleField(field, 1, sample.value);
+            // Gauge, Counter and Untyped all have the value in field 1.
+            Protobuf.writeMessageField(metric, type == GAUGE ? 2 : type == COUNTER ? 3 : 5, field);
+            if (sample.timestampMs != null) {
+                Protobuf.writeVarintField(metric, 6, sample.timestampMs);
+            }
+            Protobuf.writeMessageField(out, 4, metric);
+        }
+    }
+
+    private static void encodeLabels(ByteArrayOutputStream metric, ByteArrayOutputStream field,
+                                     List<String> labelNames, List<String> labelValues) {
+        for (int i = 0; i < labelNames.size(); i++) {
+            field.reset();
+            Protobuf.writeStringField(field, 1, labelNames.get(i));
+            Protobuf.writeStringField(field, 2, labelValues.get(i));
+            Protobuf.writeMessageField(metric, 1, field);
+        }
+    }
+
+    /**
+     * Group the samples of a summary or histogram by their labels, other than quantile and le.
+     */
+    private static Map<List<String>, Group> group(MetricFamilySamples mfs, List<MetricFamilySamples.Sample> created) {
+        Map<List<String>, Group> groups = new LinkedHashMap<List<String>, Group>();
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+            String suffix = sample.name.substring(Math.min(mfs.name.length(), sample.name.length()));
+            if (suffix.equals("_created")) {
+                if (created != null) {
+                    created.add(sample);
+                }
+                continue;
+            }
+            List<String> labelNames = new ArrayList<String>(sample.labelNames.size());
+            List<String> labelValues = new ArrayList<String>(sample.labelNames.size());
+            String bound = null;
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                String labelName = sample.labelNames.get(i);
+                if ((suffix.equals("") && labelName.equals("quantile"))
+                        || (suffix.equals("_bucket") && labelName.equals("le"))) {
+                    bound = sample.labelValues.get(i);
+                } else {
+                    labelNames.add(labelName);
+                    labelValues.add(sample.labelValues.get(i));
+                }
+            }
+            List<String> key = new ArrayList<String>(labelNames);
+            key.addAll(labelValues);
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(mfs.type == Collector.Type.SUMMARY, labelNames, labelValues, sample.timestampMs);
+                groups.put(key, group);
+            }
+            if (bound != null) {
+                group.bounds.add(parseBound(bound));
+                group.values.add(sample.value);
+            } else if (suffix.equals("_count") || suffix.equals("_gcount")) {
+                group.count = sample.value;
+            } else if (suffix.equals("_sum") || suffix.equals("_gsum")) {
+                group.sum = sample.value;
+            }
+        }
+        return groups;
+    }
+
+    private static double parseBound(String bound) {
+        if (bound.equals("+Inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (bound.equals("-Inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(bound);
+    }
+
+    private static class Group {
+        final boolean summary;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final Long timestampMs;
+        // Quantiles or bucket upper bounds, and the corresponding values or cumulative counts.
+        final List<Double> bounds = new ArrayList<Double>();
+        final List<Double> values = new ArrayList<Double>();
+        double count;
+        double sum;
+
+        Group(boolean summary, List<String> labelNames, List<String> labelValues, Long timestampMs) {
+            this.summary = summary;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.timestampMs = timestampMs;
+        }
+
+        /**
+         * Encode a Summary or Histogram message, which share the layout of the count, sum and quantile/bucket fields.
+         */
+        void encode(ByteArrayOutputStream out) {
+            Protobuf.writeVarintField(out, 1, (long) count);
+            Protobuf.writeDoubleField(out, 2, sum);
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(32);
+            for (int i = 0; i < bounds.size(); i++) {
+                double bound = bounds.get(i);
+                if (bound == Double.POSITIVE_INFINITY) {
+                    // The +Inf bucket is implied by the sample count.
+                    continue;
+                }
+                entry.reset();
+                if (summary) {
+                    Protobuf.writeDoubleField(entry, 1, bound);
+                    Protobuf.writeDoubleField(entry, 2, values.get(i));
+                } else {
+                    Protobuf.writeVarintField(entry, 1, values.get(i).longValue());
+                    Protobuf.writeDoubleField(entry, 2, bound);
+                }
+                Protobuf.writeMessageField(out, 3, entry);
+            }
+        }
+    }
+}
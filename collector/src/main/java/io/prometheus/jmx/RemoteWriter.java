@@ -0,0 +1,383 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the samples of a {@link CollectorRegistry} to a Prometheus remote write endpoint, as an alternative to being
+ * scraped. This is configured in the remoteWrite section of the config file:
+ * <pre>
+ * remoteWrite:
+ *   url: http://prometheus:9090/api/v1/write
+ *   intervalSeconds: 15
+ *   labels:
+ *     instance: myhost:1234
+ * </pre>
+ * The registry is collected every intervalSeconds on one thread, and the samples are encoded into remote write
+ * TimeSeries and put into a bounded queue. Another thread sends them in batches, protobuf encoded and snappy
+ * compressed, and retries failed requests with exponential backoff. If the queue is full, new samples are dropped.
+ */
+public class RemoteWriter {
+    private static final Logger LOGGER = Logger.getLogger(RemoteWriter.class.getName());
+
+    private final URL url;
+    private final long intervalMillis;
+    private final int maxSamplesPerSend;
+    private final int maxRetries;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int timeoutMillis;
+    private final Map<String, String> labels = new TreeMap<String, String>();
+    private final Map<String, String> headers = new TreeMap<String, String>();
+
+    private final CollectorRegistry registry;
+    private final BlockingQueue<byte[]> queue;
+    private final Gauge queueSamples;
+    private final Counter sentSamples;
+    private final Counter droppedSamples;
+    private final Counter retries;
+
+    private volatile boolean running;
+    private Thread collectThread;
+    private Thread sendThread;
+
+    /**
+     * Read the remoteWrite section of the config, and if present start pushing the samples of the registry.
+     *
+     * @param yamlConfig the config file, see {@link JmxCollector#loadYaml}.
+     * @return the started RemoteWriter, or null if remote write is not configured.
+     */
+    public static RemoteWriter start(Map<String, Object> yamlConfig, CollectorRegistry registry) throws IOException {
+        if (!yamlConfig.containsKey("remoteWrite")) {
+            return null;
+        }
+        final RemoteWriter remoteWriter =
+                new RemoteWriter((Map<String, Object>) yamlConfig.get("remoteWrite"), registry);
+        remoteWriter.start();
+        // Push the last samples of short-lived JVMs.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                remoteWriter.stop();
+            }
+        }, "jmx_exporter-remote-write-shutdown"));
+        return remoteWriter;
+    }
+
+    RemoteWriter(Map<String, Object> remoteWriteConfig, CollectorRegistry registry) throws IOException {
+        if (remoteWriteConfig == null || !remoteWriteConfig.containsKey("url")) {
+            throw new IllegalArgumentException("remoteWrite must specify a url");
+        }
+        this.url = new URL((String) remoteWriteConfig.get("url"));
+        this.intervalMillis = getInt(remoteWriteConfig, "intervalSeconds", 15) * 1000L;
+        this.maxSamplesPerSend = getInt(remoteWriteConfig, "maxSamplesPerSend", 2000);
+        this.maxRetries = getInt(remoteWriteConfig, "maxRetries", 10);
+        this.minBackoffMillis = getInt(remoteWriteConfig, "minBackoffMillis", 30);
+        this.maxBackoffMillis = getInt(remoteWriteConfig, "maxBackoffMillis", 5000);
+        this.timeoutMillis = getInt(remoteWriteConfig, "timeoutSeconds", 30) * 1000;
+        int queueCapacity = getInt(remoteWriteConfig, "queueCapacity", 100000);
+        if (intervalMillis <= 0 || maxSamplesPerSend <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException(
+                    "remoteWrite intervalSeconds, maxSamplesPerSend and queueCapacity must be positive");
+        }
+        if (remoteWriteConfig.containsKey("labels")) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) remoteWriteConfig.get("labels")).entrySet()) {
+                labels.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+        if (remoteWriteConfig.containsKey("headers")) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) remoteWriteConfig.get("headers")).entrySet()) {
+                headers.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+
+        this.registry = registry;
+        this.queue = new ArrayBlockingQueue<byte[]>(queueCapacity);
+        this.queueSamples = Gauge.build()
+                .name("jmx_remote_write_queue_samples")
+                .help("Number of samples waiting to be sent to the remote write endpoint.")
+                .register(registry);
+        this.sentSamples = Counter.build()
+                .name("jmx_remote_write_sent_samples_total")
+                .help("Number of samples sent to the remote write endpoint.")
+                .register(registry);
+        this.droppedSamples = Counter.build()
+                .name("jmx_remote_write_dropped_samples_total")
+                .help("Number of samples dropped because the queue was full or sending failed permanently.")
+                .register(registry);
+        this.retries = Counter.build()
+                .name("jmx_remote_write_retries_total")
+                .help("Number of failed requests to the remote write endpoint that were retried.")
+                .register(registry);
+    }
+
+    private static int getInt(Map<String, Object> config, String key, int defaultValue) {
+        if (!config.containsKey(key)) {
+            return defaultValue;
+        }
+        try {
+            return (Integer) config.get(key);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Invalid number provided for remoteWrite " + key, e);
+        }
+    }
+
+    synchronized void start() {
+        running = true;
+        collectThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (running) {
+                        long start = System.currentTimeMillis();
+                        ThreadCost cost = ThreadCost.start();
+                        try {
+                            enqueue(Collections.list(registry.metricFamilySamples()), start);
+                        } catch (RuntimeException e) {
+                            LOGGER.warning("Remote write collection failed: " + e);
+                        } finally {
+                            cost.record("remote_write");
+                        }
+                        Thread.sleep(Math.max(0, intervalMillis - (System.currentTimeMillis() - start)));
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "jmx_exporter-remote-write-collect");
+        collectThread.setDaemon(true);
+        collectThread.start();
+
+        sendThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (running) {
+                        byte[] first = queue.poll(1, TimeUnit.SECONDS);
+                        if (first != null) {
+                            ThreadCost cost = ThreadCost.start();
+                            List<byte[]> batch = new ArrayList<byte[]>(maxSamplesPerSend);
+                            batch.add(first);
+                            queue.drainTo(batch, maxSamplesPerSend - 1);
+                            try {
+                                send(batch, maxRetries, timeoutMillis);
+                            } finally {
+                                cost.record("remote_write");
+                            }
+                        }
+                        queueSamples.set(queue.size());
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "jmx_exporter-remote-write-send");
+        sendThread.setDaemon(true);
+        sendThread.start();
+    }
+
+    /**
+     * Stop the threads, collect one last time and make one attempt to send the queued samples. This takes at most
+     * timeoutSeconds in all, as it runs when the JVM exits: once the time is up or a request fails, the samples left
+     * are dropped.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        collectThread.interrupt();
+        sendThread.interrupt();
+        try {
+            collectThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            sendThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropQueue();
+            return;
+        }
+        try {
+            enqueue(Collections.list(registry.metricFamilySamples()), System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            LOGGER.warning("Remote write collection failed: " + e);
+        }
+        List<byte[]> batch = new ArrayList<byte[]>(maxSamplesPerSend);
+        while (queue.drainTo(batch, maxSamplesPerSend) > 0) {
+            long remainingMillis = deadline - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+                droppedSamples.inc(batch.size());
+                dropQueue();
+                return;
+            }
+            try {
+                if (!send(batch, 0, (int) remainingMillis)) {
+                    // The batch is counted as dropped by send().
+                    dropQueue();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedSamples.inc(batch.size());
+                dropQueue();
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    private void dropQueue() {
+        List<byte[]> left = new ArrayList<byte[]>();
+        queue.drainTo(left);
+        if (!left.isEmpty()) {
+            LOGGER.warning("Dropping " + left.size() + " samples, remote write did not finish before the shutdown "
+                    + "timeout.");
+            droppedSamples.inc(left.size());
+        }
+        queueSamples.set(queue.size());
+    }
+
+    /**
+     * Encode the samples and add them to the queue.
+     */
+    void enqueue(List<MetricFamilySamples> metricFamilySamples, long timestampMs) {
+        long dropped = 0;
+        for (MetricFamilySamples family : metricFamilySamples) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                byte[] timeSeries = encodeTimeSeries(sample, timestampMs);
+                if (!queue.offer(timeSeries)) {
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            LOGGER.fine("Remote write queue is full, dropped " + dropped + " samples");
+            droppedSamples.inc(dropped);
+        }
+        queueSamples.set(queue.size());
+    }
+
+    /**
+     * @return true if the batch was sent, false if it was dropped.
+     */
+    private boolean send(List<byte[]> batch, int maxRetries, int timeoutMillis) throws InterruptedException {
+        byte[] body = Snappy.compress(encodeWriteRequest(batch));
+        long backoff = minBackoffMillis;
+        for (int attempt = 0; ; attempt++) {
+            int status;
+            try {
+                status = post(body, timeoutMillis);
+            } catch (IOException e) {
+                LOGGER.fine("Remote write request failed: " + e);
+                status = -1;
+            }
+            if (status / 100 == 2) {
+                sentSamples.inc(batch.size());
+                return true;
+            }
+            // 4xx responses other than 429 Too Many Requests will not succeed when retried.
+            boolean recoverable = status == -1 || status == 429 || status / 100 == 5;
+            if (!recoverable || attempt >= maxRetries) {
+                LOGGER.warning("Dropping " + batch.size() + " samples, remote write failed with status " + status);
+                droppedSamples.inc(batch.size());
+                return false;
+            }
+            retries.inc();
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, maxBackoffMillis);
+        }
+    }
+
+    private int post(byte[] body, int timeoutMillis) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/x-protobuf");
+            connection.setRequestProperty("Content-Encoding", "snappy");
+            connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+            connection.setRequestProperty("User-Agent", "jmx_exporter");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            OutputStream os = connection.getOutputStream();
+            try {
+                os.write(body);
+            } finally {
+                os.close();
+            }
+            int status = connection.getResponseCode();
+            // Read the response so that the connection can be reused.
+            InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (is != null) {
+                byte[] buffer = new byte[1024];
+                while (is.read(buffer) != -1) {
+                }
+                is.close();
+            }
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    // Protobuf encoding of the remote write messages, see prompb/remote.proto and prompb/types.proto:
+    // WriteRequest { repeated TimeSeries timeseries = 1; }
+    // TimeSeries { repeated Label labels = 1; repeated Sample samples = 2; }
+    // Label { string name = 1; string value = 2; }
+    // Sample { double value = 1; int64 timestamp = 2; }
+
+    byte[] encodeTimeSeries(MetricFamilySamples.Sample sample, long timestampMs) {
+        // Labels must be sorted by name.
+        Map<String, String> sortedLabels = new TreeMap<String, String>(labels);
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+            sortedLabels.put(sample.labelNames.get(i), sample.labelValues.get(i));
+        }
+        sortedLabels.put("__name__", sample.name);
+
+        ByteArrayOutputStream timeSeries = new ByteArrayOutputStream(64);
+        ByteArrayOutputStream field = new ByteArrayOutputStream(64);
+        for (Map.Entry<String, String> label : sortedLabels.entrySet()) {
+            field.reset();
+            Protobuf.writeStringField(field, 1, label.getKey());
+            Protobuf.writeStringField(field, 2, label.getValue());
+            Protobuf.writeMessageField(timeSeries, 1, field);
+        }
+        field.reset();
+        Protobuf.writeDoubleField(field, 1, sample.value);
+        Protobuf.writeVarintField(field, 2, sample.timestampMs != null ? sample.timestampMs : timestampMs);
+        Protobuf.writeMessageField(timeSeries, 2, field);
+        return timeSeries.toByteArray();
+    }
+
+    static byte[] encodeWriteRequest(List<byte[]> timeSeries) {
+        int size = 0;
+        for (byte[] ts : timeSeries) {
+            size += ts.length + 6;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (byte[] ts : timeSeries) {
+            Protobuf.writeBytesField(out, 1, ts, ts.length);
+        }
+        return out.toByteArray();
+    }
+}
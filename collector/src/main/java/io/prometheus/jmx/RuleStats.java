@@ -0,0 +1,130 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How often each rule of a config was evaluated, how often it matched, how often the result came from the rules cache,
+ * and the time spent running its pattern. A scrape counts into its own instance without synchronization, which is
+ * added to the totals of the config at the end of the scrape. The time is only measured for every value with
+ * ruleMetrics, otherwise for a sample of the values.
+ */
+class RuleStats {
+    final long[] evaluations;
+    final long[] matches;
+    final long[] cacheHits;
+    final long[] matchNanos;
+    private long scrapes;
+
+    RuleStats(int rules) {
+        evaluations = new long[rules];
+        matches = new long[rules];
+        cacheHits = new long[rules];
+        matchNanos = new long[rules];
+    }
+
+    /**
+     * Add the counts of a scrape.
+     */
+    synchronized void add(RuleStats scrape) {
+        for (int i = 0; i < evaluations.length; i++) {
+            evaluations[i] += scrape.evaluations[i];
+            matches[i] += scrape.matches[i];
+            cacheHits[i] += scrape.cacheHits[i];
+            matchNanos[i] += scrape.matchNanos[i];
+        }
+        scrapes++;
+    }
+
+    private synchronized RuleStats copy() {
+        RuleStats copy = new RuleStats(evaluations.length);
+        copy.add(this);
+        copy.scrapes = scrapes;
+        return copy;
+    }
+
+    /**
+     * Render the counts as a table with one line per rule, in the order of the config, for the /debug/rules endpoint.
+     */
+    String render(List<JmxCollector.Rule> rules) {
+        RuleStats stats = copy();
+        long totalNanos = 0;
+        for (long nanos : stats.matchNanos) {
+            totalNanos += nanos;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ").append(stats.scrapes).append(" scrapes since the config was loaded, ")
+                .append(String.format(Locale.ROOT, "%.6f", totalNanos / 1e9)).append(" seconds matching patterns.\n");
+        sb.append("# match_seconds is the time spent running the pattern, estimated from one value in 64 unless ")
+                .append("ruleMetrics is true; cache_hits are evaluations answered by the rules cache without running it.\n");
+        sb.append(String.format(Locale.ROOT, "%5s %14s %14s %14s %14s %10s  %s%n",
+                "rule", "evaluations", "matches", "cache_hits", "match_seconds", "ns/match", "pattern"));
+        for (int i = 0; i < rules.size(); i++) {
+            long patternRuns = stats.evaluations[i] - stats.cacheHits[i];
+            sb.append(String.format(Locale.ROOT, "%5d %14d %14d %14d %14.6f %10d  %s%n",
+                    i, stats.evaluations[i], stats.matches[i], stats.cacheHits[i], stats.matchNanos[i] / 1e9,
+                    patternRuns > 0 ? stats.matchNanos[i] / patternRuns : 0, describe(rules.get(i))));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the counts as jmx_rule_* counters, with the index and the pattern of the rule as labels.
+     */
+    List<MetricFamilySamples> metricFamilySamples(List<JmxCollector.Rule> rules) {
+        RuleStats stats = copy();
+        List<String> labelNames = Arrays.asList("rule", "pattern");
+        List<MetricFamilySamples.Sample> evaluations = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> matches = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> cacheHits = new ArrayList<MetricFamilySamples.Sample>();
+        List<MetricFamilySamples.Sample> matchSeconds = new ArrayList<MetricFamilySamples.Sample>();
+        for (int i = 0; i < rules.size(); i++) {
+            String pattern = rules.get(i).patternString;
+            List<String> labelValues = Arrays.asList(String.valueOf(i), pattern == null ? "" : pattern);
+            evaluations.add(new MetricFamilySamples.Sample(
+                    "jmx_rule_evaluations_total", labelNames, labelValues, stats.evaluations[i]));
+            matches.add(new MetricFamilySamples.Sample(
+                    "jmx_rule_matches_total", labelNames, labelValues, stats.matches[i]));
+            cacheHits.add(new MetricFamilySamples.Sample(
+                    "jmx_rule_cache_hits_total", labelNames, labelValues, stats.cacheHits[i]));
+            matchSeconds.add(new MetricFamilySamples.Sample(
+                    "jmx_rule_match_seconds_total", labelNames, labelValues, stats.matchNanos[i] / 1e9));
+        }
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+        mfsList.add(new MetricFamilySamples("jmx_rule_evaluations", Type.COUNTER,
+                "Number of values checked against the rule.", evaluations));
+        mfsList.add(new MetricFamilySamples("jmx_rule_matches", Type.COUNTER,
+                "Number of values the rule matched.", matches));
+        mfsList.add(new MetricFamilySamples("jmx_rule_cache_hits", Type.COUNTER,
+                "Number of evaluations of the rule answered by the rules cache.", cacheHits));
+        mfsList.add(new MetricFamilySamples("jmx_rule_match_seconds", Type.COUNTER,
+                "Time spent running the pattern of the rule.", matchSeconds));
+        return mfsList;
+    }
+
+    /**
+     * @return the names of the metric families of {@link #metricFamilySamples(List)}.
+     */
+    static List<String> metricFamilyNames() {
+        return Collections.unmodifiableList(Arrays.asList(
+                "jmx_rule_evaluations", "jmx_rule_matches", "jmx_rule_cache_hits", "jmx_rule_match_seconds"));
+    }
+
+    private static String describe(JmxCollector.Rule rule) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(rule.patternString == null ? "<any>" : rule.patternString);
+        if (rule.name != null) {
+            sb.append(" -> ").append(rule.name);
+        }
+        if (rule.cache) {
+            sb.append(" (cached)");
+        }
+        return sb.toString();
+    }
+}
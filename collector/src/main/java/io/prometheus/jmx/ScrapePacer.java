@@ -0,0 +1,119 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a scrape to a share of one CPU, so that a large scrape in the agent does not take a core away from the
+ * application for its whole duration.
+ * <p>
+ * After each bean, if the scrape used more CPU time than its share of the time elapsed, the thread sleeps until it is
+ * back within its share. The sleeps are cut short so that the scrape still ends within the deadline, estimating the
+ * time the remaining beans take from the beans done so far. If the JVM cannot measure the CPU time of a thread, the
+ * time spent not sleeping is counted instead.
+ * <p>
+ * An interrupted thread is not paced, so that a scrape which is being cancelled ends as soon as it can.
+ */
+class ScrapePacer {
+    // Pacing checks the CPU time at most this often, as reading it costs about a microsecond.
+    private static final long CHECK_INTERVAL_NANOS = 1000000L;
+
+    /**
+     * The time, the CPU time of the scrape and sleeping, which tests replace.
+     */
+    interface Clock {
+        long nanoTime();
+
+        /**
+         * @return the CPU time of the thread since the scrape started, or -1 if it cannot be measured.
+         */
+        long cpuNanos();
+
+        /**
+         * Sleep for at most the time, like {@link LockSupport#parkNanos(long)}.
+         */
+        void parkNanos(long nanos);
+    }
+
+    private static class SystemClock implements Clock {
+        private final ThreadCost cost = ThreadCost.start();
+
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        public long cpuNanos() {
+            return cost.cpuNanos();
+        }
+
+        public void parkNanos(long nanos) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private final double cpuShare;
+    private final long deadlineNanos;
+    private final Clock clock;
+    private final long startNanos;
+    private long lastCheckNanos;
+    private long sleptNanos;
+
+    /**
+     * @param cpuShare the share of one CPU the scrape may use, above 0 and up to 1.
+     * @param deadlineNanos the time the scrape should take at most, or 0 for no deadline.
+     */
+    ScrapePacer(double cpuShare, long deadlineNanos) {
+        this(cpuShare, deadlineNanos, new SystemClock());
+    }
+
+    ScrapePacer(double cpuShare, long deadlineNanos, Clock clock) {
+        this.cpuShare = cpuShare;
+        this.deadlineNanos = deadlineNanos;
+        this.clock = clock;
+        this.startNanos = clock.nanoTime();
+        this.lastCheckNanos = startNanos;
+    }
+
+    /**
+     * Called after each bean, sleeps if the scrape is ahead of its CPU share.
+     *
+     * @param done the number of beans scraped so far.
+     * @param total the number of beans of the scrape.
+     */
+    void pace(int done, int total) {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        long now = clock.nanoTime();
+        if (now - lastCheckNanos < CHECK_INTERVAL_NANOS) {
+            return;
+        }
+        lastCheckNanos = now;
+        long elapsedNanos = now - startNanos;
+        long workNanos = elapsedNanos - sleptNanos;
+        long cpuNanos = clock.cpuNanos();
+        long busyNanos = cpuNanos >= 0 ? cpuNanos : workNanos;
+        long sleepNanos = (long) (busyNanos / cpuShare) - elapsedNanos;
+        if (deadlineNanos > 0 && done > 0) {
+            long remainingWorkNanos = (long) ((double) workNanos / done * (total - done));
+            sleepNanos = Math.min(sleepNanos, deadlineNanos - elapsedNanos - remainingWorkNanos);
+        }
+        // Shorter sleeps are not worth it, and the CPU time may be ahead of the wall time by its granularity. What is
+        // not slept now adds up until the next check.
+        if (sleepNanos < CHECK_INTERVAL_NANOS) {
+            return;
+        }
+        long wakeUp = now + sleepNanos;
+        long after = now;
+        // parkNanos may return early, and returns at once when the thread is interrupted, which it leaves set.
+        while (wakeUp - after > 0 && !Thread.currentThread().isInterrupted()) {
+            clock.parkNanos(wakeUp - after);
+            after = clock.nanoTime();
+        }
+        sleptNanos += after - now;
+        lastCheckNanos = after;
+    }
+
+    long sleptNanos() {
+        return sleptNanos;
+    }
+}
@@ -0,0 +1,95 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the time of one scrape went, and how much work it did. A scrape runs in one thread, so these are plain fields,
+ * which are added to the histograms and counters of the collector once at the end of the scrape.
+ */
+class ScrapeStats {
+
+    /**
+     * The stats of the scrapes of one collector, which it exports next to jmx_scrape_duration_seconds, so that the
+     * collectors of several JVMs have their own series.
+     */
+    static class Totals {
+        final Histogram phaseDuration = Histogram.build()
+                .name("jmx_scrape_phase_duration_seconds")
+                .help("Time spent in each phase of a JMX scrape: connect, query (listing the beans), mbean_info, "
+                        + "get_attributes, flatten (of composite and tabular values), match (of the rules), evict "
+                        + "(of cache entries), and pacing (sleeping to stay within scrapeCpuShare).")
+                .labelNames("phase")
+                .exponentialBuckets(0.0001, 4, 10)
+                .create();
+        final Counter beansQueried = Counter.build()
+                .name("jmx_scrape_beans_queried_total")
+                .help("Number of beans scraped, after the whitelist and blacklist.").create();
+        final Counter attributesFetched = Counter.build()
+                .name("jmx_scrape_attributes_fetched_total")
+                .help("Number of attribute values returned by getAttributes().").create();
+        final Counter valuesProcessed = Counter.build()
+                .name("jmx_scrape_values_processed_total")
+                .help("Number of values, after flattening composite and tabular values, matched against the rules.")
+                .create();
+        final Counter samplesEmitted = Counter.build()
+                .name("jmx_scrape_samples_emitted_total")
+                .help("Number of samples produced by the rules.").create();
+        final Counter ruleEvaluations = Counter.build()
+                .name("jmx_scrape_rule_evaluations_total")
+                .help("Number of times a value was checked against a rule, including rules cache lookups.").create();
+        final Counter regexExecutions = Counter.build()
+                .name("jmx_scrape_regex_executions_total")
+                .help("Number of times a rule pattern was run against a value.").create();
+
+        List<MetricFamilySamples> metricFamilySamples() {
+            List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+            mfsList.addAll(phaseDuration.collect());
+            mfsList.addAll(beansQueried.collect());
+            mfsList.addAll(attributesFetched.collect());
+            mfsList.addAll(valuesProcessed.collect());
+            mfsList.addAll(samplesEmitted.collect());
+            mfsList.addAll(ruleEvaluations.collect());
+            mfsList.addAll(regexExecutions.collect());
+            return mfsList;
+        }
+    }
+
+    long connectNanos;
+    long queryNanos;
+    long mbeanInfoNanos;
+    long getAttributesNanos;
+    // Flattening and matching, the matching is also counted in matchNanos.
+    long processNanos;
+    long matchNanos;
+    long evictNanos;
+    long pacingNanos;
+
+    long beans;
+    long attributes;
+    long values;
+    long samples;
+    long evaluations;
+    long regexes;
+
+    void observe(Totals totals) {
+        totals.phaseDuration.labels("connect").observe(connectNanos / 1e9);
+        totals.phaseDuration.labels("query").observe(queryNanos / 1e9);
+        totals.phaseDuration.labels("mbean_info").observe(mbeanInfoNanos / 1e9);
+        totals.phaseDuration.labels("get_attributes").observe(getAttributesNanos / 1e9);
+        totals.phaseDuration.labels("flatten").observe(Math.max(0, processNanos - matchNanos) / 1e9);
+        totals.phaseDuration.labels("match").observe(matchNanos / 1e9);
+        totals.phaseDuration.labels("evict").observe(evictNanos / 1e9);
+        totals.phaseDuration.labels("pacing").observe(pacingNanos / 1e9);
+        totals.beansQueried.inc(beans);
+        totals.attributesFetched.inc(attributes);
+        totals.valuesProcessed.inc(values);
+        totals.samplesEmitted.inc(samples);
+        totals.ruleEvaluations.inc(evaluations);
+        totals.regexExecutions.inc(regexes);
+    }
+}
@@ -0,0 +1,119 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Limits the number of series of one scrape, per metric family and in total.
+ * <p>
+ * Beans are listed in no particular order, so keeping the first series would export different series on every scrape.
+ * Instead, the series with the smallest names and labels are kept: once a limit is reached, a new series replaces the
+ * largest one kept if it is smaller, and is dropped otherwise. The result only depends on the series of the scrape,
+ * and at most the limits of series are held in memory, however many the rules produce.
+ */
+class SeriesLimiter {
+    private static final char SEP = '\u0000';
+
+    private final int maxSeriesPerFamily;
+    private final int maxSeries;
+    // The kept series of each family, by their labels.
+    private final Map<String, TreeMap<String, MetricFamilySamples.Sample>> families =
+            new HashMap<String, TreeMap<String, MetricFamilySamples.Sample>>();
+    // All kept series by family and labels, only if there is a limit on all series.
+    private final TreeSet<String> all;
+    private final Map<String, Integer> dropped = new HashMap<String, Integer>();
+
+    /**
+     * @param maxSeriesPerFamily the maximum of series of a family, or 0 for no limit.
+     * @param maxSeries the maximum of series of all families, or 0 for no limit.
+     */
+    SeriesLimiter(int maxSeriesPerFamily, int maxSeries) {
+        this.maxSeriesPerFamily = maxSeriesPerFamily;
+        this.maxSeries = maxSeries;
+        this.all = maxSeries > 0 ? new TreeSet<String>() : null;
+    }
+
+    void add(MetricFamilySamples.Sample sample) {
+        TreeMap<String, MetricFamilySamples.Sample> series = families.get(sample.name);
+        if (series == null) {
+            series = new TreeMap<String, MetricFamilySamples.Sample>();
+            families.put(sample.name, series);
+        }
+        String labels = labels(sample);
+        if (series.containsKey(labels)) {
+            // The same series twice, as without limits the first one is exported.
+            return;
+        }
+        if (maxSeriesPerFamily > 0 && series.size() >= maxSeriesPerFamily) {
+            String largest = series.lastKey();
+            if (labels.compareTo(largest) > 0) {
+                drop(sample.name);
+                return;
+            }
+            remove(sample.name, largest);
+        }
+        if (all != null && all.size() >= maxSeries) {
+            String key = sample.name + SEP + labels;
+            String largest = all.last();
+            if (key.compareTo(largest) > 0) {
+                drop(sample.name);
+                return;
+            }
+            int sep = largest.indexOf(SEP);
+            remove(largest.substring(0, sep), largest.substring(sep + 1));
+        }
+        series.put(labels, sample);
+        if (all != null) {
+            all.add(sample.name + SEP + labels);
+        }
+    }
+
+    private void remove(String name, String labels) {
+        families.get(name).remove(labels);
+        if (all != null) {
+            all.remove(name + SEP + labels);
+        }
+        drop(name);
+    }
+
+    private void drop(String name) {
+        Integer count = dropped.get(name);
+        dropped.put(name, count == null ? 1 : count + 1);
+    }
+
+    private static String labels(MetricFamilySamples.Sample sample) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+            sb.append(sample.labelNames.get(i)).append(SEP).append(sample.labelValues.get(i)).append(SEP);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Set the samples of the families to the kept series, and remove the families with none left.
+     */
+    void apply(Map<String, MetricFamilySamples> metricFamilySamplesMap) {
+        for (Iterator<MetricFamilySamples> it = metricFamilySamplesMap.values().iterator(); it.hasNext(); ) {
+            MetricFamilySamples mfs = it.next();
+            TreeMap<String, MetricFamilySamples.Sample> series = families.get(mfs.name);
+            mfs.samples.clear();
+            if (series == null || series.isEmpty()) {
+                it.remove();
+            } else {
+                mfs.samples.addAll(series.values());
+            }
+        }
+    }
+
+    /**
+     * @return the number of dropped series per family.
+     */
+    Map<String, Integer> dropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,79 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Serves the snapshots of an application from the file of its {@link SharedSnapshotWriter}, for the sidecar mode of
+ * the WebServer. The responses are written from the mapping of the file, without collecting or rendering anything.
+ * <p>
+ * The snapshots are served as written: requests with name[] parameters get all metrics, and responses are not
+ * gzipped. A format which the application does not write is served in the text format.
+ */
+class SharedSnapshotHandler extends MetricsHandler {
+    private static final Logger LOGGER = Logger.getLogger(SharedSnapshotHandler.class.getName());
+
+    static final Counter tornResponses = Counter.build()
+            .name("jmx_exporter_shared_snapshot_torn_responses_total")
+            .help("Responses served from a shared snapshot which the application wrote again while they were written, "
+                    + "so that they may mix two snapshots.")
+            .register();
+
+    private final SharedSnapshotReader reader;
+
+    SharedSnapshotHandler(SharedSnapshotReader reader) {
+        super(CollectorRegistry.defaultRegistry, -1);
+        this.reader = reader;
+    }
+
+    @Override
+    Response handle(long requestNanos, String path, String rawQuery, String accept, String acceptEncoding)
+            throws IOException {
+        if (HEALTHY_PATH.equals(path) || RULES_PATH.equals(path)) {
+            return super.handle(requestNanos, path, rawQuery, accept, acceptEncoding);
+        }
+        SharedSnapshotReader.Snapshot snapshot = reader.read(chooseContentType(accept));
+        if (snapshot == null) {
+            return new Response(503, "text/plain; charset=utf-8", false,
+                    ("No snapshot in " + reader.file() + " yet.\n").getBytes("UTF-8"), null);
+        }
+        if (snapshot.isStale()) {
+            return new Response(503, "text/plain; charset=utf-8", false,
+                    ("The snapshot in " + reader.file() + " was written "
+                            + (System.currentTimeMillis() - snapshot.writtenMillis) / 1000
+                            + " seconds ago, the application is not writing it.\n").getBytes("UTF-8"), null);
+        }
+        return new SnapshotResponse(snapshot);
+    }
+
+    /**
+     * A response with the body in the mapping, which is checked once written for whether the application wrote the
+     * region again meanwhile.
+     */
+    private static class SnapshotResponse extends Response {
+        private final SharedSnapshotReader.Snapshot snapshot;
+        private boolean closed;
+
+        SnapshotResponse(SharedSnapshotReader.Snapshot snapshot) {
+            super(200, snapshot.contentType, false, snapshot.body(), null);
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (snapshot.overwritten()) {
+                // Too late to not serve it, the application was writing two intervals while it was served.
+                tornResponses.inc();
+                LOGGER.warning("A response of a shared snapshot was written while the snapshot was overwritten.");
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static io.prometheus.jmx.SharedSnapshotWriter.CONTENT_TYPES;
+import static io.prometheus.jmx.SharedSnapshotWriter.CURRENT;
+import static io.prometheus.jmx.SharedSnapshotWriter.HEADER_SIZE;
+import static io.prometheus.jmx.SharedSnapshotWriter.INTERVAL_MILLIS;
+import static io.prometheus.jmx.SharedSnapshotWriter.MAGIC;
+import static io.prometheus.jmx.SharedSnapshotWriter.MOVED;
+import static io.prometheus.jmx.SharedSnapshotWriter.SLOTS;
+import static io.prometheus.jmx.SharedSnapshotWriter.SLOT_SECTIONS;
+import static io.prometheus.jmx.SharedSnapshotWriter.SLOT_SEQUENCE;
+import static io.prometheus.jmx.SharedSnapshotWriter.SLOT_SIZE;
+import static io.prometheus.jmx.SharedSnapshotWriter.SLOT_WRITTEN_MILLIS;
+import static io.prometheus.jmx.SharedSnapshotWriter.VERSION;
+
+/**
+ * Reads the snapshots written by a {@link SharedSnapshotWriter}, as buffers of the mapping of the file rather than
+ * copies, so that they are written from the page cache straight to the socket.
+ * <p>
+ * The file is mapped once, and mapped again when the writer marks it as moved, or when its snapshot is older than
+ * three intervals, as the application may have been restarted with a new file.
+ */
+public class SharedSnapshotReader {
+    // A reader retries this often while the writer publishes, which takes no longer than copying a snapshot.
+    private static final int MAX_ATTEMPTS = 1000;
+
+    private final File file;
+    private MappedByteBuffer mapping;
+
+    public SharedSnapshotReader(File file) {
+        this.file = file;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * A snapshot in one of the formats.
+     */
+    static class Snapshot {
+        final String contentType;
+        final long writtenMillis;
+        final long intervalMillis;
+        private final ByteBuffer body;
+        private final MappedByteBuffer mapping;
+        private final int slot;
+        private final long sequence;
+
+        Snapshot(String contentType, long writtenMillis, long intervalMillis, ByteBuffer body,
+                 MappedByteBuffer mapping, int slot, long sequence) {
+            this.contentType = contentType;
+            this.writtenMillis = writtenMillis;
+            this.intervalMillis = intervalMillis;
+            this.body = body;
+            this.mapping = mapping;
+            this.slot = slot;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the snapshot, from its position to its limit.
+         */
+        ByteBuffer body() {
+            return body.duplicate();
+        }
+
+        /**
+         * @return true if the writer wrote the region of the snapshot again since it was read, so that what was
+         * served of it may mix two snapshots.
+         */
+        boolean overwritten() {
+            int ignored = SharedSnapshotWriter.barrier;
+            return mapping.getLong(slot + SLOT_SEQUENCE) != sequence;
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - writtenMillis > 3 * intervalMillis;
+        }
+    }
+
+    /**
+     * @param contentType the format to read, the text format is read if the writer does not write it.
+     * @return the last snapshot, or null if none was written yet.
+     */
+    synchronized Snapshot read(String contentType) throws IOException {
+        Snapshot snapshot = readMapping(contentType);
+        if (snapshot == null || snapshot.isStale()) {
+            // Possibly a new file of a restarted application.
+            mapping = null;
+            Snapshot remapped = readMapping(contentType);
+            if (remapped != null) {
+                snapshot = remapped;
+            }
+        }
+        return snapshot;
+    }
+
+    private Snapshot readMapping(String contentType) throws IOException {
+        int format = 0;
+        for (int i = 0; i < CONTENT_TYPES.length; i++) {
+            if (CONTENT_TYPES[i].equals(contentType)) {
+                format = i;
+            }
+        }
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (mapping == null && !map()) {
+                return null;
+            }
+            long current = mapping.getLong(CURRENT);
+            if (current == MOVED) {
+                mapping = null;
+                continue;
+            }
+            if (current == 0) {
+                return null;
+            }
+            int slot = SLOTS + (int) (current & 1) * SLOT_SIZE;
+            long sequence = mapping.getLong(slot + SLOT_SEQUENCE);
+            int ignored = SharedSnapshotWriter.barrier;
+            if ((sequence & 1) != 0) {
+                // Written again since the header was read.
+                Thread.yield();
+                continue;
+            }
+            long writtenMillis = mapping.getLong(slot + SLOT_WRITTEN_MILLIS);
+            int section = format;
+            if (mapping.getInt(slot + SLOT_SECTIONS + section * 8 + 4) == 0) {
+                section = 0;
+            }
+            int offset = mapping.getInt(slot + SLOT_SECTIONS + section * 8);
+            int length = mapping.getInt(slot + SLOT_SECTIONS + section * 8 + 4);
+            long intervalMillis = mapping.getLong(INTERVAL_MILLIS);
+            ignored = SharedSnapshotWriter.barrier;
+            if (mapping.getLong(slot + SLOT_SEQUENCE) != sequence) {
+                continue;
+            }
+            if (offset < HEADER_SIZE || (long) offset + length > mapping.capacity()) {
+                throw new IOException("Corrupt shared snapshot " + file);
+            }
+            ByteBuffer body = mapping.duplicate();
+            body.limit(offset + length);
+            body.position(offset);
+            return new Snapshot(CONTENT_TYPES[section], writtenMillis, intervalMillis, body.slice(), mapping, slot,
+                    sequence);
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the file does not exist or is not a shared snapshot.
+     */
+    private boolean map() throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer newMapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (newMapping.getInt(0) != MAGIC || newMapping.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a shared snapshot of this version");
+            }
+            mapping = newMapping;
+            return true;
+        } finally {
+            // The mapping stays valid.
+            raf.close();
+        }
+    }
+}
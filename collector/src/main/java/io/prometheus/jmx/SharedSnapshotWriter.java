@@ -0,0 +1,274 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Writes the rendered output of a {@link CollectorRegistry} into a memory-mapped file, for the sidecar mode of the
+ * WebServer on the same host to serve it without an HTTP server in the application. This is configured in the
+ * sharedSnapshot section of the config file:
+ * <pre>
+ * sharedSnapshot:
+ *   file: /dev/shm/jmx_exporter.snapshot
+ *   intervalSeconds: 15
+ *   formats: [text, openmetrics, protobuf]
+ * </pre>
+ * The file has a header and two regions. Each snapshot is written into the region which is not being served, with
+ * a seqlock on the region (its sequence is odd while it is written), and then published by pointing the header at it.
+ * A reader serving a region while it is written again, which takes two intervals, sees the sequence of the region
+ * changed. When the snapshots outgrow the regions, a larger file is written and renamed over the old one, and the old
+ * one is marked as moved, so that readers map the new one.
+ * <p>
+ * Layout, in big-endian order:
+ * <pre>
+ * 0   int  magic
+ * 4   int  version
+ * 8   long current: the number of published snapshots * 2 + their region, or MOVED
+ * 16  long intervalMillis
+ * 64  the slot of region 0, and at 128 the slot of region 1:
+ *     0  long sequence, odd while the region is written
+ *     8  long writtenMillis
+ *     16 int offset and int length of each format (text, OpenMetrics, protobuf), the length 0 if not written
+ * 192 the regions
+ * </pre>
+ * There must be only one writer per file.
+ */
+public class SharedSnapshotWriter {
+    private static final Logger LOGGER = Logger.getLogger(SharedSnapshotWriter.class.getName());
+
+    static final String SECTION = "sharedSnapshot";
+    static final int MAGIC = 0x4a4d5853;
+    static final int VERSION = 1;
+    static final int CURRENT = 8;
+    static final int INTERVAL_MILLIS = 16;
+    static final int SLOTS = 64;
+    static final int SLOT_SIZE = 64;
+    static final int SLOT_SEQUENCE = 0;
+    static final int SLOT_WRITTEN_MILLIS = 8;
+    static final int SLOT_SECTIONS = 16;
+    static final int HEADER_SIZE = SLOTS + 2 * SLOT_SIZE;
+    static final long MOVED = -1;
+    static final String[] CONTENT_TYPES = {
+            TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100, ProtobufFormat.CONTENT_TYPE};
+    private static final String[] FORMAT_NAMES = {"text", "openmetrics", "protobuf"};
+    private static final int MIN_REGION_SIZE = 1 << 16;
+
+    // Orders the accesses to the mapping, as a volatile access is a barrier for the compiler and the CPU.
+    static volatile int barrier;
+
+    private final File file;
+    private final long intervalMillis;
+    private final boolean[] formats = new boolean[CONTENT_TYPES.length];
+    private final CollectorRegistry registry;
+
+    private MappedByteBuffer mapping;
+    private int regionSize;
+    private long published;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Read the sharedSnapshot section of the config, and if present start writing the snapshots of the registry.
+     *
+     * @param yamlConfig the config file, see {@link JmxCollector#loadYaml}.
+     * @return the started SharedSnapshotWriter, or null if it is not configured.
+     */
+    public static SharedSnapshotWriter start(Map<String, Object> yamlConfig, CollectorRegistry registry) {
+        if (!isConfigured(yamlConfig)) {
+            return null;
+        }
+        SharedSnapshotWriter writer =
+                new SharedSnapshotWriter((Map<String, Object>) yamlConfig.get(SECTION), registry);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * @return true if the config has a sharedSnapshot section.
+     */
+    public static boolean isConfigured(Map<String, Object> yamlConfig) {
+        return yamlConfig.containsKey(SECTION);
+    }
+
+    SharedSnapshotWriter(Map<String, Object> sharedSnapshotConfig, CollectorRegistry registry) {
+        this.file = file(sharedSnapshotConfig);
+        int intervalSeconds = 15;
+        if (sharedSnapshotConfig.containsKey("intervalSeconds")) {
+            try {
+                intervalSeconds = (Integer) sharedSnapshotConfig.get("intervalSeconds");
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException("Invalid number provided for sharedSnapshot intervalSeconds", e);
+            }
+        }
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("sharedSnapshot intervalSeconds must be positive");
+        }
+        this.intervalMillis = intervalSeconds * 1000L;
+        // The text format is always written, it is served when the format asked for is not.
+        formats[0] = true;
+        if (sharedSnapshotConfig.containsKey("formats")) {
+            for (Object format : (List<Object>) sharedSnapshotConfig.get("formats")) {
+                int index = Arrays.asList(FORMAT_NAMES).indexOf(String.valueOf(format));
+                if (index < 0) {
+                    throw new IllegalArgumentException("Unknown sharedSnapshot format " + format
+                            + ", must be one of text, openmetrics and protobuf");
+                }
+                formats[index] = true;
+            }
+        }
+        this.registry = registry;
+    }
+
+    /**
+     * @return the file of the sharedSnapshot section of a config.
+     */
+    static File file(Map<String, Object> sharedSnapshotConfig) {
+        if (sharedSnapshotConfig == null || !sharedSnapshotConfig.containsKey("file")) {
+            throw new IllegalArgumentException("sharedSnapshot must specify a file");
+        }
+        return new File((String) sharedSnapshotConfig.get("file"));
+    }
+
+    synchronized void start() {
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    long start = System.currentTimeMillis();
+                    ThreadCost cost = ThreadCost.start();
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        LOGGER.warning("Failed to write the shared snapshot to " + file + ": " + e);
+                    } catch (RuntimeException e) {
+                        LOGGER.warning("Failed to collect the shared snapshot: " + e);
+                    } finally {
+                        cost.record("shared_snapshot");
+                    }
+                    try {
+                        Thread.sleep(Math.max(0, intervalMillis - (System.currentTimeMillis() - start)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }, "jmx_exporter-shared-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Collect the registry and write its snapshot.
+     */
+    synchronized void write() throws IOException {
+        List<MetricFamilySamples> mfs = Collections.list(registry.metricFamilySamples());
+        byte[][] rendered = new byte[CONTENT_TYPES.length][];
+        int total = 0;
+        for (int i = 0; i < CONTENT_TYPES.length; i++) {
+            if (formats[i]) {
+                rendered[i] = MetricsSnapshot.render(CONTENT_TYPES[i], mfs);
+                total += rendered[i].length;
+            }
+        }
+        write(rendered, total);
+    }
+
+    private void write(byte[][] rendered, int total) throws IOException {
+        int region;
+        if (mapping == null || total > regionSize) {
+            // A new file, with region 0 as the first one written.
+            create(Math.max(MIN_REGION_SIZE, total + total / 4));
+            region = 0;
+        } else {
+            region = published == 0 ? 0 : 1 - (int) (mapping.getLong(CURRENT) & 1);
+        }
+        int slot = SLOTS + region * SLOT_SIZE;
+        long sequence = mapping.getLong(slot + SLOT_SEQUENCE);
+        mapping.putLong(slot + SLOT_SEQUENCE, sequence + 1);
+        barrier = 0;
+        int offset = HEADER_SIZE + region * regionSize;
+        for (int i = 0; i < rendered.length; i++) {
+            int length = rendered[i] == null ? 0 : rendered[i].length;
+            if (length > 0) {
+                mapping.position(offset);
+                mapping.put(rendered[i]);
+            }
+            mapping.putInt(slot + SLOT_SECTIONS + i * 8, offset);
+            mapping.putInt(slot + SLOT_SECTIONS + i * 8 + 4, length);
+            offset += length;
+        }
+        mapping.putLong(slot + SLOT_WRITTEN_MILLIS, System.currentTimeMillis());
+        barrier = 0;
+        mapping.putLong(slot + SLOT_SEQUENCE, sequence + 2);
+        barrier = 0;
+        published++;
+        mapping.putLong(CURRENT, published * 2 + region);
+    }
+
+    /**
+     * Create a file with larger regions next to the file, and rename it over the file once it is mapped. The file it
+     * replaces, the previous one of this writer or one left by an earlier process, is marked as moved.
+     */
+    private void create(int newRegionSize) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        MappedByteBuffer newMapping;
+        try {
+            raf.setLength(HEADER_SIZE + 2L * newRegionSize);
+            newMapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * newRegionSize);
+        } finally {
+            // The mapping stays valid.
+            raf.close();
+        }
+        newMapping.putInt(0, MAGIC);
+        newMapping.putInt(4, VERSION);
+        newMapping.putLong(CURRENT, 0);
+        newMapping.putLong(INTERVAL_MILLIS, intervalMillis);
+        MappedByteBuffer oldMapping = mapping != null ? mapping : mapExisting();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+        }
+        if (oldMapping != null) {
+            oldMapping.putLong(CURRENT, MOVED);
+        }
+        mapping = newMapping;
+        regionSize = newRegionSize;
+        published = 0;
+    }
+
+    private MappedByteBuffer mapExisting() {
+        if (file.length() < HEADER_SIZE) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                MappedByteBuffer existing = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                return existing.getInt(0) == MAGIC ? existing : null;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOGGER.fine("Not marking " + file + " as moved: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.prometheus.jmx;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Minimal compressor for the Snappy block format, as required by the Prometheus remote write protocol.
+ * <p>
+ * This is a straightforward greedy implementation: 4 byte sequences are looked up in a hash table of their last
+ * position, and matches within 64KB are emitted as copies. It does not reach the speed of the native library,
+ * but exposition data is highly repetitive and compresses well with it.
+ */
+class Snappy {
+    private static final int HASH_BITS = 14;
+    private static final int MAX_OFFSET = 65535;
+    private static final int MIN_MATCH = 4;
+
+    private Snappy() {
+    }
+
+    static byte[] compress(byte[] input) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        writeVarint(out, input.length);
+
+        int[] table = new int[1 << HASH_BITS];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = -1;
+        }
+
+        int literalStart = 0;
+        int ip = 0;
+        int limit = input.length - MIN_MATCH;
+        while (ip <= limit) {
+            int h = hash(input, ip);
+            int candidate = table[h];
+            table[h] = ip;
+            if (candidate >= 0 && ip - candidate <= MAX_OFFSET && equals4(input, candidate, ip)) {
+                writeLiteral(out, input, literalStart, ip - literalStart);
+                int length = MIN_MATCH;
+                while (ip + length < input.length && input[candidate + length] == input[ip + length]) {
+                    length++;
+                }
+                writeCopy(out, ip - candidate, length);
+                ip += length;
+                literalStart = ip;
+            } else {
+                ip++;
+            }
+        }
+        writeLiteral(out, input, literalStart, input.length - literalStart);
+        return out.toByteArray();
+    }
+
+    private static int hash(byte[] b, int i) {
+        int v = (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+        return (v * 0x1E35A7BD) >>> (32 - HASH_BITS);
+    }
+
+    private static boolean equals4(byte[] b, int i, int j) {
+        return b[i] == b[j] && b[i + 1] == b[j + 1] && b[i + 2] == b[j + 2] && b[i + 3] == b[j + 3];
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream out, byte[] input, int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        int n = length - 1;
+        if (n < 60) {
+            out.write(n << 2);
+        } else if (n < 1 << 8) {
+            out.write(60 << 2);
+            out.write(n);
+        } else if (n < 1 << 16) {
+            out.write(61 << 2);
+            out.write(n);
+            out.write(n >> 8);
+        } else if (n < 1 << 24) {
+            out.write(62 << 2);
+            out.write(n);
+            out.write(n >> 8);
+            out.write(n >> 16);
+        } else {
+            out.write(63 << 2);
+            out.write(n);
+            out.write(n >> 8);
+            out.write(n >> 16);
+            out.write(n >> 24);
+        }
+        out.write(input, start, length);
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        // A single copy element holds at most 64 bytes, and must not leave less than 4 bytes for the next one.
+        while (length >= 68) {
+            writeCopyElement(out, offset, 64);
+            length -= 64;
+        }
+        if (length > 64) {
+            writeCopyElement(out, offset, 60);
+            length -= 60;
+        }
+        writeCopyElement(out, offset, length);
+    }
+
+    private static void writeCopyElement(ByteArrayOutputStream out, int offset, int length) {
+        if (length < 12 && offset < 2048) {
+            out.write(1 | (length - 4) << 2 | (offset >> 8) << 5);
+            out.write(offset);
+        } else {
+            out.write(2 | (length - 1) << 2);
+            out.write(offset);
+            out.write(offset >> 8);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
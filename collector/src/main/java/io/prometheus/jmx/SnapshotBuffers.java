@@ -0,0 +1,147 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Gauge;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Direct buffers for rendered snapshots, with snapshotOffHeap. Outputs of 100 MB and more rendered on the heap are
+ * promoted to the old generation of the application while they are served; direct buffers are not, and they are
+ * reused by the next snapshots rather than allocated for every one.
+ * <p>
+ * A buffer is taken from the pool for each rendering, grown by moving to a larger one as the output is written, and
+ * returned once the snapshot is replaced and no response is writing it any more. The pool keeps at most the buffers of
+ * two snapshots, the current one and the one being replaced; further buffers are left to the garbage collector, which
+ * frees their memory.
+ */
+class SnapshotBuffers {
+    static final Gauge bufferBytes = Gauge.build()
+            .name("jmx_exporter_snapshot_buffer_bytes")
+            .help("Capacity of the direct buffers of rendered snapshots, by whether they hold a snapshot or are free.")
+            .labelNames("state")
+            .register();
+
+    private static final int MIN_CAPACITY = 1 << 16;
+    private static final int MAX_FREE_BUFFERS = 2 * MetricsSnapshot.RENDERINGS;
+
+    private final List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+    // The size of the last output of each rendering, the initial capacity of the next one.
+    private final int[] lastSizes = new int[MetricsSnapshot.RENDERINGS];
+
+    /**
+     * @return a cleared buffer of at least the capacity, the smallest free one if there is one.
+     */
+    synchronized ByteBuffer acquire(int minCapacity) {
+        ByteBuffer best = null;
+        for (ByteBuffer buffer : free) {
+            if (buffer.capacity() >= minCapacity && (best == null || buffer.capacity() < best.capacity())) {
+                best = buffer;
+            }
+        }
+        if (best != null) {
+            free.remove(best);
+            bufferBytes.labels("free").dec(best.capacity());
+        } else {
+            best = ByteBuffer.allocateDirect(Math.max(minCapacity, MIN_CAPACITY));
+        }
+        bufferBytes.labels("used").inc(best.capacity());
+        best.clear();
+        return best;
+    }
+
+    /**
+     * Return a buffer to the pool. It must no longer be used.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        bufferBytes.labels("used").dec(buffer.capacity());
+        free.add(buffer);
+        bufferBytes.labels("free").inc(buffer.capacity());
+        if (free.size() > MAX_FREE_BUFFERS) {
+            // The smallest buffer is the least likely to fit the next output.
+            ByteBuffer smallest = free.get(0);
+            for (ByteBuffer candidate : free) {
+                if (candidate.capacity() < smallest.capacity()) {
+                    smallest = candidate;
+                }
+            }
+            free.remove(smallest);
+            bufferBytes.labels("free").dec(smallest.capacity());
+        }
+    }
+
+    /**
+     * @param rendering the index of the rendering in the snapshot, to start with the size of its last output.
+     */
+    Output output(int rendering) {
+        return new Output(rendering);
+    }
+
+    /**
+     * Writes to a buffer of the pool, moving to a larger one when it is full.
+     */
+    class Output extends OutputStream {
+        private final int rendering;
+        private ByteBuffer buffer;
+
+        Output(int rendering) {
+            this.rendering = rendering;
+            int lastSize;
+            synchronized (SnapshotBuffers.this) {
+                lastSize = lastSizes[rendering];
+            }
+            // Some room for the output to grow, so that it usually fits the first buffer.
+            this.buffer = acquire(lastSize + lastSize / 8);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+
+        void write(ByteBuffer src) {
+            ensureRemaining(src.remaining());
+            buffer.put(src);
+        }
+
+        private void ensureRemaining(int length) {
+            if (buffer.remaining() >= length) {
+                return;
+            }
+            long needed = (long) buffer.position() + length;
+            int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity()));
+            ByteBuffer larger = acquire(capacity);
+            buffer.flip();
+            larger.put(buffer);
+            release(buffer);
+            buffer = larger;
+        }
+
+        /**
+         * @return the output, from position 0 to the limit.
+         */
+        ByteBuffer finish() {
+            buffer.flip();
+            synchronized (SnapshotBuffers.this) {
+                lastSizes[rendering] = buffer.limit();
+            }
+            return buffer;
+        }
+
+        /**
+         * Return the buffer to the pool, if the rendering failed.
+         */
+        void discard() {
+            release(buffer);
+        }
+    }
+}
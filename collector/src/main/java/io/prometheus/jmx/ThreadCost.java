@@ -0,0 +1,120 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Counter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CPU time and the allocated bytes of the current thread since the start of some work, like a scrape or a request.
+ * <p>
+ * CPU time is measured if the JVM supports it for the current thread. Allocated bytes are only available on JVMs with
+ * com.sun.management.ThreadMXBean, which is looked up by reflection so that the collector still runs on other JVMs.
+ * What is not supported is reported as -1 and not added to the counters.
+ */
+class ThreadCost {
+    private static final Logger LOGGER = Logger.getLogger(ThreadCost.class.getName());
+
+    static final Counter cpuSeconds = Counter.build()
+            .name("jmx_exporter_cpu_seconds_total")
+            .help("CPU time used by the threads of the exporter: http for requests (including the scrapes they run), "
+                    + "scraper for scrapes with lowPriorityScraping, remote_write, shared_snapshot and warmup.")
+            .labelNames("thread")
+            .register();
+    static final Counter allocatedBytes = Counter.build()
+            .name("jmx_exporter_allocated_bytes_total")
+            .help("Bytes allocated by the threads of the exporter, by the same threads as jmx_exporter_cpu_seconds_total.")
+            .labelNames("thread")
+            .register();
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = cpuTimeSupported();
+    private static final Method GET_THREAD_ALLOCATED_BYTES = findGetThreadAllocatedBytes();
+
+    private final long startCpuNanos;
+    private final long startAllocatedBytes;
+
+    private ThreadCost() {
+        startCpuNanos = currentCpuNanos();
+        startAllocatedBytes = currentAllocatedBytes();
+    }
+
+    /**
+     * Start measuring the current thread.
+     */
+    static ThreadCost start() {
+        return new ThreadCost();
+    }
+
+    /**
+     * @return the CPU time of the current thread since the start, or -1 if it is not supported.
+     */
+    long cpuNanos() {
+        return startCpuNanos < 0 ? -1 : currentCpuNanos() - startCpuNanos;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread since the start, or -1 if it is not supported.
+     */
+    long allocatedBytes() {
+        return startAllocatedBytes < 0 ? -1 : currentAllocatedBytes() - startAllocatedBytes;
+    }
+
+    /**
+     * Add the cost since the start to the counters of the thread.
+     */
+    void record(String thread) {
+        long cpuNanos = cpuNanos();
+        if (cpuNanos >= 0) {
+            cpuSeconds.labels(thread).inc(cpuNanos / 1e9);
+        }
+        long allocatedBytes = allocatedBytes();
+        if (allocatedBytes >= 0) {
+            ThreadCost.allocatedBytes.labels(thread).inc(allocatedBytes);
+        }
+    }
+
+    private static long currentCpuNanos() {
+        return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long currentAllocatedBytes() {
+        if (GET_THREAD_ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(THREAD_MX_BEAN, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static boolean cpuTimeSupported() {
+        try {
+            return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static Method findGetThreadAllocatedBytes() {
+        try {
+            Class<?> sunThreadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunThreadMXBean.isInstance(THREAD_MX_BEAN)) {
+                return null;
+            }
+            Method supported = sunThreadMXBean.getMethod("isThreadAllocatedMemorySupported");
+            Method enabled = sunThreadMXBean.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!(Boolean) supported.invoke(THREAD_MX_BEAN) || !(Boolean) enabled.invoke(THREAD_MX_BEAN)) {
+                return null;
+            }
+            return sunThreadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Allocated bytes of threads are not supported: {0}", e.toString());
+            return null;
+        }
+    }
+}
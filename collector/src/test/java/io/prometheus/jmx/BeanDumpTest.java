@@ -0,0 +1,77 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BeanDumpTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String CONFIG = "---\nrules:\n"
+            + "- pattern: 'org.apache.cassandra.metrics<type=(\\w+), name=(\\w+)><>Value: (\\d+)'\n"
+            + "  name: cassandra_$1_$2\n"
+            + "- pattern: '.*'\n";
+
+    @Test
+    public void testReplayGivesSameSamples() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        Cassandra.registerBean(server);
+        CassandraMetrics.registerBean(server);
+        // CompositeData and TabularData values.
+        Hadoop.registerBean(server);
+        HadoopDataNode.registerBean(server);
+        TomcatServlet.registerBean(server);
+        Bool.registerBean(server);
+        Camel.registerBean(server);
+
+        File file = folder.newFile("beans.dump");
+        assertEquals(server.getMBeanCount().intValue(), BeanDump.capture(server, file));
+
+        List<MetricFamilySamples> captured = collect(server);
+        assertTrue(captured.size() > 5);
+        assertEquals(captured, collect(BeanDump.load(file)));
+        // Replays are deterministic.
+        assertEquals(collect(BeanDump.load(file)), collect(BeanDump.load(file)));
+    }
+
+    @Test
+    public void testKeyPropertyOrderIsKept() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName name = new ObjectName("org.apache.cassandra.metrics:type=Compaction,name=CompletedTasks");
+        server.registerMBean(new CassandraMetrics(), name);
+
+        File file = folder.newFile("beans.dump");
+        BeanDump.capture(server, file);
+        assertEquals("type=Compaction,name=CompletedTasks",
+                BeanDump.load(file).queryNames(name, null).iterator().next().getKeyPropertyListString());
+    }
+
+    private static List<MetricFamilySamples> collect(MBeanServer server) throws Exception {
+        List<String> scrapeStats = new ArrayList<String>();
+        for (MetricFamilySamples mfs : new ScrapeStats.Totals().metricFamilySamples()) {
+            scrapeStats.add(mfs.name);
+        }
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
+        for (MetricFamilySamples mfs : new JmxCollector(CONFIG).scrapeFrom(server).collect()) {
+            // The cost of the scrape differs.
+            if (!mfs.name.equals("jmx_scrape_duration_seconds") && !mfs.name.equals("jmx_scrape_cpu_seconds")
+                    && !mfs.name.equals("jmx_scrape_allocated_bytes") && !scrapeStats.contains(mfs.name)) {
+                mfsList.add(mfs);
+            }
+        }
+        return mfsList;
+    }
+}
@@ -0,0 +1,106 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigAnalyzerTest {
+
+    @Test
+    public void testBacktrackingProblems() {
+        assertNull(ConfigAnalyzer.backtrackingProblem("kafka.server<type=(.+), name=(.+)PerSec\\w*><>Count"));
+        assertNull(ConfigAnalyzer.backtrackingProblem("(a|b)+c"));
+        assertNull(ConfigAnalyzer.backtrackingProblem("[(\\w+)*]x"));
+        assertNull(ConfigAnalyzer.backtrackingProblem("(?i)(\\w{2})+"));
+        assertNull(ConfigAnalyzer.backtrackingProblem(".*a.*b.*c"));
+        assertNotNull(ConfigAnalyzer.backtrackingProblem("(\\w+)*x"));
+        assertNotNull(ConfigAnalyzer.backtrackingProblem("(?:a(b+))+"));
+        assertNotNull(ConfigAnalyzer.backtrackingProblem("(x{1,})*"));
+        assertNotNull(ConfigAnalyzer.backtrackingProblem(".*a.+b.*c.*d"));
+    }
+
+    @Test
+    public void testShadowedRulesAndOrder() throws Exception {
+        JmxCollector collector = new JmxCollector(("---\nrules:\n"
+                + "- pattern: `^x<type=(\\\\w+)><>(\\\\w+):`\n  name: x_$1_$2\n"
+                + "- pattern: `^x<type=Hot><>Count:`\n  name: x_hot\n"
+                + "- pattern: `^y<type=(\\\\w+)><>(\\\\w+):`\n  name: y_$1_$2\n"
+                + "- pattern: `^z<>never:`\n  name: never\n").replace('`', '"'));
+        ConfigAnalyzer analyzer = new ConfigAnalyzer(collector.rules());
+        analyzer.recordBean("x", properties("Hot"), new LinkedList<String>(), "Count", "long", "", 1L);
+        for (int i = 0; i < 100; i++) {
+            analyzer.recordBean("y", properties("Cold"), new LinkedList<String>(), "Count" + i, "long", "", 1L);
+        }
+        analyzer.recordBean("other", properties("Cold"), new LinkedList<String>(), "Count", "long", "", 1L);
+
+        ConfigAnalyzer.Report report = analyzer.analyze();
+        assertEquals(102, report.values);
+        assertEquals(Arrays.asList(1, 1, 100, 0), Arrays.asList(report.matches[0], report.matches[1],
+                report.matches[2], report.matches[3]));
+        assertEquals(0, report.firstMatches[1]);
+        assertEquals(new HashSet<Integer>(Arrays.asList(0)), report.shadowedBy.get(1));
+        assertTrue(report.hasProblems());
+
+        // The y rule matches most values and no other rule matches them, so it goes first. The shadowed rule stays
+        // after the rule which shadows it.
+        assertEquals(2, report.order[0]);
+        assertTrue(indexOf(report.order, 0) < indexOf(report.order, 1));
+        assertEquals(1 * 1 + 100 * 3 + 4, report.evaluationsBefore);
+        assertTrue(report.evaluationsAfter < report.evaluationsBefore);
+        assertTrue(analyzer.render(report).contains("shadowed: all values of this rule match earlier rules [0]"));
+    }
+
+    @Test
+    public void testOrderIsKeptWhenItCannotImprove() throws Exception {
+        int[] order = ConfigAnalyzer.order(new int[]{10, 5}, new double[]{100, 100},
+                new BitSet[]{new BitSet(), new BitSet()});
+        assertEquals(0, order[0]);
+        assertEquals(1, order[1]);
+    }
+
+    @Test
+    public void testScrapeOfBeans() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        CassandraMetrics.registerBean(server);
+        TomcatServlet.registerBean(server);
+        JmxCollector collector = new JmxCollector(("---\nrules:\n"
+                + "- pattern: `^org.apache.cassandra.metrics<type=(\\\\w+), name=(\\\\w+)><>Value:`\n  name: cassandra_$1_$2\n"
+                + "- pattern: `.*`\n").replace('`', '"')).scrapeFrom(server);
+        ConfigAnalyzer analyzer = new ConfigAnalyzer(collector.rules());
+        collector.scrape(analyzer);
+        ConfigAnalyzer.Report report = analyzer.analyze();
+        assertTrue(report.firstMatches[0] > 0);
+        assertTrue(report.firstMatches[1] > 0);
+        assertFalse(report.hasProblems());
+        // The catch-all rule must stay last.
+        assertEquals(1, report.order[1]);
+    }
+
+    private static Map<String, String> properties(String type) {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put("type", type);
+        return properties;
+    }
+
+    private static int indexOf(int[] array, int value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
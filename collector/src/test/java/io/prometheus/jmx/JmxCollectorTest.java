@@ -9,6 +9,11 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import javax.management.MBeanServer;
@@ -188,12 +193,56 @@ public class JmxCollectorTest {
       assertNull(registry.getSampleValue("hadoop_DataNode_replaceBlockOpMinTime", new String[]{"name"}, new String[]{"DataNodeActivity-ams-hdd001-50010"}));
     }
 
+    @Test
+    public void testExcludeObjectNameAttributes() throws Exception {
+      JmxCollector jc = new JmxCollector("\n---\nexcludeObjectNameAttributes:\n  `boolean:Type=Test`:\n  - `False`\n  `org.apache.cassandra.*:*`:\n  - ActiveCount".replace('`','"')).register(registry);
+
+      assertEquals(1.0, registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}), .001);
+      assertNull(registry.getSampleValue("boolean_Test_False", new String[]{}, new String[]{}));
+      assertNull(registry.getSampleValue("org_apache_cassandra_concurrent_CONSISTENCY_MANAGER_ActiveCount", new String[]{}, new String[]{}));
+      assertNotNull(registry.getSampleValue("java_lang_OperatingSystem_ProcessCpuTime", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testIncludeObjectNameAttributes() throws Exception {
+      JmxCollector jc = new JmxCollector("\n---\nincludeObjectNameAttributes:\n  `boolean:*`:\n  - `True`\n  - Missing\nexcludeObjectNameAttributes:\n  `java.lang:type=OperatingSystem`:\n  - ProcessCpuTime".replace('`','"')).register(registry);
+
+      assertEquals(1.0, registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}), .001);
+      assertNull(registry.getSampleValue("boolean_Test_False", new String[]{}, new String[]{}));
+      // Beans without a matching include list are not restricted.
+      assertEquals(100, registry.getSampleValue("org_apache_cassandra_concurrent_CONSISTENCY_MANAGER_ActiveCount", new String[]{}, new String[]{}), .001);
+      assertNull(registry.getSampleValue("java_lang_OperatingSystem_ProcessCpuTime", new String[]{}, new String[]{}));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testExcludeObjectNameAttributesMustBeMap() throws Exception {
+      new JmxCollector("---\nexcludeObjectNameAttributes:\n- java.lang:*");
+    }
+
     @Test
     public void testDefaultExportLowercaseOutputName() throws Exception {
       JmxCollector jc = new JmxCollector("---\nlowercaseOutputName: true").register(registry);
       assertNotNull(registry.getSampleValue("java_lang_operatingsystem_processcputime", new String[]{}, new String[]{}));
     }
 
+    @Test
+    public void testCollectRequestedNames() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n- pattern: `.*`".replace('`','"'));
+      List<MetricFamilySamples> mfsList = jc.collect(new HashSet<String>(Arrays.asList("foo")));
+      assertEquals(1, mfsList.size());
+      assertEquals("foo", mfsList.get(0).name);
+      assertEquals(200, mfsList.get(0).samples.get(0).value, .001);
+
+      mfsList = jc.collect(new HashSet<String>(Arrays.asList("org_apache_cassandra_metrics_Compaction_Value", "jmx_scrape_error")));
+      assertEquals(2, mfsList.size());
+      for (MetricFamilySamples mfs : mfsList) {
+        assertTrue(mfs.name.equals("org_apache_cassandra_metrics_Compaction_Value") || mfs.name.equals("jmx_scrape_error"));
+      }
+
+      assertEquals(0, jc.collect(new HashSet<String>(Arrays.asList("bar"))).size());
+    }
+
     @Test
     public void testServletRequestPattern() throws Exception {
       JmxCollector jc = new JmxCollector(
@@ -245,11 +294,11 @@ public class JmxCollectorTest {
       assertEquals(0.001, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
     }
 
-    @Test(expected=IllegalStateException.class)
+    @Test
     public void testDelayedStartNotReady() throws Exception {
       JmxCollector jc = new JmxCollector("---\nstartDelaySeconds: 1").register(registry);
       assertNull(registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}));
-      fail();
+      assertTrue(jc.collect().isEmpty());
     }
 
     @Test
@@ -259,6 +308,22 @@ public class JmxCollectorTest {
       assertEquals(1.0, registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}), .001);
     }
 
+    @Test
+    public void testDelayedStartWaitsForWarmUp() throws Exception {
+      JmxCollector jc = new JmxCollector("---\nstartDelaySeconds: 1");
+      long start = System.nanoTime();
+      List<MetricFamilySamples> mfsList;
+      while ((mfsList = jc.collect()).isEmpty()) {
+        assertTrue(System.nanoTime() - start < 30000000000L);
+        Thread.sleep(10);
+      }
+      // The first samples are only served once the warm-up scrape is over.
+      assertTrue(jc.warmedUp());
+      assertTrue(System.nanoTime() - start >= 1000000000L);
+      // Which is not counted in the stats of the scrapes.
+      assertEquals(1, sampleValue(mfsList, "jmx_scrape_phase_duration_seconds_count", "match"), .001);
+    }
+
     @Test
     public void testCamelLastExchangFailureTimestamp() throws Exception{
       String rulePattern =
@@ -298,4 +363,239 @@ public class JmxCollectorTest {
         samples = jc.collect();
         assertEquals("help message", samples.get(0).help);
     }
+
+    @Test
+    public void testScrapeStatsAreExported() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"'));
+        JmxCollector other = new JmxCollector("\n---\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"'));
+        other.collect();
+        jc.collect();
+        List<MetricFamilySamples> mfsList = jc.collect();
+        // The stats of this collector's scrapes, including the current one.
+        assertEquals(2, sampleValue(mfsList, "jmx_scrape_phase_duration_seconds_count", "match"), .001);
+        assertEquals(2, sampleValue(mfsList, "jmx_scrape_phase_duration_seconds_count", "get_attributes"), .001);
+        assertTrue(sampleValue(mfsList, "jmx_scrape_beans_queried_total", null) > 0);
+        double values = sampleValue(mfsList, "jmx_scrape_values_processed_total", null);
+        assertTrue(values > 0);
+        assertEquals(2, sampleValue(mfsList, "jmx_scrape_samples_emitted_total", null), .001);
+        // One rule, so one regex per value.
+        assertEquals(values, sampleValue(mfsList, "jmx_scrape_regex_executions_total", null), .001);
+    }
+
+    private static double sampleValue(List<MetricFamilySamples> mfsList, String name, String phase) {
+        for (MetricFamilySamples mfs : mfsList) {
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                if (sample.name.equals(name) && (phase == null || sample.labelValues.contains(phase))) {
+                    return sample.value;
+                }
+            }
+        }
+        throw new AssertionError("No sample " + name);
+    }
+
+    @Test
+    public void testRuleMetrics() throws Exception {
+        JmxCollector jc = new JmxCollector(("\n---\nruleMetrics: true\nrules:\n"
+                + "- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n  cache: true\n"
+                + "- pattern: `^nothing<`").replace('`','"')).register(registry);
+        String[] labelNames = new String[]{"rule", "pattern"};
+        String[] first = new String[]{"0", "^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:"};
+        String[] second = new String[]{"1", "^nothing<"};
+        // Each getSampleValue() is a scrape, which counts itself.
+        assertEquals(1, registry.getSampleValue("jmx_rule_matches_total", labelNames, first), .001);
+        // The second scrape takes the match from the rules cache.
+        assertEquals(1, registry.getSampleValue("jmx_rule_cache_hits_total", labelNames, first), .001);
+        assertEquals(0, registry.getSampleValue("jmx_rule_matches_total", labelNames, second), .001);
+        assertTrue(registry.getSampleValue("jmx_rule_evaluations_total", labelNames, first) >= 4);
+        assertNull(registry.getSampleValue("jmx_rule_matches_total", labelNames, new String[]{"2", ""}));
+    }
+
+    @Test
+    public void testMaxSeriesPerFamily() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nmaxSeriesPerFamily: 2\nrules:\n- pattern: `^java.lang<type=Threading><>ThreadCount:`\n  name: threads\n- pattern: `^java.lang<type=(\\\\w+).*><>(\\\\w+):`\n  name: jvm\n  labels:\n    type: $1\n    attribute: $2".replace('`','"')).register(registry);
+        int series = 0;
+        for (MetricFamilySamples mfs : jc.collect()) {
+            if (mfs.name.equals("jvm")) {
+                series = mfs.samples.size();
+            }
+        }
+        assertEquals(2, series);
+        assertNotNull(registry.getSampleValue("threads"));
+        assertTrue(registry.getSampleValue("jmx_scrape_series_dropped", new String[]{"family"}, new String[]{"jvm"}) > 0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMaxSeriesMustNotBeNegative() throws Exception {
+        new JmxCollector("---\nmaxSeries: -1");
+    }
+
+    @Test
+    public void testScrapeOverBudgetIsSkipped() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nscrapeAllocationBudgetBytes: 1\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"')).register(registry);
+        assertEquals(0, registry.getSampleValue("jmx_scrape_budget_skipped"), .001);
+        // The next scrapes reuse the samples of the first.
+        assertEquals(1, registry.getSampleValue("jmx_scrape_budget_skipped"), .001);
+        assertTrue(registry.getSampleValue("jmx_scrape_allocated_bytes") > 1);
+        assertEquals(200, registry.getSampleValue("foo"), .001);
+        // With the time of the scrape they are from.
+        for (MetricFamilySamples mfs : jc.collect()) {
+          for (MetricFamilySamples.Sample sample : mfs.samples) {
+            assertTrue(sample.name, sample.name.equals("jmx_scrape_budget_skipped") || sample.timestampMs != null);
+          }
+        }
+    }
+
+    @Test
+    public void testWarmUpIsNotHeldToTheBudgets() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nstartDelaySeconds: 1\nscrapeAllocationBudgetBytes: 1\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"')).register(registry);
+        long start = System.nanoTime();
+        List<MetricFamilySamples> mfsList;
+        while ((mfsList = jc.collect()).isEmpty()) {
+            assertTrue(System.nanoTime() - start < 30000000000L);
+            Thread.sleep(10);
+        }
+        // The first scrape after the warm-up is run rather than answered with the samples of the warm-up.
+        assertTrue(jc.warmedUp());
+        for (MetricFamilySamples mfs : mfsList) {
+            if (mfs.name.equals("jmx_scrape_budget_skipped")) {
+                assertEquals(0, mfs.samples.get(0).value, .001);
+            }
+        }
+        // This one was over the budget.
+        assertEquals(1, registry.getSampleValue("jmx_scrape_budget_skipped"), .001);
+    }
+
+    @Test
+    public void testScrapeOverBudgetShedsLowPriorityRulesAndBeans() throws Exception {
+        JmxCollector jc = new JmxCollector(("\n---\nscrapeAllocationBudgetBytes: 1\nlowPriorityObjectNames: [`org.apache.camel:*`]\nrules:"
+            + "\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n  lowPriority: true"
+            + "\n- pattern: `^org.apache.cassandra.concurrent<type=CONSISTENCY-MANAGER><>ActiveCount:`\n  name: bar\n  cache: true"
+            + "\n- pattern: `^org.apache.camel<.*>LastExchangeFailureTimestamp:`\n  name: camel").replace('`','"')).register(registry);
+        // The first scrape is complete, and over the budget.
+        assertEquals(200, registry.getSampleValue("foo"), .001);
+
+        // The next scrapes are run, without the low priority tier, rather than answered with old samples.
+        assertEquals(1, registry.getSampleValue("jmx_scrape_degraded"), .001);
+        assertEquals(0, registry.getSampleValue("jmx_scrape_budget_skipped"), .001);
+        assertNull(registry.getSampleValue("foo"));
+        assertNull(registry.getSampleValue("camel"));
+        assertEquals(100, registry.getSampleValue("bar"), .001);
+        // Unlike under heap pressure, the rules are still cached.
+        assertEquals(1, registry.getSampleValue("jmx_scrape_cached_beans"), .001);
+    }
+
+    @Test
+    public void testLowPriorityScraping() throws Exception {
+        JmxCollector jc = new JmxCollector("\n---\nlowPriorityScraping: true\nscrapeCpuShare: 0.5\nscrapeDeadlineSeconds: 5\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"')).register(registry);
+        Double before = CollectorRegistry.defaultRegistry.getSampleValue("jmx_exporter_cpu_seconds_total", new String[]{"thread"}, new String[]{"scraper"});
+        assertEquals(200, registry.getSampleValue("foo"), .001);
+        // Scraped on the scraper thread.
+        assertTrue(CollectorRegistry.defaultRegistry.getSampleValue("jmx_exporter_cpu_seconds_total", new String[]{"thread"}, new String[]{"scraper"}) > (before == null ? -1 : before));
+    }
+
+    @Test
+    public void testCloseStopsThreads() throws Exception {
+        java.io.File cacheFile = java.io.File.createTempFile("rules", ".cache");
+        cacheFile.delete();
+        JmxCollector jc = new JmxCollector(("\n---\nlowPriorityScraping: true\nrulesCacheFile: `" + cacheFile.getPath()
+            + "`\nrulesCacheSaveIntervalSeconds: 60\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n  cache: true").replace('`','"'));
+        jc.collect();
+        int savers = threads("jmx_exporter-rules-cache-saver");
+        int scrapers = threads("jmx_exporter-scraper");
+        jc.close();
+        long start = System.nanoTime();
+        while ((threads("jmx_exporter-rules-cache-saver") >= savers || threads("jmx_exporter-scraper") >= scrapers)
+            && System.nanoTime() - start < 10000000000L) {
+          Thread.sleep(10);
+        }
+        assertEquals(savers - 1, threads("jmx_exporter-rules-cache-saver"));
+        assertEquals(scrapers - 1, threads("jmx_exporter-scraper"));
+        // Saved one last time instead of on shutdown.
+        assertTrue(cacheFile.exists());
+        cacheFile.delete();
+    }
+
+    private static int threads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testScrapeCpuShareMustBePositive() throws Exception {
+        new JmxCollector("---\nscrapeCpuShare: 0");
+    }
+
+    @Test
+    public void testHeapPressureShedsLowPriorityRulesAndBeans() throws Exception {
+        JmxCollector jc = new JmxCollector(("\n---\nheapPressureThreshold: 0.99\nlowPriorityObjectNames: [`org.apache.camel:*`]\nrules:"
+            + "\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n  lowPriority: true"
+            + "\n- pattern: `^org.apache.cassandra.concurrent<type=CONSISTENCY-MANAGER><>ActiveCount:`\n  name: bar\n  cache: true"
+            + "\n- pattern: `^org.apache.camel<.*>LastExchangeFailureTimestamp:`\n  name: camel").replace('`','"')).register(registry);
+        try {
+            assertEquals(0, registry.getSampleValue("jmx_scrape_degraded"), .001);
+            assertEquals(200, registry.getSampleValue("foo"), .001);
+            assertNotNull(registry.getSampleValue("camel"));
+
+            jc.heapPressure().underPressure();
+            assertEquals(1, registry.getSampleValue("jmx_scrape_degraded"), .001);
+            assertNull(registry.getSampleValue("foo"));
+            assertNull(registry.getSampleValue("camel"));
+            // Rules which are not low priority are still exported, without caching them.
+            assertEquals(100, registry.getSampleValue("bar"), .001);
+            assertEquals(0, registry.getSampleValue("jmx_scrape_cached_beans"), .001);
+
+            // As when a collection leaves the heap below the threshold.
+            jc.heapPressure().pressureRelieved();
+            assertEquals(0, registry.getSampleValue("jmx_scrape_degraded"), .001);
+            assertEquals(200, registry.getSampleValue("foo"), .001);
+        } finally {
+            jc.close();
+        }
+    }
+
+    @Test
+    public void testHeapPressureRestoresCollectionUsageThresholds() throws Exception {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // The old generation, as chosen by HeapPressure.
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+                pool.setCollectionUsageThreshold(1);
+            }
+        }
+        JmxCollector first = new JmxCollector("---\nheapPressureThreshold: 0.99");
+        JmxCollector second = new JmxCollector("---\nheapPressureThreshold: 0.99");
+        JmxCollector other = new JmxCollector("---\nheapPressureThreshold: 0.5");
+        try {
+            // The collectors of a JVM share the thresholds, and one with another fraction gets none.
+            assertTrue(first.heapPressure() == second.heapPressure());
+            assertNull(other.heapPressure());
+            first.close();
+            for (MemoryPoolMXBean pool : pools) {
+                assertTrue(pool.getName(), pool.getCollectionUsageThreshold() > 1);
+            }
+            second.close();
+            for (MemoryPoolMXBean pool : pools) {
+                assertEquals(pool.getName(), 1, pool.getCollectionUsageThreshold());
+            }
+        } finally {
+            first.close();
+            second.close();
+            other.close();
+            for (MemoryPoolMXBean pool : pools) {
+                pool.setCollectionUsageThreshold(0);
+            }
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testHeapPressureThresholdMustBeAFraction() throws Exception {
+        new JmxCollector("---\nheapPressureThreshold: 1");
+    }
 }
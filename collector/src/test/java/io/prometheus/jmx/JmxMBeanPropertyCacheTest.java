@@ -7,6 +7,7 @@ import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class JmxMBeanPropertyCacheTest {
@@ -14,63 +15,63 @@ public class JmxMBeanPropertyCacheTest {
     @Test
     public void testSingleObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value"));
         assertSameElementsAndOrder(parameterList, "name", "value");
     }
 
     @Test
     public void testSimpleObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "value", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=\"value2\""));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=\"value2\""));
         assertSameElementsAndOrder(parameterList, "name", "value", "name2", "\"value2\"");
     }
 
     @Test
     public void testQuotedObjectNameWithComma() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value,more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value,more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value,more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithEquals() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value=more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value=more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value=more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithQuote() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\"more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\"more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\"more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithBackslash() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\\more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithMultipleQuoted() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\\\?\\*\\n\\\",:=more\",name2= value2 "));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\\\?\\*\\n\\\",:=more\",name2= value2 "));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\\\\?\\*\\n\\\",:=more\"", "name2", " value2 ");
     }
 
     @Test
     public void testIssue52() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(
+        Map<String, String> parameterList = testCache.getKeyPropertyList(
                 new ObjectName("org.apache.camel:context=ourinternalname,type=endpoints,name=\"seda://endpointName\\?concurrentConsumers=8&size=50000\""));
         assertSameElementsAndOrder(parameterList,
                 "context", "ourinternalname",
@@ -82,8 +83,8 @@ public class JmxMBeanPropertyCacheTest {
     public void testIdempotentGet() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
         ObjectName testObjectName = new ObjectName("com.organisation:name=value");
-        LinkedHashMap<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
-        LinkedHashMap<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
         assertEquals(parameterListFirst, parameterListSecond);
     }
 
@@ -91,11 +92,13 @@ public class JmxMBeanPropertyCacheTest {
     public void testGetAfterDeleteOneObject() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
         ObjectName testObjectName = new ObjectName("com.organisation:name=value");
-        LinkedHashMap<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
         assertNotNull(parameterListFirst);
-        testCache.onlyKeepMBeans(Collections.<ObjectName>emptySet());
-        assertEquals(Collections.<ObjectName, LinkedHashMap<String,String>>emptyMap(), testCache.getKeyPropertiesPerBean());
-        LinkedHashMap<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
+        testCache.evictUnseenMBeans();
+        // Not looked up in this generation.
+        testCache.evictUnseenMBeans();
+        assertEquals(Collections.<ObjectName, Map<String,String>>emptyMap(), testCache.getKeyPropertiesPerBean());
+        Map<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
         assertNotNull(parameterListSecond);
     }
 
@@ -108,10 +111,11 @@ public class JmxMBeanPropertyCacheTest {
         testCache.getKeyPropertyList(mBean1);
         testCache.getKeyPropertyList(mBean2);
         testCache.getKeyPropertyList(mBean3);
-        Set<ObjectName> keepSet = new HashSet<ObjectName>();
-        keepSet.add(mBean2);
-        keepSet.add(mBean3);
-        testCache.onlyKeepMBeans(keepSet);
+        testCache.evictUnseenMBeans();
+        testCache.getKeyPropertyList(mBean2);
+        testCache.getKeyPropertyList(mBean3);
+        testCache.getKeyPropertyList(mBean3);
+        testCache.evictUnseenMBeans();
         assertEquals(2, testCache.getKeyPropertiesPerBean().size());
         assertTrue(testCache.getKeyPropertiesPerBean().keySet().contains(mBean2));
         assertTrue(testCache.getKeyPropertiesPerBean().keySet().contains(mBean3));
@@ -120,12 +124,41 @@ public class JmxMBeanPropertyCacheTest {
     @Test
     public void testRemoveEmptyIdempotent() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        testCache.onlyKeepMBeans(Collections.<ObjectName>emptySet());
-        testCache.onlyKeepMBeans(Collections.<ObjectName>emptySet());
+        testCache.evictUnseenMBeans();
+        testCache.evictUnseenMBeans();
         assertEquals(testCache.getKeyPropertiesPerBean().size(), 0);
     }
 
-    private void assertSameElementsAndOrder(LinkedHashMap<?, ?> actual, Object... expected) {
+    @Test
+    public void testKeepAllSeenObjects() throws Throwable {
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        ObjectName mBean1 = new ObjectName("com.organisation:name=value1");
+        ObjectName mBean2 = new ObjectName("com.organisation:name=value2");
+        for (int i = 0; i < 3; i++) {
+            testCache.getKeyPropertyList(mBean1);
+            testCache.getKeyPropertyList(mBean2);
+            testCache.evictUnseenMBeans();
+            assertEquals(2, testCache.getKeyPropertiesPerBean().size());
+        }
+    }
+
+    @Test
+    public void testMapSemantics() throws Throwable {
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        Map<String, String> parameterList = testCache.getKeyPropertyList(
+                new ObjectName("com.organisation:type=a,name=\"b,c\",id=d"));
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("type", "a");
+        expected.put("name", "\"b,c\"");
+        expected.put("id", "d");
+        assertEquals(expected, parameterList);
+        assertEquals(expected.hashCode(), parameterList.hashCode());
+        assertEquals(expected.toString(), parameterList.toString());
+        assertEquals("\"b,c\"", parameterList.get("name"));
+        assertNull(parameterList.get("missing"));
+    }
+
+    private void assertSameElementsAndOrder(Map<?, ?> actual, Object... expected) {
         assert expected.length % 2 == 0;
         List<Map.Entry<?,?>> actualList = new ArrayList<Map.Entry<?, ?>>(actual.entrySet());
         List<Map.Entry<?,?>> expectedList = new ArrayList<Map.Entry<?,?>>();
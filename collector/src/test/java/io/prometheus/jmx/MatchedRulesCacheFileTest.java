@@ -0,0 +1,141 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.Type;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MatchedRulesCacheFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        List<JmxCollector.Rule> rules = rules("foo<type=(\\w+)><>Value");
+        String hash = MatchedRulesCacheFile.hash(rules, false, false);
+        MatchedRulesCache cache = new MatchedRulesCache(rules);
+        cache.put(rules.get(0), "foo<type=bar><>Value", new MatchedRule("foo_bar", "foo<type=bar><>Value: 1",
+                Type.GAUGE, "help", Arrays.asList("a"), Arrays.asList("b"), null, 0.5));
+        cache.put(rules.get(0), "other<><>Value", MatchedRule.unmatched());
+
+        File file = new File(folder.getRoot(), "rules.cache");
+        MatchedRulesCacheFile.save(file, rules, hash, cache);
+
+        MatchedRulesCache loaded = new MatchedRulesCache(rules);
+        assertEquals(2, MatchedRulesCacheFile.load(file, rules, hash, loaded));
+        MatchedRule matchedRule = loaded.get(rules.get(0), "foo<type=bar><>Value");
+        assertEquals("foo_bar", matchedRule.name);
+        assertEquals("foo<type=bar><>Value: 1", matchedRule.matchName);
+        assertEquals(Type.GAUGE, matchedRule.type);
+        assertEquals("help", matchedRule.help);
+        assertEquals(Arrays.asList("a"), matchedRule.labelNames);
+        assertEquals(Arrays.asList("b"), matchedRule.labelValues);
+        assertNull(matchedRule.value);
+        assertEquals(0.5, matchedRule.valueFactor, .001);
+        assertTrue(loaded.get(rules.get(0), "other<><>Value").isUnmatched());
+    }
+
+    @Test
+    public void testDifferentRulesAreIgnored() throws Exception {
+        List<JmxCollector.Rule> rules = rules("foo<type=(\\w+)><>Value");
+        MatchedRulesCache cache = new MatchedRulesCache(rules);
+        cache.put(rules.get(0), "other<><>Value", MatchedRule.unmatched());
+        File file = new File(folder.getRoot(), "rules.cache");
+        MatchedRulesCacheFile.save(file, rules, MatchedRulesCacheFile.hash(rules, false, false), cache);
+
+        List<JmxCollector.Rule> changedRules = rules("foo<type=(\\w+)><>Count");
+        String changedHash = MatchedRulesCacheFile.hash(changedRules, false, false);
+        assertNotEquals(MatchedRulesCacheFile.hash(rules, false, false), changedHash);
+        assertNotEquals(MatchedRulesCacheFile.hash(rules, false, false), MatchedRulesCacheFile.hash(rules, true, false));
+
+        MatchedRulesCache loaded = new MatchedRulesCache(changedRules);
+        assertEquals(0, MatchedRulesCacheFile.load(file, changedRules, changedHash, loaded));
+        assertNull(loaded.get(changedRules.get(0), "other<><>Value"));
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws Exception {
+        List<JmxCollector.Rule> rules = rules("foo<type=(\\w+)><>Value");
+        String hash = MatchedRulesCacheFile.hash(rules, false, false);
+        File file = new File(folder.getRoot(), "rules.cache");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{0x4A, 0x4D, 0x58});
+        out.close();
+
+        MatchedRulesCache loaded = new MatchedRulesCache(rules);
+        assertEquals(0, MatchedRulesCacheFile.load(file, rules, hash, loaded));
+        assertEquals(0, MatchedRulesCacheFile.load(new File(folder.getRoot(), "missing"), rules, hash, loaded));
+    }
+
+    @Test
+    public void testCollectorLoadsSavedCache() throws Exception {
+        File file = new File(folder.getRoot(), "rules.cache");
+        String yaml = "---\nrulesCacheFile: " + file.getPath() + "\nrules:\n- pattern: `^java.lang<type=Threading><>(ThreadCount):`\n  name: foo\n  cache: true\n";
+        yaml = yaml.replace('`', '"');
+        JmxCollector collector = new JmxCollector(yaml);
+        try {
+            collector.collect();
+            collector.saveRulesCache();
+            assertTrue(file.length() > 0);
+        } finally {
+            collector.close();
+        }
+
+        List<JmxCollector.Rule> rules = rules("^java.lang<type=Threading><>(ThreadCount):");
+        rules.get(0).name = "foo";
+        rules.get(0).cache = true;
+        MatchedRulesCache loaded = new MatchedRulesCache(rules);
+        assertTrue(MatchedRulesCacheFile.load(file, rules, MatchedRulesCacheFile.hash(rules, false, false), loaded) > 0);
+    }
+
+    @Test
+    public void testRulesCacheFileAddedOnReloadIsSaved() throws Exception {
+        File file = new File(folder.getRoot(), "rules.cache");
+        File configFile = new File(folder.getRoot(), "config.yaml");
+        String rules = "rules:\n- pattern: `^java.lang<type=Threading><>(ThreadCount):`\n  name: foo\n  cache: true\n";
+        write(configFile, "---\n" + rules.replace('`', '"'));
+        JmxCollector collector = new JmxCollector(configFile);
+        try {
+            collector.collect();
+            write(configFile, ("---\nrulesCacheFile: " + file.getPath() + "\n" + rules).replace('`', '"'));
+            configFile.setLastModified(configFile.lastModified() + 2000);
+            collector.collect();
+        } finally {
+            collector.close();
+        }
+        // Saved by close(), as the shutdown hook would have.
+        assertTrue(file.length() > 0);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<JmxCollector.Rule> rules(String pattern) {
+        JmxCollector.Rule rule = new JmxCollector.Rule();
+        rule.patternString = pattern;
+        rule.cache = true;
+        List<JmxCollector.Rule> rules = new ArrayList<JmxCollector.Rule>();
+        rules.add(rule);
+        return rules;
+    }
+}
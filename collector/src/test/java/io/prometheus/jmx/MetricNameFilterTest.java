@@ -0,0 +1,80 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricNameFilterTest {
+
+    private static final List<JmxCollector.Rule> RULES = Arrays.asList(
+            rule("^hadoop<service=DataNode, name=(.+)><>replaceBlockOpMinTime:", "hadoop_min_time"),
+            rule("^kafka.server<type=(.+)><>Value", "kafka_server_$1"),
+            rule("^java\\.lang<type=Memory>", null),
+            rule(".*", "other"));
+
+    private static JmxCollector.Rule rule(String pattern, String name) {
+        JmxCollector.Rule rule = new JmxCollector.Rule();
+        rule.patternString = pattern;
+        rule.pattern = Pattern.compile("^.*(?:" + pattern + ").*$");
+        rule.name = name;
+        return rule;
+    }
+
+    private static MetricNameFilter filter(boolean lowercaseOutputName, String... names) {
+        return new MetricNameFilter(RULES, lowercaseOutputName, new HashSet<String>(Arrays.asList(names)));
+    }
+
+    @Test
+    public void testLiteralName() throws Exception {
+        MetricNameFilter filter = filter(false, "hadoop_min_time");
+        assertEquals(1, filter.ruleCount());
+        assertTrue(filter.includesBean(new ObjectName("hadoop:service=DataNode,name=a")));
+        assertFalse(filter.includesBean(new ObjectName("hadoop:service=NameNode,name=a")));
+        assertFalse(filter.includesBean(new ObjectName("kafka.server:type=a")));
+    }
+
+    @Test
+    public void testNameTemplate() throws Exception {
+        MetricNameFilter filter = filter(false, "kafka_server_ReplicaManager");
+        assertEquals(2, filter.ruleCount());
+        assertTrue(filter.includesBean(new ObjectName("kafka.server:type=ReplicaManager")));
+        assertFalse(filter.includesBean(new ObjectName("hadoop:service=DataNode,name=a")));
+
+        // Names are only compared up to the first capture group.
+        assertEquals(2, filter(false, "kafka_server_").ruleCount());
+        assertEquals(0, filter(false, "kafka_").ruleCount());
+        assertEquals(1, filter(true, "hadoop_min_time").ruleCount());
+        assertEquals(0, filter(true, "HADOOP_MIN_TIME").ruleCount());
+    }
+
+    @Test
+    public void testDefaultExport() throws Exception {
+        MetricNameFilter filter = filter(false, "java_lang_Memory_HeapMemoryUsage_used");
+        assertEquals(3, filter.ruleCount());
+        assertTrue(filter.includesBean(new ObjectName("java.lang:type=Memory")));
+        assertFalse(filter.includesBean(new ObjectName("java.lang:type=Threading")));
+
+        assertEquals(0, filter(false, "java_nio_BufferPool_Count").ruleCount());
+        assertTrue(filter(true, "java_lang_memory_heapmemoryusage_used").includesBean(
+                new ObjectName("java.lang:type=Memory")));
+    }
+
+    @Test
+    public void testLastRule() throws Exception {
+        MetricNameFilter filter = filter(false, "other");
+        assertEquals(4, filter.ruleCount());
+        assertTrue(filter.includesBean(new ObjectName("any.domain:type=a")));
+        assertEquals(0, filter(false, "none").ruleCount());
+        // The default export rule has a literal domain.
+        assertEquals(3, filter(false, "java_lang_other").ruleCount());
+        assertFalse(filter(false, "none").includesBean(new ObjectName("any.domain:type=a")));
+    }
+}
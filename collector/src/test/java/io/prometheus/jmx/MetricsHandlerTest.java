@@ -0,0 +1,187 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsHandlerTest {
+
+    private HttpServer server;
+    private final AtomicInteger collections = new AtomicInteger();
+
+    private class CountingCollector extends Collector implements Collector.Describable {
+        public List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            mfs.add(new GaugeMetricFamily("test_collections", "help", collections.incrementAndGet()));
+            return mfs;
+        }
+
+        public List<MetricFamilySamples> describe() {
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            mfs.add(new GaugeMetricFamily("test_collections", "help", new ArrayList<String>()));
+            return mfs;
+        }
+    }
+
+    private void start(long snapshotMaxAgeMillis) throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        new CountingCollector().register(registry);
+        server = MetricsHandler.startServer(new InetSocketAddress("localhost", 0),
+                new MetricsHandler(registry, snapshotMaxAgeMillis), true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSnapshotIsShared() throws IOException {
+        start(60000);
+        assertTrue(get("/metrics", null, false).contains("test_collections 1.0"));
+        assertTrue(get("/metrics", null, false).contains("test_collections 1.0"));
+        assertTrue(get("/metrics", null, true).contains("test_collections 1.0"));
+        String openMetrics = get("/metrics", "application/openmetrics-text; version=1.0.0", true);
+        assertTrue(openMetrics.contains("test_collections 1.0"));
+        assertTrue(openMetrics.contains("# EOF"));
+        assertEquals(1, collections.get());
+
+        // Filtered requests are not served from the snapshot.
+        assertTrue(get("/metrics?name[]=test_collections", null, false).contains("test_collections 2.0"));
+    }
+
+    @Test
+    public void testSnapshotExpires() throws Exception {
+        start(0);
+        assertTrue(get("/metrics", null, false).contains("test_collections 1.0"));
+        Thread.sleep(2);
+        assertTrue(get("/metrics", null, true).contains("test_collections 2.0"));
+    }
+
+    @Test
+    public void testWithoutSnapshots() throws IOException {
+        start(-1);
+        assertTrue(get("/metrics", null, false).contains("test_collections 1.0"));
+        assertTrue(get("/metrics", null, true).contains("test_collections 2.0"));
+        assertEquals("Exporter is Healthy.", get("/-/healthy", null, false));
+    }
+
+    @Test
+    public void testOffHeapSnapshotBuffersAreReused() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        new CountingCollector().register(registry);
+        MetricsHandler handler = new MetricsHandler(registry, 0).snapshotsOffHeap(true);
+        server = MetricsHandler.startServer(new InetSocketAddress("localhost", 0), handler, true);
+        assertTrue(get("/metrics", null, false).contains("test_collections 1.0"));
+        Thread.sleep(2);
+        assertTrue(get("/metrics", null, true).contains("test_collections 2.0"));
+
+        // A response keeps its snapshot until it is closed, even once the snapshot is replaced.
+        Thread.sleep(2);
+        MetricsHandler.Response response = handler.handle(System.nanoTime(), "/metrics", null, null, null);
+        assertTrue(response.body().isDirect());
+        Thread.sleep(2);
+        assertTrue(get("/metrics", null, false).contains("test_collections 4.0"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        response.writeBody(body);
+        response.close();
+        assertTrue(body.toString("UTF-8").contains("test_collections 3.0"));
+
+        // The buffers of the replaced snapshots are free for the next ones.
+        CollectorRegistry defaultRegistry = CollectorRegistry.defaultRegistry;
+        assertTrue(defaultRegistry.getSampleValue("jmx_exporter_snapshot_buffer_bytes",
+                new String[]{"state"}, new String[]{"free"}) > 0);
+        assertTrue(defaultRegistry.getSampleValue("jmx_exporter_snapshot_buffer_bytes",
+                new String[]{"state"}, new String[]{"used"}) > 0);
+    }
+
+    @Test
+    public void testContentNegotiation() throws IOException {
+        start(60000);
+        String protobuf = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHandler.chooseContentType(null));
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHandler.chooseContentType("text/html"));
+        assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, MetricsHandler.chooseContentType(
+                "application/openmetrics-text;version=1.0.0;q=0.5,text/plain;version=0.0.4;q=0.4,*/*;q=0.1"));
+        assertEquals(ProtobufFormat.CONTENT_TYPE, MetricsHandler.chooseContentType(
+                protobuf + ";q=0.7,application/openmetrics-text;version=1.0.0;q=0.5,*/*;q=0.1"));
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHandler.chooseContentType(
+                "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text,text/plain;q=0.1"));
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHandler.chooseContentType(
+                "text/plain;q=0.9,application/openmetrics-text;q=0.9"));
+
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://localhost:" + server.getAddress().getPort() + "/metrics").openConnection();
+        connection.setRequestProperty("Accept", protobuf);
+        assertEquals(ProtobufFormat.CONTENT_TYPE, connection.getContentType());
+        // The length delimited test_collections family.
+        InputStream inputStream = connection.getInputStream();
+        int length = inputStream.read();
+        assertEquals(10, inputStream.read());
+        assertEquals("test_collections".length(), inputStream.read());
+        inputStream.close();
+        assertTrue(length > 0);
+        assertTrue(get("/metrics", protobuf, true).contains("test_collections"));
+        assertEquals(1, collections.get());
+    }
+
+    @Test
+    public void testRuleStats() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        JmxCollector jmxCollector = new JmxCollector(
+                "---\nrules:\n- pattern: `^java.lang<type=Threading><>ThreadCount:`\n  name: threads\n- pattern: `^nothing<`"
+                        .replace('`', '"')).register(registry);
+        server = MetricsHandler.startServer(new InetSocketAddress("localhost", 0),
+                new MetricsHandler(registry, jmxCollector, -1), true);
+        assertTrue(get("/metrics", null, false).contains("threads "));
+        String rules = get("/debug/rules", null, false);
+        assertTrue(rules, rules.contains("1 scrapes since the config was loaded"));
+        // The first rule matched ThreadCount once, the second never matched.
+        String[] lines = rules.split("\n");
+        assertTrue(lines[3], lines[3].matches(" +0 +[0-9]+ +1 +0 .* \\^java.lang<type=Threading><>ThreadCount: -> threads"));
+        assertTrue(lines[4], lines[4].matches(" +1 +[0-9]+ +0 +0 .* \\^nothing<"));
+    }
+
+    private String get(String path, String accept, boolean gzip) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://localhost:" + server.getAddress().getPort() + path).openConnection();
+        if (accept != null) {
+            connection.setRequestProperty("Accept", accept);
+        }
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        assertEquals(200, connection.getResponseCode());
+        InputStream inputStream = connection.getInputStream();
+        if (gzip) {
+            assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+            inputStream = new GZIPInputStream(inputStream);
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, len);
+        }
+        inputStream.close();
+        return result.toString("UTF-8");
+    }
+}
@@ -0,0 +1,54 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NameCacheTest {
+
+    private static class CountingCache extends NameCache {
+        int transforms;
+
+        CountingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        String transform(String name) {
+            transforms++;
+            return JmxCollector.safeName(name, true);
+        }
+    }
+
+    @Test
+    public void testMemoizes() {
+        CountingCache cache = new CountingCache(10);
+        String first = cache.get("Heap-Memory");
+        assertEquals("heap_memory", first);
+        assertSame(first, cache.get("Heap-Memory"));
+        assertEquals(1, cache.transforms);
+        assertNull(cache.get(null));
+    }
+
+    @Test
+    public void testBounded() {
+        CountingCache cache = new CountingCache(10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("name_" + i, cache.get("Name-" + i));
+            assertTrue(cache.size() <= 10);
+        }
+        assertEquals(100, cache.transforms);
+    }
+
+    @Test
+    public void testSafeNamesAreNotCopied() {
+        String name = "already_safe:name";
+        assertSame(name, JmxCollector.safeName(name, true));
+        assertSame(name, JmxCollector.safeName(name, false));
+        String upperCase = "Safe_Name";
+        assertSame(upperCase, JmxCollector.safeName(upperCase, false));
+        assertEquals("safe_name", JmxCollector.safeName(upperCase, true));
+    }
+}
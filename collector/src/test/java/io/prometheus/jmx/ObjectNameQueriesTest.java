@@ -0,0 +1,97 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectNameQueriesTest {
+
+    @Test
+    public void testLiteralDomain() {
+        assertEquals("hadoop:*", ObjectNameQueries.fromPattern("^hadoop<.+-500(10)>"));
+        assertEquals("*kafka?server:*", ObjectNameQueries.fromPattern("kafka.server<type=(.+), name=(.+)><>Value"));
+        assertEquals("*kafka.server:*", ObjectNameQueries.fromPattern("kafka\\.server<(.+)>"));
+    }
+
+    @Test
+    public void testPartialDomain() {
+        assertEquals("*kafka?*:*", ObjectNameQueries.fromPattern("kafka.(\\w+)<type=(.+), name=(.+)><>Count"));
+        assertEquals("*org?apache?cassandra?metric*:*", ObjectNameQueries.fromPattern("org.apache.cassandra.metrics?<(.+)>"));
+        assertEquals("*kafka?*:*", ObjectNameQueries.fromPattern("kafka.(.+)<type=app-info, client-id=(.+)><>start-time-ms"));
+        assertEquals("java*:*", ObjectNameQueries.fromPattern("^java.lang"));
+        assertEquals("java*:*", ObjectNameQueries.fromPattern("^java"));
+    }
+
+    @Test
+    public void testLiteralProperties() {
+        assertEquals("*org?apache?activemq:type=Broker,*",
+                ObjectNameQueries.fromPattern("org.apache.activemq<type=Broker, brokerName=(\\S*)><>(\\w+)"));
+        assertEquals("hadoop:service=DataNode,name=DataNodeActivity-ams-hdd001-50010,*",
+                ObjectNameQueries.fromPattern("^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:"));
+        assertEquals("*kafka?connect:type=connect-worker-metrics,*",
+                ObjectNameQueries.fromPattern("kafka.connect<type=connect-worker-metrics><>([a-z-]+)"));
+        assertEquals("*kafka?connect:*", ObjectNameQueries.fromPattern("kafka.connect<type=connect-worker-metrics?><>(.+)"));
+        assertEquals("*kafka?connect:*", ObjectNameQueries.fromPattern("kafka.connect<type=(.+)-metrics><>(.+)"));
+    }
+
+    @Test
+    public void testUnrestrictedPatterns() {
+        assertNull(ObjectNameQueries.fromPattern(".*"));
+        assertNull(ObjectNameQueries.fromPattern("Count"));
+        assertNull(ObjectNameQueries.fromPattern("<type=Foo>"));
+        assertNull(ObjectNameQueries.fromPattern("^<type=Foo>"));
+        assertNull(ObjectNameQueries.fromPattern("(kafka.server)<type=Foo>"));
+        assertNull(ObjectNameQueries.fromPattern("kafka.server<type=Foo>|hadoop<.*>"));
+        assertNull(ObjectNameQueries.fromPattern("\\w+<type=Foo>"));
+        assertNull(ObjectNameQueries.fromPattern("kafka.(\\w+)(<type=Foo>)?"));
+        // The '<' opens the attribute keys, the prefix is the end of the key properties.
+        assertNull(ObjectNameQueries.fromPattern("name=Bar><>Value"));
+        assertNull(ObjectNameQueries.fromPattern("Memory, name=Bar><>Value"));
+    }
+
+    @Test
+    public void testAlternationInsideGroupIsRestricted() {
+        assertEquals("*kafka?server:*", ObjectNameQueries.fromPattern("kafka.server<type=(.+), name=(.+)><>(Count|Value)"));
+    }
+
+    @Test
+    public void testFromRules() throws Exception {
+        List<JmxCollector.Rule> rules = new ArrayList<JmxCollector.Rule>();
+        rules.add(rule("kafka.server<type=Foo, name=(.+)><>Value"));
+        rules.add(rule("kafka.server<type=(.+), name=(.+)><>Value"));
+        rules.add(rule("^hadoop<service=DataNode, name=(.+)><>(.+)"));
+        rules.add(rule("^hadoop<service=DataNode, name=(.+)><>(.+)"));
+        assertEquals(Arrays.asList(new ObjectName("*kafka?server:*"), new ObjectName("hadoop:service=DataNode,*")),
+                ObjectNameQueries.fromRules(rules));
+
+        rules.add(new JmxCollector.Rule());
+        assertEquals(Arrays.asList((ObjectName) null), ObjectNameQueries.fromRules(rules));
+    }
+
+    @Test
+    public void testQueriesMatchTheirPatterns() throws Exception {
+        ObjectName query = new ObjectName(ObjectNameQueries.fromPattern("\"kafka.server\"<type=\"(.+)\", name=\"(.+)\"><>Value"));
+        assertTrue(query.apply(new ObjectName("\"kafka.server\":type=\"Foo\",name=\"Bar\"")));
+        assertFalse(query.apply(new ObjectName("kafka.server:type=Foo,name=Bar")));
+
+        query = new ObjectName(ObjectNameQueries.fromPattern("org.apache.activemq<type=Broker, brokerName=(\\S*)><>(\\w+)"));
+        assertTrue(query.apply(new ObjectName("org.apache.activemq:type=Broker,brokerName=localhost")));
+        assertFalse(query.apply(new ObjectName("org.apache.activemq:type=Queue,brokerName=localhost")));
+    }
+
+    private static JmxCollector.Rule rule(String pattern) {
+        JmxCollector.Rule rule = new JmxCollector.Rule();
+        rule.patternString = pattern;
+        rule.pattern = Pattern.compile("^.*(?:" + pattern + ").*$");
+        return rule;
+    }
+}
@@ -0,0 +1,156 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProtobufFormatTest {
+
+    @Test
+    public void testEncodesMetricFamilies() throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build("test_gauge", "gauge help").labelNames("l").register(registry).labels("a").set(1.5);
+        Counter.build("test_counter", "counter help").register(registry).inc(3);
+        Histogram histogram = Histogram.build("test_histogram", "histogram help").buckets(1, 2).register(registry);
+        histogram.observe(0.5);
+        histogram.observe(1.5);
+        histogram.observe(5);
+        Summary summary = Summary.build("test_summary", "summary help").quantile(0.5, 0.01).register(registry);
+        summary.observe(2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtobufFormat.write(out, Collections.list(registry.metricFamilySamples()));
+        Map<String, Map<Integer, List<Object>>> families = decodeDelimited(out.toByteArray());
+
+        List<String> names = new ArrayList<String>(families.keySet());
+        assertEquals(new TreeSet<String>(Arrays.asList("test_gauge", "test_counter_total", "test_histogram",
+                "test_summary")), new TreeSet<String>(names.subList(0, 4)));
+        // The _created samples come last, as separate gauge families.
+        assertEquals(new TreeSet<String>(Arrays.asList("test_counter_created", "test_histogram_created",
+                "test_summary_created")), new TreeSet<String>(names.subList(4, names.size())));
+        assertEquals(1L, families.get("test_counter_created").get(3).get(0));
+
+        Map<Integer, List<Object>> gauge = families.get("test_gauge");
+        assertEquals("gauge help", string(gauge.get(2).get(0)));
+        assertEquals(1L, gauge.get(3).get(0));
+        Map<Integer, List<Object>> metric = decode((byte[]) gauge.get(4).get(0));
+        Map<Integer, List<Object>> label = decode((byte[]) metric.get(1).get(0));
+        assertEquals("l", string(label.get(1).get(0)));
+        assertEquals("a", string(label.get(2).get(0)));
+        assertEquals(1.5, decode((byte[]) metric.get(2).get(0)).get(1).get(0));
+
+        Map<Integer, List<Object>> counter = families.get("test_counter_total");
+        assertEquals(0L, counter.get(3).get(0));
+        metric = decode((byte[]) counter.get(4).get(0));
+        assertEquals(3.0, decode((byte[]) metric.get(3).get(0)).get(1).get(0));
+
+        Map<Integer, List<Object>> histogramFamily = families.get("test_histogram");
+        assertEquals(4L, histogramFamily.get(3).get(0));
+        assertEquals(1, histogramFamily.get(4).size());
+        metric = decode((byte[]) histogramFamily.get(4).get(0));
+        Map<Integer, List<Object>> histogramMessage = decode((byte[]) metric.get(7).get(0));
+        assertEquals(3L, histogramMessage.get(1).get(0));
+        assertEquals(7.0, histogramMessage.get(2).get(0));
+        // The +Inf bucket is left out.
+        assertEquals(2, histogramMessage.get(3).size());
+        Map<Integer, List<Object>> bucket = decode((byte[]) histogramMessage.get(3).get(1));
+        assertEquals(2L, bucket.get(1).get(0));
+        assertEquals(2.0, bucket.get(2).get(0));
+
+        Map<Integer, List<Object>> summaryFamily = families.get("test_summary");
+        assertEquals(2L, summaryFamily.get(3).get(0));
+        metric = decode((byte[]) summaryFamily.get(4).get(0));
+        Map<Integer, List<Object>> summaryMessage = decode((byte[]) metric.get(4).get(0));
+        assertEquals(1L, summaryMessage.get(1).get(0));
+        assertEquals(2.0, summaryMessage.get(2).get(0));
+        Map<Integer, List<Object>> quantile = decode((byte[]) summaryMessage.get(3).get(0));
+        assertEquals(0.5, quantile.get(1).get(0));
+        assertEquals(2.0, quantile.get(2).get(0));
+    }
+
+    /**
+     * @return the MetricFamily messages by name.
+     */
+    private static Map<String, Map<Integer, List<Object>>> decodeDelimited(byte[] in) throws IOException {
+        Map<String, Map<Integer, List<Object>>> families = new LinkedHashMap<String, Map<Integer, List<Object>>>();
+        int[] pos = {0};
+        while (pos[0] < in.length) {
+            int length = (int) readVarint(in, pos);
+            byte[] message = new byte[length];
+            System.arraycopy(in, pos[0], message, 0, length);
+            pos[0] += length;
+            Map<Integer, List<Object>> family = decode(message);
+            families.put(string(family.get(1).get(0)), family);
+        }
+        return families;
+    }
+
+    /**
+     * Decode the fields of a message: varints as Long, fixed64 as Double and length delimited fields as byte[].
+     */
+    private static Map<Integer, List<Object>> decode(byte[] in) {
+        Map<Integer, List<Object>> fields = new LinkedHashMap<Integer, List<Object>>();
+        int[] pos = {0};
+        while (pos[0] < in.length) {
+            long tag = readVarint(in, pos);
+            int field = (int) (tag >>> 3);
+            Object value;
+            switch ((int) (tag & 7)) {
+                case 0:
+                    value = readVarint(in, pos);
+                    break;
+                case 1:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits |= (in[pos[0]++] & 0xFFL) << (8 * i);
+                    }
+                    value = Double.longBitsToDouble(bits);
+                    break;
+                case 2:
+                    int length = (int) readVarint(in, pos);
+                    byte[] bytes = new byte[length];
+                    System.arraycopy(in, pos[0], bytes, 0, length);
+                    pos[0] += length;
+                    value = bytes;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected wire type in tag " + tag);
+            }
+            if (!fields.containsKey(field)) {
+                fields.put(field, new ArrayList<Object>());
+            }
+            fields.get(field).add(value);
+        }
+        return fields;
+    }
+
+    private static long readVarint(byte[] in, int[] pos) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String string(Object bytes) throws IOException {
+        return new String((byte[]) bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,300 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteWriterTest {
+
+    private HttpServer receiver;
+    private final BlockingQueue<List<Map<String, String>>> requests = new LinkedBlockingQueue<List<Map<String, String>>>();
+    private final AtomicInteger failuresToReturn = new AtomicInteger();
+    private RemoteWriter remoteWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        // A stand-in for a remote write receiver, decoding the series into label maps with a "value" entry.
+        receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        receiver.createContext("/api/v1/write", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = read(exchange.getRequestBody());
+                if (failuresToReturn.getAndDecrement() > 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                assertEquals("snappy", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                requests.add(decodeWriteRequest(uncompress(body)));
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        receiver.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (remoteWriter != null) {
+            remoteWriter.stop();
+        }
+        receiver.stop(0);
+    }
+
+    private RemoteWriter remoteWriter(CollectorRegistry registry, String extraConfig) throws IOException {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("url", "http://localhost:" + receiver.getAddress().getPort() + "/api/v1/write");
+        config.put("intervalSeconds", 1);
+        config.put("minBackoffMillis", 1);
+        Map<String, Object> labels = new HashMap<String, Object>();
+        labels.put("instance", "test:1234");
+        config.put("labels", labels);
+        if (extraConfig != null) {
+            config.put(extraConfig, 1);
+        }
+        return new RemoteWriter(config, registry);
+    }
+
+    @Test
+    public void testPushesSamples() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build("test_gauge", "help").labelNames("l").register(registry).labels("v").set(42);
+        remoteWriter = remoteWriter(registry, null);
+        remoteWriter.start();
+
+        Map<String, String> testGauge = poll("test_gauge");
+        assertNotNull(testGauge);
+        assertEquals("v", testGauge.get("l"));
+        assertEquals("test:1234", testGauge.get("instance"));
+        assertEquals("42.0", testGauge.get("value"));
+        // Labels are sorted by name.
+        assertEquals("[__name__, instance, l, value]", testGauge.keySet().toString());
+        // The remote writer's own metrics are pushed too.
+        assertNotNull(poll("jmx_remote_write_queue_samples"));
+    }
+
+    @Test
+    public void testRetriesFailedRequests() throws Exception {
+        failuresToReturn.set(2);
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build("test_gauge", "help").register(registry).set(1);
+        remoteWriter = remoteWriter(registry, null);
+        remoteWriter.start();
+
+        assertNotNull(requests.poll(10, TimeUnit.SECONDS));
+        assertEquals(2.0, registry.getSampleValue("jmx_remote_write_retries_total"), .001);
+        assertEquals(0.0, registry.getSampleValue("jmx_remote_write_dropped_samples_total"), .001);
+    }
+
+    @Test
+    public void testDropsSamplesWhenQueueIsFull() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build("test_gauge", "help").register(registry).set(1);
+        remoteWriter = remoteWriter(registry, "queueCapacity");
+        // Not started, so nothing takes samples from the queue.
+        remoteWriter.enqueue(Collections.list(registry.metricFamilySamples()), 0);
+        assertEquals(1.0, registry.getSampleValue("jmx_remote_write_queue_samples"), .001);
+        assertTrue(registry.getSampleValue("jmx_remote_write_dropped_samples_total") > 0);
+    }
+
+    @Test
+    public void testStopGivesUpOnUnresponsiveEndpoint() throws Exception {
+        // Accepts connections, but never answers.
+        ServerSocket blackHole = new ServerSocket(0, 100, InetAddress.getByName("localhost"));
+        try {
+            CollectorRegistry registry = new CollectorRegistry();
+            Gauge gauge = Gauge.build("test_gauge", "help").labelNames("l").register(registry);
+            for (int i = 0; i < 50; i++) {
+                gauge.labels(String.valueOf(i)).set(i);
+            }
+            Map<String, Object> config = new HashMap<String, Object>();
+            config.put("url", "http://localhost:" + blackHole.getLocalPort() + "/api/v1/write");
+            config.put("timeoutSeconds", 1);
+            config.put("maxSamplesPerSend", 5);
+            RemoteWriter writer = new RemoteWriter(config, registry);
+            writer.start();
+            writer.enqueue(Collections.list(registry.metricFamilySamples()), 0);
+            long start = System.nanoTime();
+            writer.stop();
+            // One request timing out rather than one per batch of 5.
+            assertTrue(System.nanoTime() - start < 5000000000L);
+            assertEquals(0.0, registry.getSampleValue("jmx_remote_write_queue_samples"), .001);
+            assertTrue(registry.getSampleValue("jmx_remote_write_dropped_samples_total") >= 50);
+        } finally {
+            blackHole.close();
+        }
+    }
+
+    @Test
+    public void testSnappyRoundTrip() throws Exception {
+        Random random = new Random(0);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("jmx_metric_").append(random.nextInt(100)).append("{label=\"").append(random.nextInt(10))
+                    .append("\"} ").append(random.nextDouble()).append('\n');
+        }
+        byte[] input = text.toString().getBytes("UTF-8");
+        byte[] compressed = Snappy.compress(input);
+        assertTrue(compressed.length < input.length / 2);
+        assertArrayEquals(input, uncompress(compressed));
+
+        byte[] randomBytes = new byte[100000];
+        random.nextBytes(randomBytes);
+        assertArrayEquals(randomBytes, uncompress(Snappy.compress(randomBytes)));
+        assertArrayEquals(new byte[0], uncompress(Snappy.compress(new byte[0])));
+        byte[] zeros = new byte[1000];
+        assertArrayEquals(zeros, uncompress(Snappy.compress(zeros)));
+    }
+
+    /**
+     * @return the first series with the name received within 10 seconds. A collection may be split into several
+     * requests, depending on how fast the sender picks up the samples.
+     */
+    private Map<String, String> poll(String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        List<Map<String, String>> series;
+        while ((series = requests.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null) {
+            for (Map<String, String> s : series) {
+                if (name.equals(s.get("__name__"))) {
+                    return s;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, len);
+        }
+        inputStream.close();
+        return result.toByteArray();
+    }
+
+    private static byte[] uncompress(byte[] in) {
+        int[] pos = {0};
+        int length = (int) readVarint(in, pos);
+        byte[] out = new byte[length];
+        int op = 0;
+        int ip = pos[0];
+        while (ip < in.length) {
+            int tag = in[ip++] & 0xFF;
+            switch (tag & 3) {
+                case 0: {
+                    int len = tag >> 2;
+                    if (len >= 60) {
+                        int bytes = len - 59;
+                        len = 0;
+                        for (int i = 0; i < bytes; i++) {
+                            len |= (in[ip++] & 0xFF) << (8 * i);
+                        }
+                    }
+                    len++;
+                    System.arraycopy(in, ip, out, op, len);
+                    ip += len;
+                    op += len;
+                    break;
+                }
+                case 1: {
+                    int len = ((tag >> 2) & 7) + 4;
+                    int offset = ((tag >> 5) << 8) | (in[ip++] & 0xFF);
+                    for (int i = 0; i < len; i++, op++) {
+                        out[op] = out[op - offset];
+                    }
+                    break;
+                }
+                case 2: {
+                    int len = (tag >> 2) + 1;
+                    int offset = (in[ip++] & 0xFF) | (in[ip++] & 0xFF) << 8;
+                    for (int i = 0; i < len; i++, op++) {
+                        out[op] = out[op - offset];
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("4 byte offset copies are not produced");
+            }
+        }
+        assertEquals(length, op);
+        return out;
+    }
+
+    private static long readVarint(byte[] in, int[] pos) {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in[pos[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    // Decodes a WriteRequest into one map per TimeSeries, holding the labels and the value of its single sample.
+    private static List<Map<String, String>> decodeWriteRequest(byte[] in) throws IOException {
+        List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+        int[] pos = {0};
+        while (pos[0] < in.length) {
+            assertEquals(1 << 3 | 2, in[pos[0]++]);
+            int end = (int) readVarint(in, pos) + pos[0];
+            Map<String, String> series = new LinkedHashMap<String, String>();
+            while (pos[0] < end) {
+                int tag = in[pos[0]++];
+                int fieldEnd = (int) readVarint(in, pos) + pos[0];
+                if (tag == (1 << 3 | 2)) {
+                    String[] label = new String[2];
+                    while (pos[0] < fieldEnd) {
+                        int labelTag = in[pos[0]++];
+                        int len = (int) readVarint(in, pos);
+                        label[(labelTag >> 3) - 1] = new String(in, pos[0], len, "UTF-8");
+                        pos[0] += len;
+                    }
+                    series.put(label[0], label[1]);
+                } else {
+                    assertEquals(2 << 3 | 2, tag);
+                    assertEquals(1 << 3 | 1, in[pos[0]++]);
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits |= (long) (in[pos[0]++] & 0xFF) << (8 * i);
+                    }
+                    series.put("value", String.valueOf(Double.longBitsToDouble(bits)));
+                    assertEquals(2 << 3, in[pos[0]++]);
+                    readVarint(in, pos);
+                }
+                assertEquals(fieldEnd, pos[0]);
+            }
+            result.add(series);
+        }
+        return result;
+    }
+}
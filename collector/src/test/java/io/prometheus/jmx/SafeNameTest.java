@@ -40,4 +40,10 @@ public class SafeNameTest {
         String safeName = JmxCollector.safeName(input);
         assertEquals(expected, safeName);
     }
+
+    @Test
+    public void testLowercaseSafeName() {
+        String safeName = JmxCollector.safeName(input == null ? null : input.toUpperCase(), true);
+        assertEquals(expected == null ? null : expected.toLowerCase(), safeName);
+    }
 }
@@ -0,0 +1,110 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapePacerTest {
+
+    /**
+     * Time which only passes when the scrape works or sleeps.
+     */
+    private static class FakeClock implements ScrapePacer.Clock {
+        long nanos = 1000000000L;
+        long cpuNanos;
+        long parks;
+
+        public long nanoTime() {
+            return nanos;
+        }
+
+        public long cpuNanos() {
+            return cpuNanos;
+        }
+
+        public void parkNanos(long nanos) {
+            parks++;
+            if (!Thread.currentThread().isInterrupted()) {
+                this.nanos += nanos;
+            }
+        }
+
+        void work(long nanos) {
+            this.nanos += nanos;
+            cpuNanos += nanos;
+        }
+    }
+
+    @Test
+    public void testPacesToCpuShare() {
+        FakeClock clock = new FakeClock();
+        ScrapePacer pacer = new ScrapePacer(0.1, 0, clock);
+        for (int i = 1; i <= 20; i++) {
+            clock.work(1000000L);
+            pacer.pace(i, 20);
+        }
+        // 20ms of CPU time at 10% takes 200ms, so the pacer slept for 180ms.
+        assertEquals(180000000L, pacer.sleptNanos());
+    }
+
+    @Test
+    public void testDeadlineLimitsPacing() {
+        FakeClock clock = new FakeClock();
+        ScrapePacer pacer = new ScrapePacer(0.01, 300000000L, clock);
+        for (int i = 1; i <= 20; i++) {
+            clock.work(1000000L);
+            pacer.pace(i, 20);
+        }
+        // Unlimited, a share of 1% would sleep for 1.98 seconds.
+        assertTrue(pacer.sleptNanos() > 0);
+        assertTrue(pacer.sleptNanos() <= 300000000L - 20000000L);
+    }
+
+    @Test
+    public void testInterruptedThreadIsNotPaced() {
+        FakeClock clock = new FakeClock();
+        ScrapePacer pacer = new ScrapePacer(0.001, 0, clock);
+        clock.work(1000000L);
+        Thread.currentThread().interrupt();
+        try {
+            // Parking returns at once on an interrupted thread, which must not be retried until the wake-up time.
+            pacer.pace(1, 2);
+            assertEquals(0, clock.parks);
+            assertEquals(0, pacer.sleptNanos());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testInterruptWhileSleepingStopsPacing() {
+        final FakeClock clock = new FakeClock() {
+            @Override
+            public void parkNanos(long nanos) {
+                super.parkNanos(nanos / 2);
+                Thread.currentThread().interrupt();
+            }
+        };
+        ScrapePacer pacer = new ScrapePacer(0.001, 0, clock);
+        clock.work(1000000L);
+        try {
+            pacer.pace(1, 2);
+            assertEquals(1, clock.parks);
+            assertEquals(999000000L / 2, pacer.sleptNanos());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testFullShareDoesNotSleep() {
+        FakeClock clock = new FakeClock();
+        ScrapePacer pacer = new ScrapePacer(1.0, 0, clock);
+        for (int i = 1; i <= 10; i++) {
+            clock.work(1000000L);
+            pacer.pace(i, 10);
+        }
+        assertEquals(0, pacer.sleptNanos());
+    }
+}
@@ -0,0 +1,96 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class SeriesLimiterTest {
+
+    private static MetricFamilySamples.Sample sample(String name, String clientId) {
+        return new MetricFamilySamples.Sample(name, Arrays.asList("client_id"), Arrays.asList(clientId), 1);
+    }
+
+    private static Map<String, MetricFamilySamples> scrape(SeriesLimiter limiter, List<MetricFamilySamples.Sample> samples) {
+        Map<String, MetricFamilySamples> families = new HashMap<String, MetricFamilySamples>();
+        for (MetricFamilySamples.Sample sample : samples) {
+            if (!families.containsKey(sample.name)) {
+                families.put(sample.name, new MetricFamilySamples(sample.name, Collector.Type.GAUGE, "help",
+                        new ArrayList<MetricFamilySamples.Sample>()));
+            }
+            limiter.add(sample);
+        }
+        limiter.apply(families);
+        return families;
+    }
+
+    private static List<String> clientIds(MetricFamilySamples mfs) {
+        List<String> clientIds = new ArrayList<String>();
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+            clientIds.add(sample.labelValues.get(0));
+        }
+        return clientIds;
+    }
+
+    @Test
+    public void testPerFamilyLimitKeepsTheSameSeriesInAnyOrder() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        for (int i = 0; i < 100; i++) {
+            samples.add(sample("requests", "client-" + (100 + i)));
+        }
+        samples.add(sample("bytes", "client-1"));
+        for (int shuffle = 0; shuffle < 3; shuffle++) {
+            Collections.shuffle(samples);
+            SeriesLimiter limiter = new SeriesLimiter(3, 0);
+            Map<String, MetricFamilySamples> families = scrape(limiter, samples);
+            assertEquals(Arrays.asList("client-100", "client-101", "client-102"), clientIds(families.get("requests")));
+            assertEquals(Arrays.asList("client-1"), clientIds(families.get("bytes")));
+            assertEquals(97, (int) limiter.dropped().get("requests"));
+            assertNull(limiter.dropped().get("bytes"));
+        }
+    }
+
+    @Test
+    public void testLimitOfAllSeries() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        for (int i = 0; i < 5; i++) {
+            samples.add(sample("b", "client-" + i));
+            samples.add(sample("a", "client-" + i));
+        }
+        for (int shuffle = 0; shuffle < 3; shuffle++) {
+            Collections.shuffle(samples);
+            SeriesLimiter limiter = new SeriesLimiter(0, 7);
+            Map<String, MetricFamilySamples> families = scrape(limiter, samples);
+            assertEquals(5, families.get("a").samples.size());
+            assertEquals(Arrays.asList("client-0", "client-1"), clientIds(families.get("b")));
+            assertEquals(3, (int) limiter.dropped().get("b"));
+        }
+
+        SeriesLimiter limiter = new SeriesLimiter(2, 1);
+        Map<String, MetricFamilySamples> families = scrape(limiter, samples);
+        assertEquals(Arrays.asList("client-0"), clientIds(families.get("a")));
+        // Families without series are removed.
+        assertFalse(families.containsKey("b"));
+        assertEquals(5, (int) limiter.dropped().get("b"));
+        assertEquals(4, (int) limiter.dropped().get("a"));
+    }
+
+    @Test
+    public void testDuplicateSeriesAreNotDropped() {
+        SeriesLimiter limiter = new SeriesLimiter(1, 0);
+        Map<String, MetricFamilySamples> families = scrape(limiter,
+                Arrays.asList(sample("a", "client-0"), sample("a", "client-0")));
+        assertEquals(1, families.get("a").samples.size());
+        assertNull(limiter.dropped().get("a"));
+    }
+}
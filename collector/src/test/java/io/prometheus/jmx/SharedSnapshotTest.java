@@ -0,0 +1,162 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int collections;
+    private int extraSeries;
+
+    private class CountingCollector extends Collector {
+        public List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+            mfs.add(new GaugeMetricFamily("test_collections", "help", ++collections));
+            GaugeMetricFamily extra = new GaugeMetricFamily("test_extra", "help", Arrays.asList("index"));
+            for (int i = 0; i < extraSeries; i++) {
+                extra.addMetric(Arrays.asList(String.valueOf(i)), i);
+            }
+            mfs.add(extra);
+            return mfs;
+        }
+    }
+
+    private SharedSnapshotWriter writer(File file, Object formats) {
+        CollectorRegistry registry = new CollectorRegistry();
+        new CountingCollector().register(registry);
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("file", file.getPath());
+        if (formats != null) {
+            config.put("formats", formats);
+        }
+        return new SharedSnapshotWriter(config, registry);
+    }
+
+    private static String string(ByteBuffer body) throws Exception {
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Test
+    public void testSnapshotIsReadAsWritten() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        SharedSnapshotReader reader = new SharedSnapshotReader(file);
+        assertNull(reader.read(TextFormat.CONTENT_TYPE_004));
+
+        SharedSnapshotWriter writer = writer(file, Arrays.asList("openmetrics"));
+        writer.write();
+        SharedSnapshotReader.Snapshot snapshot = reader.read(TextFormat.CONTENT_TYPE_OPENMETRICS_100);
+        assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, snapshot.contentType);
+        assertTrue(string(snapshot.body()).contains("test_collections 1.0"));
+        assertTrue(string(snapshot.body()).endsWith("# EOF\n"));
+        assertEquals(15000, snapshot.intervalMillis);
+        assertFalse(snapshot.isStale());
+
+        // The text format was rendered from the same collection.
+        snapshot = reader.read(TextFormat.CONTENT_TYPE_004);
+        assertEquals(TextFormat.CONTENT_TYPE_004, snapshot.contentType);
+        assertTrue(string(snapshot.body()).contains("test_collections 1.0"));
+
+        writer.write();
+        assertTrue(string(reader.read(TextFormat.CONTENT_TYPE_004).body()).contains("test_collections 2.0"));
+    }
+
+    @Test
+    public void testUnwrittenFormatFallsBackToText() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        writer(file, null).write();
+        SharedSnapshotReader.Snapshot snapshot = new SharedSnapshotReader(file).read(ProtobufFormat.CONTENT_TYPE);
+        assertEquals(TextFormat.CONTENT_TYPE_004, snapshot.contentType);
+        assertTrue(string(snapshot.body()).contains("test_collections 1.0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormatIsRejected() {
+        writer(new File(folder.getRoot(), "snapshot"), Arrays.asList("json"));
+    }
+
+    @Test
+    public void testOverwrittenSnapshotIsDetected() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        SharedSnapshotWriter writer = writer(file, null);
+        SharedSnapshotReader reader = new SharedSnapshotReader(file);
+        writer.write();
+        SharedSnapshotReader.Snapshot snapshot = reader.read(TextFormat.CONTENT_TYPE_004);
+
+        // The next snapshot goes into the other region.
+        writer.write();
+        assertFalse(snapshot.overwritten());
+        assertTrue(string(snapshot.body()).contains("test_collections 1.0"));
+
+        writer.write();
+        assertTrue(snapshot.overwritten());
+        assertFalse(reader.read(TextFormat.CONTENT_TYPE_004).overwritten());
+    }
+
+    @Test
+    public void testReaderFollowsLargerFile() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        SharedSnapshotWriter writer = writer(file, null);
+        SharedSnapshotReader reader = new SharedSnapshotReader(file);
+        writer.write();
+        long length = file.length();
+        SharedSnapshotReader.Snapshot small = reader.read(TextFormat.CONTENT_TYPE_004);
+
+        extraSeries = 10000;
+        writer.write();
+        assertTrue(file.length() > length);
+        String body = string(reader.read(TextFormat.CONTENT_TYPE_004).body());
+        assertTrue(body.contains("test_collections 2.0"));
+        assertTrue(body.contains("test_extra{index=\"9999\",} 9999.0"));
+        // The snapshot of the replaced file is still valid.
+        assertFalse(small.overwritten());
+        assertTrue(string(small.body()).contains("test_collections 1.0"));
+    }
+
+    @Test
+    public void testSidecarServesSnapshot() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        SharedSnapshotHandler handler = new SharedSnapshotHandler(new SharedSnapshotReader(file));
+        MetricsHandler.Response response = handler.handle(System.nanoTime(), "/metrics", null, null, "gzip");
+        assertEquals(503, response.status);
+        response.close();
+
+        writer(file, null).write();
+        response = handler.handle(System.nanoTime(), "/metrics", "name[]=test_collections", null, "gzip");
+        assertEquals(200, response.status);
+        assertEquals(TextFormat.CONTENT_TYPE_004, response.contentType);
+        assertFalse(response.gzip);
+        String body = string(response.body());
+        assertTrue(body.contains("test_collections 1.0"));
+        assertTrue(body.contains("test_extra"));
+        double torn = SharedSnapshotHandler.tornResponses.get();
+        response.close();
+        assertEquals(torn, SharedSnapshotHandler.tornResponses.get(), 0);
+
+        response = handler.handle(System.nanoTime(), "/-/healthy", null, null, null);
+        assertEquals(200, response.status);
+        response.close();
+    }
+}
@@ -0,0 +1,23 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class ThreadCostTest {
+
+    @Test
+    public void testMeasuresCurrentThread() {
+        ThreadCost cost = ThreadCost.start();
+        byte[][] allocated = new byte[16][];
+        long sum = 0;
+        for (int i = 0; i < allocated.length; i++) {
+            allocated[i] = new byte[1024 * 1024];
+            sum += allocated[i].length;
+        }
+        assertTrue(sum > 0);
+        // HotSpot supports both.
+        assertTrue(cost.cpuNanos() >= 0);
+        assertTrue(cost.allocatedBytes() >= 16 * 1024 * 1024);
+    }
+}
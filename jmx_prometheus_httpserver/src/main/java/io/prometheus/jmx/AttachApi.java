@@ -0,0 +1,121 @@
+package io.prometheus.jmx;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The Attach API of the JDK, called by reflection as it is in tools.jar up to Java 8 and not on the class path of the
+ * WebServer. The WebServer must run on a JDK rather than a JRE, as the same user as the JVMs it attaches to.
+ */
+class AttachApi implements LocalJvmCollector.Attacher {
+    static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+    private final Class<?> virtualMachine;
+    private final Class<?> virtualMachineDescriptor;
+
+    AttachApi() {
+        ClassLoader loader = AttachApi.class.getClassLoader();
+        try {
+            loader.loadClass("com.sun.tools.attach.VirtualMachine");
+        } catch (ClassNotFoundException e) {
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+            if (!toolsJar.exists()) {
+                throw new IllegalStateException("The Attach API is not available, the WebServer must run on a JDK "
+                        + "to discover local JVMs");
+            }
+            try {
+                loader = new URLClassLoader(new URL[]{toolsJar.toURI().toURL()}, loader);
+            } catch (MalformedURLException malformed) {
+                throw new IllegalStateException(malformed);
+            }
+        }
+        try {
+            virtualMachine = loader.loadClass("com.sun.tools.attach.VirtualMachine");
+            virtualMachineDescriptor = loader.loadClass("com.sun.tools.attach.VirtualMachineDescriptor");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The Attach API is not available", e);
+        }
+    }
+
+    public List<LocalJvmCollector.Jvm> list() throws Exception {
+        List<LocalJvmCollector.Jvm> jvms = new ArrayList<LocalJvmCollector.Jvm>();
+        for (Object descriptor : (List<?>) invoke(null, virtualMachine.getMethod("list"))) {
+            jvms.add(new LocalJvmCollector.Jvm(
+                    (String) invoke(descriptor, virtualMachineDescriptor.getMethod("id")),
+                    (String) invoke(descriptor, virtualMachineDescriptor.getMethod("displayName"))));
+        }
+        return jvms;
+    }
+
+    public Properties systemProperties(String pid) throws Exception {
+        Object vm = attach(pid);
+        try {
+            return (Properties) invoke(vm, virtualMachine.getMethod("getSystemProperties"));
+        } finally {
+            detach(vm);
+        }
+    }
+
+    /**
+     * Start the local management agent of the JVM, if it is not running yet. Java 8 and later start it with
+     * startLocalManagementAgent(), earlier versions load the management-agent.jar of the JVM.
+     */
+    public String connectorAddress(String pid) throws Exception {
+        Object vm = attach(pid);
+        try {
+            String address = agentProperty(vm, LOCAL_CONNECTOR_ADDRESS);
+            if (address != null) {
+                return address;
+            }
+            Method startLocalManagementAgent;
+            try {
+                startLocalManagementAgent = virtualMachine.getMethod("startLocalManagementAgent");
+            } catch (NoSuchMethodException e) {
+                startLocalManagementAgent = null;
+            }
+            if (startLocalManagementAgent != null) {
+                return (String) invoke(vm, startLocalManagementAgent);
+            }
+            Properties systemProperties = (Properties) invoke(vm, virtualMachine.getMethod("getSystemProperties"));
+            File agent = new File(systemProperties.getProperty("java.home"), "lib/management-agent.jar");
+            invoke(vm, virtualMachine.getMethod("loadAgent", String.class), agent.getPath());
+            address = agentProperty(vm, LOCAL_CONNECTOR_ADDRESS);
+            if (address == null) {
+                throw new IllegalStateException("The management agent of JVM " + pid + " has no local connector");
+            }
+            return address;
+        } finally {
+            detach(vm);
+        }
+    }
+
+    private Object attach(String pid) throws Exception {
+        return invoke(null, virtualMachine.getMethod("attach", String.class), pid);
+    }
+
+    private void detach(Object vm) throws Exception {
+        invoke(vm, virtualMachine.getMethod("detach"));
+    }
+
+    private String agentProperty(Object vm, String key) throws Exception {
+        return ((Properties) invoke(vm, virtualMachine.getMethod("getAgentProperties"))).getProperty(key);
+    }
+
+    private static Object invoke(Object target, Method method, Object... args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
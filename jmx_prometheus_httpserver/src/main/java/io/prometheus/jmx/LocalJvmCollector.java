@@ -0,0 +1,403 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import javax.management.remote.JMXConnector;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Scrapes the JVMs of the host, discovered with the Attach API, rather than one JVM at a jmxUrl. This is configured
+ * in the localJvms section of the config file of the WebServer:
+ * <pre>
+ * localJvms:
+ *   refreshSeconds: 60
+ *   jvms:
+ *     - mainClass: kafka\.Kafka
+ *       config: kafka.yaml
+ *     - systemProperty: cassandra.config
+ *       name: cassandra
+ *       config: cassandra.yaml
+ * </pre>
+ * Each JVM is scraped with the config of the first entry it matches, by the regex of its main class (or jar), or by
+ * a system property and optionally a regex of its value. JVMs matching no entry are left alone. The beans are read
+ * through the local connector of the JVM, whose management agent is started if it is not running, and the connection
+ * is kept between scrapes. The samples of each JVM get the labels jvm, the name of the entry, and pid. Labels of the
+ * same names produced by the rules are renamed exported_jvm and exported_pid, like Prometheus does for labels which
+ * clash with the target labels.
+ * <p>
+ * The JVMs are discovered and attached to on a background thread every refreshSeconds, as attaching and starting a
+ * management agent may take long, and a scrape only collects the JVMs attached to so far.
+ */
+class LocalJvmCollector extends Collector implements Collector.Describable {
+    private static final Logger LOGGER = Logger.getLogger(LocalJvmCollector.class.getName());
+
+    static final String SECTION = "localJvms";
+    private static final List<String> LABEL_NAMES = Arrays.asList("jvm", "pid");
+
+    /**
+     * A JVM of the host.
+     */
+    static class Jvm {
+        final String pid;
+        final String displayName;
+
+        Jvm(String pid, String displayName) {
+            this.pid = pid;
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the main class, or the jar of java -jar, the first word of the display name.
+         */
+        String mainClass() {
+            String trimmed = displayName == null ? "" : displayName.trim();
+            int space = trimmed.indexOf(' ');
+            return space < 0 ? trimmed : trimmed.substring(0, space);
+        }
+    }
+
+    /**
+     * Discovers and attaches to the JVMs of the host.
+     */
+    interface Attacher {
+        List<Jvm> list() throws Exception;
+
+        Properties systemProperties(String pid) throws Exception;
+
+        /**
+         * @return the address of the local connector of the JVM, starting its management agent if needed.
+         */
+        String connectorAddress(String pid) throws Exception;
+    }
+
+    /**
+     * An entry of the jvms list.
+     */
+    static class Selector {
+        final String name;
+        final Pattern mainClass;
+        final String systemProperty;
+        final Pattern value;
+        final File config;
+
+        Selector(Map<String, Object> entry, File configDirectory) {
+            if (!entry.containsKey("config")) {
+                throw new IllegalArgumentException("Each of the localJvms must specify a config");
+            }
+            if (entry.containsKey("mainClass") == entry.containsKey("systemProperty")) {
+                throw new IllegalArgumentException("Each of the localJvms must specify one of mainClass and "
+                        + "systemProperty");
+            }
+            File file = new File((String) entry.get("config"));
+            this.config = file.isAbsolute() ? file : new File(configDirectory, file.getPath());
+            if (hasRulesCacheFile(config)) {
+                // Each JVM would write the rules of its beans to the same file.
+                throw new IllegalArgumentException("The config " + config + " of localJvms must not specify "
+                        + "rulesCacheFile");
+            }
+            if (entry.containsKey("name")) {
+                this.name = (String) entry.get("name");
+            } else {
+                String fileName = file.getName();
+                int dot = fileName.lastIndexOf('.');
+                this.name = dot > 0 ? fileName.substring(0, dot) : fileName;
+            }
+            this.mainClass = entry.containsKey("mainClass") ? Pattern.compile((String) entry.get("mainClass")) : null;
+            this.systemProperty = (String) entry.get("systemProperty");
+            this.value = entry.containsKey("value") ? Pattern.compile((String) entry.get("value")) : null;
+        }
+
+        private static boolean hasRulesCacheFile(File config) {
+            try {
+                return JmxCollector.loadYaml(config).containsKey("rulesCacheFile");
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to read the config " + config + " of localJvms", e);
+            }
+        }
+
+        boolean matches(Jvm jvm) {
+            return mainClass != null && mainClass.matcher(jvm.mainClass()).matches();
+        }
+
+        boolean matches(Properties systemProperties) {
+            if (systemProperty == null) {
+                return false;
+            }
+            String actual = systemProperties.getProperty(systemProperty);
+            return actual != null && (value == null || value.matcher(actual).matches());
+        }
+    }
+
+    /**
+     * A JVM being scraped.
+     */
+    private static class Target {
+        final String pid;
+        final Selector selector;
+        final JMXConnector connector;
+        final JmxCollector collector;
+
+        Target(String pid, Selector selector, JMXConnector connector, JmxCollector collector) {
+            this.pid = pid;
+            this.selector = selector;
+            this.connector = connector;
+            this.collector = collector;
+        }
+
+        boolean isConnected() {
+            try {
+                connector.getMBeanServerConnection().getMBeanCount();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            collector.close();
+            try {
+                connector.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    private final Attacher attacher;
+    private final List<Selector> selectors;
+    private final long refreshNanos;
+    private final String ownPid;
+    // Changed by refresh() only, and read by the scrapes, with its lock held.
+    private final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+    // The JVMs matching no entry, not to attach to them again on every refresh.
+    private final Set<String> ignored = new HashSet<String>();
+    private Thread refresher;
+    private boolean closed;
+
+    /**
+     * @return a LocalJvmCollector for the localJvms section of the config file, or null if it is not present.
+     */
+    static LocalJvmCollector fromConfig(Map<String, Object> yamlConfig, File configFile) {
+        if (!yamlConfig.containsKey(SECTION)) {
+            return null;
+        }
+        return new LocalJvmCollector((Map<String, Object>) yamlConfig.get(SECTION),
+                configFile.getAbsoluteFile().getParentFile(), new AttachApi());
+    }
+
+    LocalJvmCollector(Map<String, Object> localJvmsConfig, File configDirectory, Attacher attacher) {
+        if (localJvmsConfig == null || !localJvmsConfig.containsKey("jvms")) {
+            throw new IllegalArgumentException("localJvms must specify jvms");
+        }
+        List<Selector> selectors = new ArrayList<Selector>();
+        for (Map<String, Object> entry : (List<Map<String, Object>>) localJvmsConfig.get("jvms")) {
+            selectors.add(new Selector(entry, configDirectory));
+        }
+        int refreshSeconds = 60;
+        if (localJvmsConfig.containsKey("refreshSeconds")) {
+            try {
+                refreshSeconds = (Integer) localJvmsConfig.get("refreshSeconds");
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException("Invalid number provided for localJvms refreshSeconds", e);
+            }
+        }
+        if (refreshSeconds <= 0) {
+            throw new IllegalArgumentException("localJvms refreshSeconds must be positive");
+        }
+        this.selectors = selectors;
+        this.refreshNanos = refreshSeconds * 1000000000L;
+        this.attacher = attacher;
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+        this.ownPid = runtimeName.contains("@") ? runtimeName.substring(0, runtimeName.indexOf('@')) : runtimeName;
+    }
+
+    public List<MetricFamilySamples> describe() {
+        // The names depend on the JVMs found, the registry does not need to know them.
+        return Collections.emptyList();
+    }
+
+    /**
+     * Start discovering the JVMs, now and every refreshSeconds.
+     */
+    synchronized void start() {
+        refresher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        refresh();
+                        Thread.sleep(refreshNanos / 1000000L);
+                    }
+                } catch (InterruptedException e) {
+                    // Closed.
+                }
+            }
+        }, "jmx_exporter-local-jvms");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Stop discovering JVMs, and close the collectors and connections of those attached to.
+     */
+    synchronized void close() {
+        if (refresher != null) {
+            refresher.interrupt();
+        }
+        List<Target> closing;
+        synchronized (targets) {
+            closed = true;
+            closing = new ArrayList<Target>(targets.values());
+            targets.clear();
+        }
+        for (Target target : closing) {
+            target.close();
+        }
+    }
+
+    public List<MetricFamilySamples> collect() {
+        List<Target> current;
+        synchronized (targets) {
+            current = new ArrayList<Target>(targets.values());
+        }
+        Map<String, MetricFamilySamples> merged = new LinkedHashMap<String, MetricFamilySamples>();
+        Map<String, Integer> jvmsPerName = new LinkedHashMap<String, Integer>();
+        for (Selector selector : selectors) {
+            jvmsPerName.put(selector.name, 0);
+        }
+        for (Target target : current) {
+            jvmsPerName.put(target.selector.name, jvmsPerName.get(target.selector.name) + 1);
+            List<String> labelValues = Arrays.asList(target.selector.name, target.pid);
+            for (MetricFamilySamples mfs : target.collector.collect()) {
+                MetricFamilySamples mergedMfs = merged.get(mfs.name);
+                if (mergedMfs == null) {
+                    mergedMfs = new MetricFamilySamples(mfs.name, mfs.type, mfs.help,
+                            new ArrayList<MetricFamilySamples.Sample>());
+                    merged.put(mfs.name, mergedMfs);
+                }
+                for (MetricFamilySamples.Sample sample : mfs.samples) {
+                    List<String> names = new ArrayList<String>(sample.labelNames.size() + LABEL_NAMES.size());
+                    for (String name : sample.labelNames) {
+                        names.add(LABEL_NAMES.contains(name) ? "exported_" + name : name);
+                    }
+                    names.addAll(LABEL_NAMES);
+                    List<String> values = new ArrayList<String>(sample.labelValues);
+                    values.addAll(labelValues);
+                    mergedMfs.samples.add(new MetricFamilySamples.Sample(sample.name, names, values, sample.value,
+                            sample.timestampMs));
+                }
+            }
+        }
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(merged.values());
+        GaugeMetricFamily jvms = new GaugeMetricFamily("jmx_local_jvms",
+                "Number of local JVMs scraped, by the name of their entry of localJvms.", Arrays.asList("jvm"));
+        for (Map.Entry<String, Integer> entry : jvmsPerName.entrySet()) {
+            jvms.addMetric(Arrays.asList(entry.getKey()), entry.getValue());
+        }
+        mfsList.add(jvms);
+        return mfsList;
+    }
+
+    /**
+     * Drop the JVMs which are gone or disconnected, and attach to the new ones which match an entry.
+     */
+    synchronized void refresh() {
+        List<Jvm> jvms;
+        try {
+            jvms = attacher.list();
+        } catch (Exception e) {
+            LOGGER.warning("Failed to list the local JVMs: " + e);
+            return;
+        }
+        Set<String> pids = new HashSet<String>();
+        for (Jvm jvm : jvms) {
+            pids.add(jvm.pid);
+        }
+        for (Target target : new ArrayList<Target>(targets.values())) {
+            if (!pids.contains(target.pid) || !target.isConnected()) {
+                LOGGER.info("Stopped scraping " + target.selector.name + " JVM " + target.pid);
+                synchronized (targets) {
+                    targets.remove(target.pid);
+                }
+                target.close();
+            }
+        }
+        ignored.retainAll(pids);
+        for (Jvm jvm : jvms) {
+            if (jvm.pid.equals(ownPid) || targets.containsKey(jvm.pid) || ignored.contains(jvm.pid)) {
+                continue;
+            }
+            Selector selector = select(jvm);
+            if (selector == null) {
+                ignored.add(jvm.pid);
+                continue;
+            }
+            JMXConnector connector = null;
+            try {
+                connector = JmxScraper.connect(attacher.connectorAddress(jvm.pid), null, null, false);
+                JmxCollector collector = new JmxCollector(selector.config)
+                        .scrapeFrom(connector.getMBeanServerConnection());
+                Target target = new Target(jvm.pid, selector, connector, collector);
+                synchronized (targets) {
+                    if (closed) {
+                        target.close();
+                        return;
+                    }
+                    targets.put(jvm.pid, target);
+                }
+                LOGGER.info("Scraping " + selector.name + " JVM " + jvm.pid + " (" + jvm.mainClass() + ")");
+            } catch (Exception e) {
+                // Tried again on the next refresh.
+                LOGGER.warning("Failed to attach to " + selector.name + " JVM " + jvm.pid + ": " + e);
+                if (connector != null) {
+                    try {
+                        connector.close();
+                    } catch (IOException closeFailure) {
+                        // Already gone.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first entry matching the JVM, or null. The system properties are only read if an entry selects by
+     * them and no earlier entry matches the main class.
+     */
+    private Selector select(Jvm jvm) {
+        Properties systemProperties = null;
+        for (Selector selector : selectors) {
+            if (selector.matches(jvm)) {
+                return selector;
+            }
+            if (selector.systemProperty == null) {
+                continue;
+            }
+            if (systemProperties == null) {
+                try {
+                    systemProperties = attacher.systemProperties(jvm.pid);
+                } catch (Exception e) {
+                    LOGGER.fine("Failed to read the system properties of JVM " + jvm.pid + ": " + e);
+                    systemProperties = new Properties();
+                }
+            }
+            if (selector.matches(systemProperties)) {
+                return selector;
+            }
+        }
+        return null;
+    }
+}
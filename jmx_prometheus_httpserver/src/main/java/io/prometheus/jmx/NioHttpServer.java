@@ -0,0 +1,648 @@
+package io.prometheus.jmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small non-blocking HTTP/1.1 server for the metrics endpoints.
+ * <p>
+ * A single selector thread accepts connections, reads requests and writes responses, so slow or idle clients do not
+ * hold a thread. Only the collection and rendering of the metrics run on the worker threads. Responses are handed to
+ * the selector thread through a small bounded queue per connection; a worker producing a response faster than the
+ * client reads it blocks until the queue drains, or gives up after the request timeout.
+ * <p>
+ * The server limits the number of open connections (further connections get a 503), closes connections which do not
+ * send a complete request within the request timeout or stay idle longer than the keep-alive timeout, and streams
+ * responses of unknown length with chunked transfer encoding. Only GET and HEAD requests without a body are supported.
+ * <p>
+ * Rendered snapshots are queued as they are rather than copied, so that snapshots in direct buffers are written from
+ * them straight to the socket. The snapshot is released once the response is written or the connection is closed.
+ */
+public class NioHttpServer {
+    private static final Logger LOGGER = Logger.getLogger(NioHttpServer.class.getName());
+
+    private static final int MAX_REQUEST_HEADER_BYTES = 8192;
+    private static final int OUTPUT_BUFFER_BYTES = 8192;
+    private static final int MAX_QUEUED_OUTPUT_BUFFERS = 16;
+    private static final long SELECT_TIMEOUT_MILLIS = 250;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final MetricsHandler handler;
+    private final int maxConnections;
+    private final long requestTimeoutMillis;
+    private final long keepAliveTimeoutMillis;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    // Only accessed by the selector thread.
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private volatile boolean running;
+
+    public NioHttpServer(InetSocketAddress address, MetricsHandler handler, int maxConnections, int workerThreads,
+                         long requestTimeoutMillis, long keepAliveTimeoutMillis, final boolean daemon)
+            throws IOException {
+        if (maxConnections <= 0 || workerThreads <= 0 || requestTimeoutMillis <= 0 || keepAliveTimeoutMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "maxConnections, workerThreads and the timeouts of the HTTP server must be positive");
+        }
+        this.handler = handler;
+        this.maxConnections = maxConnections;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address, 50);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jmx_exporter-http-" + threadNumber.getAndIncrement());
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        });
+        selectorThread = new Thread(new Runnable() {
+            public void run() {
+                selectLoop();
+            }
+        }, "jmx_exporter-http-selector");
+        selectorThread.setDaemon(daemon);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        running = true;
+        selectorThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(SELECT_TIMEOUT_MILLIS * 4);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Closing connection", e);
+                        connection.close();
+                    }
+                }
+                closeTimedOutConnections();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "HTTP server failed", e);
+        } finally {
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the HTTP server", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                if (connections.size() >= maxConnections) {
+                    // Best effort, the response is small enough for the socket buffer.
+                    channel.write(ByteBuffer.wrap(statusLine(503, "Too many connections\n", true)));
+                    channel.close();
+                    continue;
+                }
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to accept connection", e);
+                channel.close();
+            }
+        }
+    }
+
+    private void closeTimedOutConnections() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if (connection.deadline > 0 && now > connection.deadline) {
+                LOGGER.fine("Closing timed out connection");
+                connection.close();
+            }
+        }
+    }
+
+    private void runOnSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private static byte[] statusLine(int status, String body, boolean close) {
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n")
+                .append("Content-Type: text/plain; charset=utf-8\r\n")
+                .append("Content-Length: ").append(body.length()).append("\r\n");
+        if (close) {
+            response.append("Connection: close\r\n");
+        }
+        return response.append("\r\n").append(body).toString().getBytes(ISO_8859_1);
+    }
+
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 405: return "Method Not Allowed";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Unknown";
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer input = ByteBuffer.allocate(MAX_REQUEST_HEADER_BYTES);
+        final BlockingQueue<ByteBuffer> output = new ArrayBlockingQueue<ByteBuffer>(MAX_QUEUED_OUTPUT_BUFFERS);
+        // The buffer being written, only accessed by the selector thread.
+        ByteBuffer writing;
+        // 0 while a worker is handling a request, otherwise the time at which the connection is closed.
+        volatile long deadline;
+        volatile boolean responseComplete;
+        volatile boolean closed;
+        boolean keepAlive;
+        // Whether a request is being handled or its response written, only accessed by the selector thread.
+        boolean handling;
+        // The response whose body is queued, closed once it is written.
+        volatile MetricsHandler.Response writingResponse;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.deadline = System.currentTimeMillis() + keepAliveTimeoutMillis;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(input);
+            if (read < 0) {
+                close();
+                return;
+            }
+            parseRequest();
+        }
+
+        private void parseRequest() throws IOException {
+            int end = endOfHeaders();
+            if (end < 0) {
+                if (!input.hasRemaining()) {
+                    respondAndClose(431, "Request headers too large\n");
+                } else if (input.position() > 0 && deadline - System.currentTimeMillis() > requestTimeoutMillis) {
+                    // The first bytes of a request arrived, it must be completed within the request timeout.
+                    deadline = System.currentTimeMillis() + requestTimeoutMillis;
+                }
+                return;
+            }
+            String head = new String(input.array(), 0, end, ISO_8859_1);
+            input.flip();
+            input.position(end + 4);
+            input.compact();
+
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                respondAndClose(400, "Malformed request line\n");
+                return;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    respondAndClose(400, "Malformed header\n");
+                    return;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase();
+                String value = lines[i].substring(colon + 1).trim();
+                String previous = headers.get(name);
+                headers.put(name, previous == null ? value : previous + "," + value);
+            }
+
+            final boolean http11 = requestLine[2].equals("HTTP/1.1");
+            String connectionHeader = headers.get("connection");
+            keepAlive = http11 ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            String contentLength = headers.get("content-length");
+            if (headers.containsKey("transfer-encoding") || (contentLength != null && !contentLength.equals("0"))) {
+                respondAndClose(400, "Request bodies are not supported\n");
+                return;
+            }
+            final String method = requestLine[0];
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                respond(405, "Method not allowed\n");
+                return;
+            }
+
+            String uri = requestLine[1];
+            int question = uri.indexOf('?');
+            final String path = question < 0 ? uri : uri.substring(0, question);
+            final String rawQuery = question < 0 ? null : uri.substring(question + 1);
+            final String accept = headers.get("accept");
+            final String acceptEncoding = headers.get("accept-encoding");
+            final long requestNanos = System.nanoTime();
+
+            deadline = 0;
+            handling = true;
+            key.interestOps(0);
+            workers.execute(new Runnable() {
+                public void run() {
+                    handle(requestNanos, method.equals("HEAD"), http11, path, rawQuery, accept, acceptEncoding);
+                }
+            });
+        }
+
+        private int endOfHeaders() {
+            byte[] bytes = input.array();
+            for (int i = 0; i + 3 < input.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Handle the request on a worker thread.
+         */
+        private void handle(long requestNanos, boolean head, boolean http11, String path, String rawQuery,
+                            String accept, String acceptEncoding) {
+            ThreadCost cost = ThreadCost.start();
+            try {
+                handleAndWrite(requestNanos, head, http11, path, rawQuery, accept, acceptEncoding);
+            } finally {
+                cost.record("http");
+            }
+        }
+
+        private void handleAndWrite(long requestNanos, boolean head, boolean http11, String path, String rawQuery,
+                                    String accept, String acceptEncoding) {
+            ConnectionOutputStream os = new ConnectionOutputStream(this);
+            MetricsHandler.Response response = null;
+            try {
+                try {
+                    response = handler.handle(requestNanos, path, rawQuery, accept, acceptEncoding);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to handle request", e);
+                    os.write(statusLine(500, "Failed to collect metrics\n", !keepAlive));
+                    os.close();
+                    complete();
+                    return;
+                }
+                long contentLength = response.contentLength();
+                boolean chunked = contentLength < 0 && http11;
+                if (contentLength < 0 && !chunked) {
+                    // HTTP/1.0 has no chunked encoding, the end of the body is signalled by closing the connection.
+                    keepAlive = false;
+                }
+                StringBuilder headers = new StringBuilder();
+                headers.append("HTTP/1.1 ").append(response.status).append(' ')
+                        .append(reasonPhrase(response.status)).append("\r\n")
+                        .append("Content-Type: ").append(response.contentType).append("\r\n");
+                if (response.gzip) {
+                    headers.append("Content-Encoding: gzip\r\n");
+                }
+                if (contentLength >= 0) {
+                    headers.append("Content-Length: ").append(contentLength).append("\r\n");
+                } else if (chunked) {
+                    headers.append("Transfer-Encoding: chunked\r\n");
+                }
+                if (!keepAlive) {
+                    headers.append("Connection: close\r\n");
+                }
+                headers.append("\r\n");
+                os.write(headers.toString().getBytes(ISO_8859_1));
+                ByteBuffer body = response.body();
+                if (!head && body != null) {
+                    os.close();
+                    closeAfterWrite(response);
+                    response = null;
+                    enqueue(body);
+                } else if (!head) {
+                    if (chunked) {
+                        ChunkedOutputStream chunkedOs = new ChunkedOutputStream(os);
+                        response.writeBody(chunkedOs);
+                        chunkedOs.finish();
+                    } else {
+                        response.writeBody(os);
+                    }
+                }
+                os.close();
+                complete();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to write response", e);
+                runOnSelectorThread(new Runnable() {
+                    public void run() {
+                        close();
+                    }
+                });
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+
+        /**
+         * Called by the worker thread, close the response once its body is written or the connection is closed.
+         */
+        private void closeAfterWrite(MetricsHandler.Response response) {
+            writingResponse = response;
+            if (closed) {
+                closeWritingResponse();
+            }
+        }
+
+        private void closeWritingResponse() {
+            MetricsHandler.Response response = writingResponse;
+            if (response != null) {
+                writingResponse = null;
+                response.close();
+            }
+        }
+
+        /**
+         * Called by the worker thread after the whole response has been queued.
+         */
+        private void complete() {
+            responseComplete = true;
+            enableWrites();
+        }
+
+        /**
+         * Called by the worker thread to queue part of the response.
+         */
+        void enqueue(ByteBuffer buffer) throws IOException {
+            try {
+                if (closed || !output.offer(buffer, requestTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Client is not reading the response");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            enableWrites();
+        }
+
+        private void enableWrites() {
+            runOnSelectorThread(new Runnable() {
+                public void run() {
+                    // A task queued for a response already written must not stop the connection from reading.
+                    if (key.isValid() && handling) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+
+        void write() throws IOException {
+            while (true) {
+                if (writing == null) {
+                    writing = output.poll();
+                    if (writing == null) {
+                        break;
+                    }
+                }
+                channel.write(writing);
+                if (writing.hasRemaining()) {
+                    // The socket buffer is full, wait until the client reads.
+                    if (deadline == 0) {
+                        deadline = System.currentTimeMillis() + requestTimeoutMillis;
+                    }
+                    return;
+                }
+                writing = null;
+                if (deadline != 0) {
+                    deadline = 0;
+                }
+            }
+            if (!responseComplete) {
+                // Wait for the worker to queue more of the response.
+                key.interestOps(0);
+                return;
+            }
+            responseComplete = false;
+            handling = false;
+            closeWritingResponse();
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            deadline = System.currentTimeMillis() + keepAliveTimeoutMillis;
+            key.interestOps(SelectionKey.OP_READ);
+            if (input.position() > 0) {
+                // A pipelined request.
+                parseRequest();
+            }
+        }
+
+        /**
+         * Respond from the selector thread, and keep the connection open if the client asked for it.
+         */
+        private void respond(int status, String body) {
+            output.add(ByteBuffer.wrap(statusLine(status, body, !keepAlive)));
+            responseComplete = true;
+            handling = true;
+            deadline = System.currentTimeMillis() + requestTimeoutMillis;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void respondAndClose(int status, String body) {
+            keepAlive = false;
+            respond(status, body);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeWritingResponse();
+            connections.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close connection", e);
+            }
+        }
+    }
+
+    /**
+     * Collects the response written by a worker into buffers and queues them on the connection.
+     */
+    private static class ConnectionOutputStream extends OutputStream {
+        private final Connection connection;
+        private byte[] buffer = new byte[OUTPUT_BUFFER_BYTES];
+        private int count;
+
+        ConnectionOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                connection.enqueue(ByteBuffer.wrap(buffer, 0, count));
+                buffer = new byte[OUTPUT_BUFFER_BYTES];
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Chunked transfer encoding, one chunk per write.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private static final byte[] CRLF = {'\r', '\n'};
+        private final OutputStream out;
+        private final byte[] buffer = new byte[OUTPUT_BUFFER_BYTES];
+        private int count;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (count > 0) {
+                out.write(Integer.toHexString(count).getBytes(ISO_8859_1));
+                out.write(CRLF);
+                out.write(buffer, 0, count);
+                out.write(CRLF);
+                count = 0;
+            }
+        }
+
+        void finish() throws IOException {
+            writeChunk();
+            out.write('0');
+            out.write(CRLF);
+            out.write(CRLF);
+        }
+    }
+}
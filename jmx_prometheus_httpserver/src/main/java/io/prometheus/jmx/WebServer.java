@@ -1,10 +1,12 @@
 package io.prometheus.jmx;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 
 public class WebServer {
 
@@ -27,7 +29,66 @@ public class WebServer {
      }
 
      new BuildInfoCollector().register();
-     new JmxCollector(new File(args[1]), true).register();
-     new HTTPServer(socket, CollectorRegistry.defaultRegistry);
+     File configFile = new File(args[1]);
+     Map<String, Object> yamlConfig = JmxCollector.loadYaml(configFile);
+     Map<String, Object> httpServerConfig = section(yamlConfig, "httpServer");
+     if (SharedSnapshotWriter.isConfigured(yamlConfig)) {
+       // Sidecar mode, serving the snapshots which the application writes rather than scraping it.
+       SharedSnapshotReader reader =
+           new SharedSnapshotReader(SharedSnapshotWriter.file(section(yamlConfig, "sharedSnapshot")));
+       createHttpServer(socket, new SharedSnapshotHandler(reader), httpServerConfig).start();
+       return;
+     }
+     LocalJvmCollector localJvmCollector = LocalJvmCollector.fromConfig(yamlConfig, configFile);
+     JmxCollector jmxCollector = null;
+     if (localJvmCollector != null) {
+       // The JVMs of the host, rather than one at a jmxUrl.
+       localJvmCollector.register();
+       localJvmCollector.start();
+     } else {
+       jmxCollector = new JmxCollector(configFile, yamlConfig, true).register();
+     }
+     MetricsHandler handler = new MetricsHandler(CollectorRegistry.defaultRegistry, jmxCollector,
+         MetricsHandler.snapshotMaxAgeMillis(yamlConfig))
+         .snapshotsOffHeap(MetricsHandler.snapshotOffHeap(yamlConfig));
+     NioHttpServer server = createHttpServer(socket, handler, httpServerConfig);
+     RemoteWriter.start(yamlConfig, CollectorRegistry.defaultRegistry);
+     server.start();
+   }
+
+   /**
+    * Create the HTTP server, configured by the httpServer section of the config file.
+    *
+    * @param httpServerConfig the httpServer section, or null if the config file has none.
+    */
+   static NioHttpServer createHttpServer(InetSocketAddress socket, MetricsHandler handler,
+       Map<String, Object> httpServerConfig) throws IOException {
+     if (httpServerConfig == null) {
+       httpServerConfig = new HashMap<String, Object>();
+     }
+     return new NioHttpServer(socket, handler,
+         getInt(httpServerConfig, "maxConnections", 100),
+         getInt(httpServerConfig, "workerThreads", 5),
+         getInt(httpServerConfig, "requestTimeoutSeconds", 30) * 1000L,
+         getInt(httpServerConfig, "keepAliveTimeoutSeconds", 120) * 1000L,
+         false);
+   }
+
+   /**
+    * @return a section of the config file, or null if it is not present.
+    */
+   private static Map<String, Object> section(Map<String, Object> yamlConfig, String name) {
+     return (Map<String, Object>) yamlConfig.get(name);
+   }
+
+   private static int getInt(Map<String, Object> config, String key, int defaultValue) {
+     if (!config.containsKey(key)) {
+       return defaultValue;
+     }
+     try {
+       return (Integer) config.get(key);
+     } catch (ClassCastException e) {
+       throw new IllegalArgumentException("Invalid number provided for httpServer " + key, e);
+     }
    }
 }
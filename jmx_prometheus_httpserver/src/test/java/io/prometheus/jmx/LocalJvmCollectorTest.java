@@ -0,0 +1,210 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocalJvmCollectorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JMXConnectorServer connectorServer;
+    private final FakeAttacher attacher = new FakeAttacher();
+    private LocalJvmCollector collector;
+
+    /**
+     * JVMs whose local connector is the connector server of this JVM.
+     */
+    private class FakeAttacher implements LocalJvmCollector.Attacher {
+        final List<LocalJvmCollector.Jvm> jvms = new ArrayList<LocalJvmCollector.Jvm>();
+        final Map<String, Properties> systemProperties = new HashMap<String, Properties>();
+        final List<String> attached = new ArrayList<String>();
+
+        public List<LocalJvmCollector.Jvm> list() {
+            return new ArrayList<LocalJvmCollector.Jvm>(jvms);
+        }
+
+        public Properties systemProperties(String pid) {
+            Properties properties = systemProperties.get(pid);
+            return properties != null ? properties : new Properties();
+        }
+
+        public String connectorAddress(String pid) {
+            attached.add(pid);
+            return connectorServer.getAddress().toString();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://127.0.0.1"),
+                null, ManagementFactory.getPlatformMBeanServer());
+        connectorServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (collector != null) {
+            collector.close();
+        }
+        connectorServer.stop();
+    }
+
+    private LocalJvmCollector collector() throws Exception {
+        return collector("rules:\n- pattern: 'java.lang<type=Runtime><>Uptime'\n  name: test_uptime_millis\n");
+    }
+
+    private LocalJvmCollector collector(String rules) throws Exception {
+        FileWriter writer = new FileWriter(new File(folder.getRoot(), "runtime.yaml"));
+        writer.write("whitelistObjectNames: [\"java.lang:type=Runtime\"]\n" + rules);
+        writer.close();
+        Map<String, Object> app = new HashMap<String, Object>();
+        app.put("mainClass", "com\\.example\\.App");
+        app.put("config", "runtime.yaml");
+        Map<String, Object> service = new HashMap<String, Object>();
+        service.put("systemProperty", "app.name");
+        service.put("value", "svc-.*");
+        service.put("name", "svc");
+        service.put("config", "runtime.yaml");
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("jvms", Arrays.asList(app, service));
+        collector = new LocalJvmCollector(config, folder.getRoot(), attacher);
+        return collector;
+    }
+
+    private static List<String> series(List<MetricFamilySamples> mfsList, String name) {
+        List<String> series = new ArrayList<String>();
+        for (MetricFamilySamples mfs : mfsList) {
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                if (sample.name.equals(name)) {
+                    series.add(sample.labelNames + "=" + sample.labelValues);
+                }
+            }
+        }
+        return series;
+    }
+
+    @Test
+    public void testJvmsAreSelectedByMainClassOrSystemProperty() throws Exception {
+        attacher.jvms.add(new LocalJvmCollector.Jvm("101", "com.example.App --port 1"));
+        attacher.jvms.add(new LocalJvmCollector.Jvm("102", "other.Main"));
+        attacher.jvms.add(new LocalJvmCollector.Jvm("103", "unrelated.Main"));
+        Properties properties = new Properties();
+        properties.setProperty("app.name", "svc-1");
+        attacher.systemProperties.put("102", properties);
+
+        LocalJvmCollector collector = collector();
+        // Scrapes do not attach, only the refreshes do.
+        assertEquals(0, series(collector.collect(), "test_uptime_millis").size());
+        assertTrue(attacher.attached.isEmpty());
+        collector.refresh();
+        List<MetricFamilySamples> mfsList = collector.collect();
+        assertEquals(Arrays.asList("[jvm, pid]=[runtime, 101]", "[jvm, pid]=[svc, 102]"),
+                series(mfsList, "test_uptime_millis"));
+        assertEquals(Arrays.asList("[jvm]=[runtime]", "[jvm]=[svc]"), series(mfsList, "jmx_local_jvms"));
+        // Only the selected JVMs get a management agent.
+        assertEquals(Arrays.asList("101", "102"), attacher.attached);
+    }
+
+    @Test
+    public void testJvmsAreRediscovered() throws Exception {
+        LocalJvmCollector collector = collector();
+        attacher.jvms.add(new LocalJvmCollector.Jvm("101", "com.example.App"));
+        attacher.jvms.add(new LocalJvmCollector.Jvm("103", "unrelated.Main"));
+        collector.refresh();
+        assertEquals(1, series(collector.collect(), "test_uptime_millis").size());
+
+        attacher.jvms.remove(0);
+        attacher.jvms.add(new LocalJvmCollector.Jvm("104", "com.example.App"));
+        collector.refresh();
+        assertEquals(Arrays.asList("[jvm, pid]=[runtime, 104]"),
+                series(collector.collect(), "test_uptime_millis"));
+        assertEquals(Arrays.asList("101", "104"), attacher.attached);
+    }
+
+    @Test
+    public void testClashingLabelsAreRenamed() throws Exception {
+        LocalJvmCollector collector = collector("rules:\n- pattern: 'java.lang<type=Runtime><>Uptime'\n"
+                + "  name: test_uptime_millis\n  labels:\n    pid: own\n");
+        attacher.jvms.add(new LocalJvmCollector.Jvm("101", "com.example.App"));
+        collector.refresh();
+        assertEquals(Arrays.asList("[exported_pid, jvm, pid]=[own, runtime, 101]"),
+                series(collector.collect(), "test_uptime_millis"));
+    }
+
+    @Test
+    public void testRefreshesInTheBackground() throws Exception {
+        LocalJvmCollector collector = collector();
+        attacher.jvms.add(new LocalJvmCollector.Jvm("101", "com.example.App"));
+        collector.start();
+        long start = System.nanoTime();
+        while (series(collector.collect(), "test_uptime_millis").isEmpty()) {
+            assertTrue(System.nanoTime() - start < 30000000000L);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEntryMustSelectByOneOfMainClassAndSystemProperty() {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("config", "runtime.yaml");
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("jvms", Arrays.asList(entry));
+        new LocalJvmCollector(config, folder.getRoot(), attacher);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRulesCacheFileIsRejected() throws Exception {
+        FileWriter writer = new FileWriter(new File(folder.getRoot(), "cached.yaml"));
+        writer.write("rulesCacheFile: rules.cache\n");
+        writer.close();
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("mainClass", "com\\.example\\.App");
+        entry.put("config", "cached.yaml");
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("jvms", Arrays.asList(entry));
+        new LocalJvmCollector(config, folder.getRoot(), attacher);
+    }
+
+    @Test
+    public void testAttachApiListsThisJvm() {
+        LocalJvmCollector.Attacher attachApi;
+        try {
+            attachApi = new AttachApi();
+        } catch (IllegalStateException e) {
+            // Not running on a JDK.
+            return;
+        }
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+        String pid = runtimeName.substring(0, runtimeName.indexOf('@'));
+        boolean found = false;
+        try {
+            for (LocalJvmCollector.Jvm jvm : attachApi.list()) {
+                found |= jvm.pid.equals(pid);
+            }
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        assertTrue(found);
+    }
+}
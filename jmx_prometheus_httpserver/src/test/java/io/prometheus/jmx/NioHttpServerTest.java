@@ -0,0 +1,189 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioHttpServerTest {
+
+    private NioHttpServer server;
+
+    private void start(long snapshotMaxAgeMillis, int maxConnections, long requestTimeoutMillis) throws IOException {
+        start(snapshotMaxAgeMillis, maxConnections, requestTimeoutMillis, false);
+    }
+
+    private void start(long snapshotMaxAgeMillis, int maxConnections, long requestTimeoutMillis, boolean offHeap)
+            throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge gauge = Gauge.build("test_gauge", "help").labelNames("l").register(registry);
+        // Enough output for several chunks.
+        for (int i = 0; i < 2000; i++) {
+            gauge.labels("value" + i).set(i);
+        }
+        server = new NioHttpServer(new InetSocketAddress("localhost", 0),
+                new MetricsHandler(registry, snapshotMaxAgeMillis).snapshotsOffHeap(offHeap), maxConnections, 2, requestTimeoutMillis, 10000,
+                true);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testChunkedResponse() throws IOException {
+        start(-1, 10, 10000);
+        HttpURLConnection connection = open("/metrics");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+        String body = read(connection.getInputStream());
+        assertTrue(body.contains("test_gauge{l=\"value0\",} 0.0"));
+        assertTrue(body.contains("test_gauge{l=\"value1999\",} 1999.0"));
+
+        connection = open("/metrics");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertTrue(read(new GZIPInputStream(connection.getInputStream())).contains("test_gauge{l=\"value1999\",}"));
+    }
+
+    @Test
+    public void testOffHeapSnapshot() throws IOException {
+        start(0, 10, 10000, true);
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection = open("/metrics");
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getHeaderField("Content-Length") != null);
+            assertTrue(read(connection.getInputStream()).contains("test_gauge{l=\"value1999\",} 1999.0"));
+        }
+        HttpURLConnection connection = open("/metrics");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertTrue(read(new GZIPInputStream(connection.getInputStream())).contains("test_gauge{l=\"value1999\",}"));
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        start(60000, 10, 10000);
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write("GET /-/healthy HTTP/1.1\r\nHost: localhost\r\n\r\nGET /metrics HTTP/1.1\r\n\r\n".getBytes("UTF-8"));
+            os.flush();
+            InputStream is = socket.getInputStream();
+            String first = readResponse(is);
+            assertTrue(first.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(first.endsWith("Exporter is Healthy."));
+            String second = readResponse(is);
+            assertTrue(second.contains("test_gauge{l=\"value1999\",} 1999.0"));
+
+            os.write("HEAD /metrics HTTP/1.1\r\n\r\nPOST /metrics HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+            String head = readHeaders(is);
+            assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"));
+            String post = read(is);
+            assertTrue(post.startsWith("HTTP/1.1 405 Method Not Allowed\r\n"));
+            assertTrue(post.contains("Connection: close\r\n"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testSequentialKeepAliveRequests() throws IOException {
+        start(60000, 10, 10000);
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            // Each request is sent after the previous response, racing the end of the previous write.
+            socket.setSoTimeout(5000);
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            for (int i = 0; i < 200; i++) {
+                os.write("GET /metrics HTTP/1.1\r\n\r\n".getBytes("UTF-8"));
+                os.flush();
+                assertTrue(readResponse(is).contains("test_gauge{l=\"value1999\",} 1999.0"));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testMaxConnections() throws IOException {
+        start(-1, 1, 10000);
+        Socket first = new Socket("localhost", server.getPort());
+        try {
+            first.getOutputStream().write("GET /-/healthy HTTP/1.1\r\n\r\n".getBytes("UTF-8"));
+            assertTrue(readResponse(first.getInputStream()).endsWith("Exporter is Healthy."));
+
+            // The first connection is still open.
+            HttpURLConnection connection = open("/metrics");
+            assertEquals(503, connection.getResponseCode());
+        } finally {
+            first.close();
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws IOException {
+        start(-1, 10, 200);
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\n".getBytes("UTF-8"));
+            // The server closes the connection as the request is not completed in time.
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static String readHeaders(InputStream is) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        while (!headers.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            headers.write(is.read());
+        }
+        return headers.toString("ISO-8859-1");
+    }
+
+    /**
+     * Read a response with a Content-Length.
+     */
+    private static String readResponse(InputStream is) throws IOException {
+        String headers = readHeaders(is);
+        int start = headers.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(headers.substring(start, headers.indexOf("\r\n", start)));
+        byte[] body = new byte[length];
+        for (int read = 0; read < length; ) {
+            read += is.read(body, read, length - read);
+        }
+        return headers + new String(body, "UTF-8");
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, len);
+        }
+        inputStream.close();
+        return result.toString("UTF-8");
+    }
+}
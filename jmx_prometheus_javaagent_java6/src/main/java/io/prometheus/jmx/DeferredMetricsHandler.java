@@ -0,0 +1,54 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+
+/**
+ * HTTP handler for the asynchronous startup of the Java agent.
+ * <p>
+ * The HTTP server is started before the collectors are initialized. Until {@link #ready(HttpHandler)} is called,
+ * all requests are answered with 503 Service Unavailable, so that a scrape during startup is clearly distinguishable
+ * from an empty or failed JMX scrape. Afterwards, requests are passed on to the {@link MetricsHandler}.
+ */
+class DeferredMetricsHandler implements HttpHandler {
+    private static final String NOT_READY_RESPONSE = "JMX exporter is starting up, metrics are not available yet.\n";
+
+    private volatile HttpHandler metricsHandler;
+    private volatile String failure;
+
+    /**
+     * Start serving metrics with the handler.
+     */
+    void ready(HttpHandler metricsHandler) {
+        this.metricsHandler = metricsHandler;
+    }
+
+    /**
+     * Initialization failed, report the failure on every request.
+     */
+    void failed(Throwable cause) {
+        this.failure = "JMX exporter failed to start: " + cause + "\n";
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpHandler metricsHandler = this.metricsHandler;
+        if (metricsHandler != null) {
+            metricsHandler.handle(exchange);
+            return;
+        }
+        try {
+            String failure = this.failure;
+            if (failure != null) {
+                MetricsHandler.respond(exchange, 500, "text/plain; charset=utf-8", failure.getBytes("UTF-8"), false);
+            } else {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                MetricsHandler.respond(exchange, 503, "text/plain; charset=utf-8",
+                        NOT_READY_RESPONSE.getBytes("UTF-8"), false);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -1,18 +1,31 @@
 package io.prometheus.jmx;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
 import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.sun.net.httpserver.HttpServer;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.hotspot.DefaultExports;
 
 public class JavaAgent {
 
-    static HTTPServer server;
+    /**
+     * If this system property is set to true, premain() only parses the agent arguments and initializes the exporter
+     * on a daemon thread, so that the application's main() is not delayed.
+     */
+    static final String ASYNC_STARTUP_PROPERTY = "jmx.prometheus.javaagent.asyncStartup";
+
+    private static final Logger LOGGER = Logger.getLogger(JavaAgent.class.getName());
+
+    static HttpServer server;
+    static HttpServer asyncServer;
 
     public static void agentmain(String agentArgument, Instrumentation instrumentation) throws Exception {
         premain(agentArgument, instrumentation);
@@ -25,10 +38,24 @@ public class JavaAgent {
         try {
             Config config = parseConfig(agentArgument, host);
 
+            if (Boolean.getBoolean(ASYNC_STARTUP_PROPERTY)) {
+                startAsync(config);
+                return;
+            }
+
             new BuildInfoCollector().register();
-            new JmxCollector(new File(config.file)).register();
+            File configFile = new File(config.file);
+            Map<String, Object> yamlConfig = JmxCollector.loadYaml(configFile);
+            JmxCollector jmxCollector = new JmxCollector(configFile, yamlConfig, false).register();
             DefaultExports.initialize();
-            server = new HTTPServer(config.socket, CollectorRegistry.defaultRegistry, true);
+            MetricsHandler handler = new MetricsHandler(CollectorRegistry.defaultRegistry, jmxCollector,
+                    MetricsHandler.snapshotMaxAgeMillis(yamlConfig))
+                    .snapshotsOffHeap(MetricsHandler.snapshotOffHeap(yamlConfig));
+            RemoteWriter.start(yamlConfig, CollectorRegistry.defaultRegistry);
+            SharedSnapshotWriter.start(yamlConfig, CollectorRegistry.defaultRegistry);
+            if (!sharedSnapshotOnly(config, yamlConfig)) {
+                server = MetricsHandler.startServer(config.socket, handler, true);
+            }
         }
         catch (IllegalArgumentException e) {
             System.err.println("Usage: -javaagent:/path/to/JavaAgent.jar=[host:]<port>:<yaml configuration file> " + e.getMessage());
@@ -36,6 +63,53 @@ public class JavaAgent {
         }
     }
 
+    /**
+     * Bind the HTTP server and initialize the collectors on a daemon thread. Until the collectors are registered,
+     * scrapes are answered with 503 Service Unavailable.
+     */
+    static Thread startAsync(final Config config) {
+        final DeferredMetricsHandler handler = new DeferredMetricsHandler();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final File configFile = new File(config.file);
+                final Map<String, Object> yamlConfig;
+                try {
+                    yamlConfig = JmxCollector.loadYaml(configFile);
+                    if (!sharedSnapshotOnly(config, yamlConfig)) {
+                        asyncServer = MetricsHandler.startServer(config.socket, handler, true);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to start the HTTP server on " + config.socket, e);
+                    return;
+                }
+                try {
+                    new BuildInfoCollector().register();
+                    JmxCollector jmxCollector = new JmxCollector(configFile, yamlConfig, false).register();
+                    DefaultExports.initialize();
+                    handler.ready(new MetricsHandler(CollectorRegistry.defaultRegistry, jmxCollector,
+                            MetricsHandler.snapshotMaxAgeMillis(yamlConfig))
+                            .snapshotsOffHeap(MetricsHandler.snapshotOffHeap(yamlConfig)));
+                    RemoteWriter.start(yamlConfig, CollectorRegistry.defaultRegistry);
+                    SharedSnapshotWriter.start(yamlConfig, CollectorRegistry.defaultRegistry);
+                } catch (Throwable e) {
+                    LOGGER.log(Level.SEVERE, "Failed to initialize the JMX exporter", e);
+                    handler.failed(e);
+                }
+            }
+        }, "jmx_exporter-init");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return true if the port is 0 and the config has a sharedSnapshot section, so that the metrics are only served
+     * by a sidecar, and the application has no HTTP server of the exporter.
+     */
+    static boolean sharedSnapshotOnly(Config config, Map<String, Object> yamlConfig) {
+        return config.port == 0 && SharedSnapshotWriter.isConfigured(yamlConfig);
+    }
+
     /**
      * Parse the Java Agent configuration. The arguments are typically specified to the JVM as a javaagent as
      * {@code -javaagent:/path/to/agent.jar=<CONFIG>}. This method parses the {@code <CONFIG>} portion.
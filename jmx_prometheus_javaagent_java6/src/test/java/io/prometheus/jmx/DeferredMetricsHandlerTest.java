@@ -0,0 +1,84 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+public class DeferredMetricsHandlerTest {
+
+    private HttpServer httpServer;
+    private DeferredMetricsHandler handler;
+
+    @Before
+    public void setUp() throws IOException {
+        handler = new DeferredMetricsHandler();
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 3);
+        httpServer.createContext("/", handler);
+        httpServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testNotReady() throws IOException {
+        HttpURLConnection connection = open("/metrics");
+        Assert.assertEquals(503, connection.getResponseCode());
+        Assert.assertTrue(read(connection.getErrorStream()).contains("starting up"));
+    }
+
+    @Test
+    public void testReady() throws IOException {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build("test_gauge", "help").register(registry).set(42);
+        Gauge.build("other_gauge", "help").register(registry).set(1);
+        handler.ready(new MetricsHandler(registry, -1));
+
+        HttpURLConnection connection = open("/metrics");
+        Assert.assertEquals(200, connection.getResponseCode());
+        String body = read(connection.getInputStream());
+        Assert.assertTrue(body.contains("test_gauge 42.0"));
+        Assert.assertTrue(body.contains("other_gauge 1.0"));
+
+        connection = open("/metrics?name[]=other_gauge");
+        body = read(connection.getInputStream());
+        Assert.assertFalse(body.contains("test_gauge"));
+        Assert.assertTrue(body.contains("other_gauge 1.0"));
+    }
+
+    @Test
+    public void testFailed() throws IOException {
+        handler.failed(new IllegalArgumentException("broken config"));
+        HttpURLConnection connection = open("/metrics");
+        Assert.assertEquals(500, connection.getResponseCode());
+        Assert.assertTrue(read(connection.getErrorStream()).contains("broken config"));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + httpServer.getAddress().getPort() + path).openConnection();
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, len);
+        }
+        inputStream.close();
+        return result.toString("UTF-8");
+    }
+}